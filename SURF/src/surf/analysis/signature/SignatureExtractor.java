@@ -0,0 +1,300 @@
+/*
+ *  SignatureExtractor.java
+ *
+ */
+
+package surf.analysis.signature;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import surf.file.IOUtil;
+import surf.file.Marker;
+import surf.file.SURFFile;
+import surf.file.SURFFileDescr;
+
+/**
+ *  Extracts appliance signatures around the labelled events of SURF
+ *  files whose first two channels hold real and reactive power. For each
+ *  label, three windows are examined: the steady state before the event,
+ *  the transient starting at the event, and the steady state after the
+ *  transient. The results are collected in a <code>SignatureTable</code>.
+ *  <p>
+ *  The labels are sorted by position and their windows are joined into
+ *  runs: windows which overlap, or are separated by less than a small gap,
+ *  are read with a single sequential read. The runs are split into as many
+ *  contiguous parts as there are threads, and each thread reads its part
+ *  in file order through its own <code>SURFFile</code>. A pass over a
+ *  dataset therefore performs about one read per group of nearby events
+ *  instead of several seeks per event.
+ *
+ *  @see	SignatureTable
+ */
+public class SignatureExtractor {
+
+	private static final int	GAP_BYTES		= 256 << 10;	// reading this is cheaper than a seek
+	private static final int	MAX_RUN_FRAMES	= 1 << 20;		// bounds the buffer of a thread
+
+	private final int			steadyFrames;
+	private final int			transientFrames;
+	private final int			shapeLength;
+	private int					numThreads		= Runtime.getRuntime().availableProcessors();
+
+	/**
+	 *  @param	steadyFrames	the number of frames of the steady state windows
+	 *  @param	transientFrames	the number of frames of the transient window
+	 *  @param	shapeLength		the number of points the transient shape is reduced to
+	 *
+	 *  @throws IllegalArgumentException if a size is less than one, or the shape
+	 *									 has more points than the transient window
+	 */
+	public SignatureExtractor( int steadyFrames, int transientFrames, int shapeLength ) {
+		if( (steadyFrames < 1) || (transientFrames < 1) || (shapeLength < 1) || (shapeLength > transientFrames) ) {
+			throw new IllegalArgumentException( "window sizes " + steadyFrames + ", " + transientFrames + ", " + shapeLength );
+		}
+		this.steadyFrames		= steadyFrames;
+		this.transientFrames	= transientFrames;
+		this.shapeLength		= shapeLength;
+	}
+
+	/**
+	 *  Sets the number of threads reading each file. Defaults
+	 *  to the number of available processors.
+	 */
+	public void setNumThreads( int numThreads ) {
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 *  Extracts the signatures of several files, one file after the
+	 *  other, and joins them into one table. An empty list gives an
+	 *  empty table.
+	 *
+	 *  @throws IOException if a file cannot be read
+	 */
+	public SignatureTable extract( List<File> files ) throws IOException {
+		final List<SignatureTable> tables = new ArrayList<SignatureTable>( files.size() );
+
+		if( files.isEmpty() ) return new SignatureTable( 0, shapeLength, steadyFrames, transientFrames, new String[ 0 ], new String[ 0 ]);
+		for( File f : files ) tables.add( extract( f ));
+		return SignatureTable.concat( tables );
+	}
+
+	/**
+	 *  Extracts the signatures of the labels stored in a file.
+	 *
+	 *  @throws IOException if the file cannot be read
+	 */
+	@SuppressWarnings("unchecked")
+	public SignatureTable extract( File f ) throws IOException {
+		final SURFFile		sf	= SURFFile.openAsRead( f );
+		final List<Marker>	labels;
+
+		try {
+			sf.readMarkers();
+			labels = (List<Marker>) sf.getDescr().getProperty( SURFFileDescr.KEY_LABELS );
+		}
+		finally {
+			sf.cleanUp();
+		}
+		return extract( f, labels == null ? new ArrayList<Marker>() : labels );
+	}
+
+	/**
+	 *  Extracts the signatures of the given labels of a file. Labels
+	 *  outside the file are ignored.
+	 *
+	 *  @throws IOException if the file cannot be read
+	 */
+	public SignatureTable extract( final File f, List<Marker> labels ) throws IOException {
+		final SURFFile				sf		= SURFFile.openAsRead( f );
+		final List<Marker>			events	= new ArrayList<Marker>( labels.size() );
+		final List<long[]>			runs	= new ArrayList<long[]>();	// { start, stop, first event, stop event }
+		final Map<String, Integer>	lbIndex	= new HashMap<String, Integer>();
+		final List<String>			lbNames	= new ArrayList<String>();
+		final float					calP, calQ;
+		final long					frameNum, gap;
+		final int[]					lb;
+		final SignatureTable		t;
+		final ExecutorService		pool;
+		final List<Future<Void>>	tasks;
+		long						total	= 0L;
+		long[]						run		= null;
+		long						start, stop;
+		Integer						idx;
+		Marker						m;
+
+		try {
+			if( sf.getChannelNum() < 2 ) throw new IOException( f.getName() + " has no reactive power channel" );
+			frameNum	= sf.getFrameNum();
+			gap			= GAP_BYTES / sf.getBytesPerFrame();
+			calP		= sf.getDescr().getChannelCalibration( 0 );
+			calQ		= sf.getDescr().getChannelCalibration( 1 );
+		}
+		finally {
+			sf.cleanUp();
+		}
+
+		for( int i = 0; i < labels.size(); i++ ) {
+			m = labels.get( i );
+			if( (m.pos >= 0) && (m.pos < frameNum) ) events.add( m );
+		}
+		Collections.sort( events );
+
+		lb = new int[ events.size() ];
+		for( int i = 0; i < events.size(); i++ ) {
+			m			= events.get( i );
+			start		= Math.max( 0L, m.pos - steadyFrames );
+			stop		= Math.min( frameNum, m.pos + transientFrames + steadyFrames );
+			if( (run != null) && (start <= run[ 1 ] + gap) && (stop - run[ 0 ] <= MAX_RUN_FRAMES) ) {
+				run[ 1 ]	= Math.max( run[ 1 ], stop );
+				run[ 3 ]	= i + 1;
+			} else {
+				if( run != null ) total += run[ 1 ] - run[ 0 ];
+				run			= new long[] { start, stop, i, i + 1 };
+				runs.add( run );
+			}
+			idx = lbIndex.get( m.name );
+			if( idx == null ) {
+				idx = Integer.valueOf( lbNames.size() );
+				lbIndex.put( m.name, idx );
+				lbNames.add( m.name );
+			}
+			lb[ i ] = idx.intValue();
+		}
+		if( run != null ) total += run[ 1 ] - run[ 0 ];
+
+		t = new SignatureTable( events.size(), shapeLength, steadyFrames, transientFrames,
+								new String[] { f.getName() }, lbNames.toArray( new String[ lbNames.size() ]));
+		for( int i = 0; i < t.rows; i++ ) {
+			t.position[ i ]	= events.get( i ).pos;
+			t.label[ i ]	= lb[ i ];
+		}
+		if( runs.isEmpty() ) return t;
+
+		// contiguous parts of about the same number of frames
+		pool	= Executors.newFixedThreadPool( Math.min( numThreads, runs.size() ));
+		tasks	= new ArrayList<Future<Void>>();
+		try {
+			int		first	= 0;
+			long	sum		= 0L;
+			for( int i = 0, part = 1; i < runs.size(); i++ ) {
+				sum += runs.get( i )[ 1 ] - runs.get( i )[ 0 ];
+				if( (i == runs.size() - 1) || (sum >= total * part / numThreads) ) {
+					final List<long[]> partRuns = runs.subList( first, i + 1 );
+					tasks.add( pool.submit( new Callable<Void>() {
+						public Void call() throws IOException {
+							extractRuns( f, partRuns, frameNum, calP, calQ, t );
+							return null;
+						}
+					}));
+					first = i + 1;
+					while( sum >= total * part / numThreads ) part++;
+				}
+			}
+			for( int i = 0; i < tasks.size(); i++ ) tasks.get( i ).get();
+		}
+		catch( InterruptedException e1 ) {
+			Thread.currentThread().interrupt();
+			throw IOUtil.map( e1 );
+		}
+		catch( ExecutionException e1 ) {
+			if( e1.getCause() instanceof IOException ) throw (IOException) e1.getCause();
+			throw IOUtil.map( e1 );
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return t;
+	}
+
+	// reads each run with one sequential read and computes the features of its events
+	private void extractRuns( File f, List<long[]> runs, long frameNum, float calP, float calQ, SignatureTable t )
+	throws IOException {
+		final SURFFile	sf		= SURFFile.openAsRead( f );
+		final float[][]	buf		= new float[ sf.getChannelNum() ][];
+		int				maxLen	= 0;
+		int				len;
+
+		try {
+			for( long[] run : runs ) maxLen = Math.max( maxLen, (int) (run[ 1 ] - run[ 0 ]));
+			buf[ 0 ] = new float[ maxLen ];
+			buf[ 1 ] = new float[ maxLen ];		// other channels are not decoded
+			for( long[] run : runs ) {
+				len = (int) (run[ 1 ] - run[ 0 ]);
+				sf.seekFrame( run[ 0 ]);
+				sf.readFrames( buf, 0, len );
+				for( int i = (int) run[ 2 ]; i < (int) run[ 3 ]; i++ ) {
+					extractEvent( t, i, buf[ 0 ], buf[ 1 ], run[ 0 ], frameNum, calP, calQ );
+				}
+			}
+		}
+		finally {
+			sf.cleanUp();
+		}
+	}
+
+	private void extractEvent( SignatureTable t, int row, float[] p, float[] q, long bufStart, long frameNum,
+							   float calP, float calQ ) {
+		final long	pos			= t.position[ row ];
+		final int	off			= (int) (pos - bufStart);
+		final int	preLen		= (int) Math.min( steadyFrames, pos );
+		final int	transLen	= (int) Math.min( transientFrames, frameNum - pos );
+		final int	postLen		= (int) Math.min( steadyFrames, frameNum - pos - transLen );
+		final float	preP, preQ;
+		float		d, peakP = 0f, peakQ = 0f;
+		int			peakOff = 0, b0, b1;
+		double		sumP, sumQ;
+
+		preP			= mean( p, off - preLen, preLen ) * calP;
+		preQ			= mean( q, off - preLen, preLen ) * calQ;
+		t.preP[ row ]	= preP;
+		t.preQ[ row ]	= preQ;
+		t.deltaP[ row ]	= mean( p, off + transLen, postLen ) * calP - preP;
+		t.deltaQ[ row ]	= mean( q, off + transLen, postLen ) * calQ - preQ;
+
+		for( int i = 0; i < transLen; i++ ) {
+			d = p[ off + i ] * calP - preP;
+			if( Math.abs( d ) > Math.abs( peakP )) {
+				peakP	= d;
+				peakOff	= i;
+			}
+			d = q[ off + i ] * calQ - preQ;
+			if( Math.abs( d ) > Math.abs( peakQ )) peakQ = d;
+		}
+		t.peakP[ row ]		= preLen > 0 ? peakP : Float.NaN;
+		t.peakQ[ row ]		= preLen > 0 ? peakQ : Float.NaN;
+		t.peakOffset[ row ]	= peakOff;
+
+		for( int j = 0; j < shapeLength; j++ ) {
+			b0		= (int) ((long) transientFrames * j / shapeLength);
+			b1		= Math.min( transLen, (int) ((long) transientFrames * (j + 1) / shapeLength) );
+			sumP	= 0.0;
+			sumQ	= 0.0;
+			for( int i = b0; i < b1; i++ ) {
+				sumP += p[ off + i ];
+				sumQ += q[ off + i ];
+			}
+			t.shapeP[ row * shapeLength + j ] = b1 > b0 ? (float) (sumP / (b1 - b0)) * calP - preP : Float.NaN;
+			t.shapeQ[ row * shapeLength + j ] = b1 > b0 ? (float) (sumQ / (b1 - b0)) * calQ - preQ : Float.NaN;
+		}
+	}
+
+	private static float mean( float[] a, int off, int len ) {
+		double sum = 0.0;
+
+		if( len <= 0 ) return Float.NaN;
+		for( int i = 0; i < len; i++ ) sum += a[ off + i ];
+		return (float) (sum / len);
+	}
+}
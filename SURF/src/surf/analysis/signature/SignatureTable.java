@@ -0,0 +1,323 @@
+/*
+ *  SignatureTable.java
+ *
+ */
+
+package surf.analysis.signature;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Appliance signatures of labelled events, stored by column: one
+ *  primitive array per feature, with one entry per event. Label names
+ *  and source file names are stored once and referenced by index.
+ *  <p>
+ *  The file format mirrors this layout, so a table is written and read
+ *  with a few bulk transfers. All numbers are big endian:
+ *  <pre>
+ *	int		magic 'SIGT', int version
+ *	int		rows, shapeLength, steadyFrames, transientFrames
+ *	int		number of sources, then for each: int length, UTF-8 bytes
+ *	int		number of labels, then for each: int length, UTF-8 bytes
+ *	int[]	source, long[] position, int[] label
+ *	float[]	preP, preQ, deltaP, deltaQ, peakP, peakQ
+ *	int[]	peakOffset
+ *	float[]	shapeP, shapeQ		(rows * shapeLength, row by row)
+ *  </pre>
+ *
+ *  @see	SignatureExtractor
+ */
+public class SignatureTable {
+
+	private static final int		MAGIC	= 0x53494754;	// 'SIGT'
+	private static final int		VERSION	= 1;
+	private static final Charset	UTF8	= Charset.forName( "UTF-8" );
+
+	/**
+	 *  Number of events
+	 */
+	public final int		rows;
+	/**
+	 *  Number of points of the transient shapes
+	 */
+	public final int		shapeLength;
+	/**
+	 *  Number of frames of the steady state windows before and after an event
+	 */
+	public final int		steadyFrames;
+	/**
+	 *  Number of frames of the transient window, starting at an event
+	 */
+	public final int		transientFrames;
+
+	/**
+	 *  Names of the files the events were taken from
+	 */
+	public final String[]	sources;
+	/**
+	 *  Distinct label names
+	 */
+	public final String[]	labels;
+
+	/**
+	 *  Index into <code>sources</code> per event
+	 */
+	public final int[]		source;
+	/**
+	 *  Frame position of each event
+	 */
+	public final long[]		position;
+	/**
+	 *  Index into <code>labels</code> per event
+	 */
+	public final int[]		label;
+	/**
+	 *  Mean real and reactive power of the steady state before the event
+	 */
+	public final float[]	preP, preQ;
+	/**
+	 *  Difference between the steady state means after and before the event
+	 */
+	public final float[]	deltaP, deltaQ;
+	/**
+	 *  Largest deviation from the steady state before the event within the
+	 *  transient window, with its sign
+	 */
+	public final float[]	peakP, peakQ;
+	/**
+	 *  Frames from the event to the peak of the real power
+	 */
+	public final int[]		peakOffset;
+	/**
+	 *  Deviation from the steady state before the event, averaged over
+	 *  <code>shapeLength</code> equal parts of the transient window
+	 */
+	public final float[]	shapeP, shapeQ;
+
+	SignatureTable( int rows, int shapeLength, int steadyFrames, int transientFrames, String[] sources, String[] labels ) {
+		this.rows				= rows;
+		this.shapeLength		= shapeLength;
+		this.steadyFrames		= steadyFrames;
+		this.transientFrames	= transientFrames;
+		this.sources			= sources;
+		this.labels				= labels;
+		source					= new int[ rows ];
+		position				= new long[ rows ];
+		label					= new int[ rows ];
+		preP					= new float[ rows ];
+		preQ					= new float[ rows ];
+		deltaP					= new float[ rows ];
+		deltaQ					= new float[ rows ];
+		peakP					= new float[ rows ];
+		peakQ					= new float[ rows ];
+		peakOffset				= new int[ rows ];
+		shapeP					= new float[ rows * shapeLength ];
+		shapeQ					= new float[ rows * shapeLength ];
+	}
+
+	/**
+	 *  Joins tables extracted with the same parameters, e.g. from the
+	 *  files of a dataset. Sources and labels are merged.
+	 *
+	 *  @throws IllegalArgumentException if the list is empty, or the tables
+	 *									 were extracted with different parameters
+	 */
+	public static SignatureTable concat( List<SignatureTable> tables ) {
+		final List<String>			srcNames	= new ArrayList<String>();
+		final List<String>			lbNames		= new ArrayList<String>();
+		final Map<String, Integer>	lbIndex		= new HashMap<String, Integer>();
+		final SignatureTable		first;
+		final SignatureTable		result;
+		int							rows		= 0;
+		int							off			= 0;
+		int[]						lbMap;
+		Integer						idx;
+
+		if( tables.isEmpty() ) throw new IllegalArgumentException( "no tables to join" );
+		first = tables.get( 0 );
+		for( SignatureTable t : tables ) {
+			if( (t.shapeLength != first.shapeLength) || (t.steadyFrames != first.steadyFrames) ||
+				(t.transientFrames != first.transientFrames) ) throw new IllegalArgumentException( "incompatible tables" );
+			rows += t.rows;
+			for( int i = 0; i < t.labels.length; i++ ) {
+				if( !lbIndex.containsKey( t.labels[ i ])) {
+					lbIndex.put( t.labels[ i ], lbNames.size() );
+					lbNames.add( t.labels[ i ]);
+				}
+			}
+		}
+		for( SignatureTable t : tables ) srcNames.addAll( Arrays.asList( t.sources ));
+		result = new SignatureTable( rows, first.shapeLength, first.steadyFrames, first.transientFrames,
+									 srcNames.toArray( new String[ srcNames.size() ]), lbNames.toArray( new String[ lbNames.size() ]));
+		rows = 0;
+		for( SignatureTable t : tables ) {
+			lbMap = new int[ t.labels.length ];
+			for( int i = 0; i < lbMap.length; i++ ) {
+				idx			= lbIndex.get( t.labels[ i ]);
+				lbMap[ i ]	= idx.intValue();
+			}
+			for( int i = 0; i < t.rows; i++ ) {
+				result.source[ rows + i ]	= t.source[ i ] + off;
+				result.label[ rows + i ]	= lbMap[ t.label[ i ]];
+			}
+			System.arraycopy( t.position,	0, result.position,		rows, t.rows );
+			System.arraycopy( t.preP,		0, result.preP,			rows, t.rows );
+			System.arraycopy( t.preQ,		0, result.preQ,			rows, t.rows );
+			System.arraycopy( t.deltaP,		0, result.deltaP,		rows, t.rows );
+			System.arraycopy( t.deltaQ,		0, result.deltaQ,		rows, t.rows );
+			System.arraycopy( t.peakP,		0, result.peakP,		rows, t.rows );
+			System.arraycopy( t.peakQ,		0, result.peakQ,		rows, t.rows );
+			System.arraycopy( t.peakOffset,	0, result.peakOffset,	rows, t.rows );
+			System.arraycopy( t.shapeP,		0, result.shapeP,		rows * t.shapeLength, t.rows * t.shapeLength );
+			System.arraycopy( t.shapeQ,		0, result.shapeQ,		rows * t.shapeLength, t.rows * t.shapeLength );
+			rows   += t.rows;
+			off	   += t.sources.length;
+		}
+		return result;
+	}
+
+	/**
+	 *  Writes the table to a file, replacing its contents.
+	 *
+	 *  @throws IOException if the file cannot be written
+	 */
+	public void write( File f ) throws IOException {
+		final byte[][]			src		= encode( sources );
+		final byte[][]			lb		= encode( labels );
+		final RandomAccessFile	raf;
+		final FileChannel		fch;
+		final ByteBuffer		b;
+		long					size	= 24 + 8 + ((long) rows * (4 + 8 + 4 + 6 * 4 + 4)) + (8L * rows * shapeLength);
+
+		for( int i = 0; i < src.length; i++ ) size += 4 + src[ i ].length;
+		for( int i = 0; i < lb.length; i++ ) size += 4 + lb[ i ].length;
+		if( size > Integer.MAX_VALUE ) throw new IOException( "table too large" );
+
+		b = ByteBuffer.allocate( (int) size );
+		b.putInt( MAGIC ).putInt( VERSION );
+		b.putInt( rows ).putInt( shapeLength ).putInt( steadyFrames ).putInt( transientFrames );
+		putStrings( b, src );
+		putStrings( b, lb );
+		b.asIntBuffer().put( source );		b.position( b.position() + rows * 4 );
+		b.asLongBuffer().put( position );	b.position( b.position() + rows * 8 );
+		b.asIntBuffer().put( label );		b.position( b.position() + rows * 4 );
+		putFloats( b, preP );
+		putFloats( b, preQ );
+		putFloats( b, deltaP );
+		putFloats( b, deltaQ );
+		putFloats( b, peakP );
+		putFloats( b, peakQ );
+		b.asIntBuffer().put( peakOffset );	b.position( b.position() + rows * 4 );
+		putFloats( b, shapeP );
+		putFloats( b, shapeQ );
+		b.flip();
+
+		raf = new RandomAccessFile( f, "rw" );
+		try {
+			fch = raf.getChannel();
+			raf.setLength( 0L );
+			while( b.hasRemaining() ) fch.write( b );
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 *  Reads a table written by <code>write</code>.
+	 *
+	 *  @throws IOException if the file cannot be read or is not a signature table
+	 */
+	public static SignatureTable read( File f ) throws IOException {
+		final RandomAccessFile	raf	= new RandomAccessFile( f, "r" );
+		final ByteBuffer		b;
+		final SignatureTable	t;
+		final int				rows, shapeLength, steadyFrames, transientFrames;
+		final String[]			src, lb;
+
+		try {
+			if( raf.length() > Integer.MAX_VALUE ) throw new IOException( "table too large" );
+			b = ByteBuffer.allocate( (int) raf.length() );
+			while( b.hasRemaining() ) {
+				if( raf.getChannel().read( b ) < 0 ) throw new EOFException();
+			}
+		}
+		finally {
+			raf.close();
+		}
+		b.flip();
+		try {
+			if( (b.getInt() != MAGIC) || (b.getInt() != VERSION) ) throw new IOException( f.getName() + " is not a signature table" );
+			rows			= b.getInt();
+			shapeLength		= b.getInt();
+			steadyFrames	= b.getInt();
+			transientFrames	= b.getInt();
+			src				= getStrings( b );
+			lb				= getStrings( b );
+			t				= new SignatureTable( rows, shapeLength, steadyFrames, transientFrames, src, lb );
+			b.asIntBuffer().get( t.source );		b.position( b.position() + rows * 4 );
+			b.asLongBuffer().get( t.position );		b.position( b.position() + rows * 8 );
+			b.asIntBuffer().get( t.label );			b.position( b.position() + rows * 4 );
+			getFloats( b, t.preP );
+			getFloats( b, t.preQ );
+			getFloats( b, t.deltaP );
+			getFloats( b, t.deltaQ );
+			getFloats( b, t.peakP );
+			getFloats( b, t.peakQ );
+			b.asIntBuffer().get( t.peakOffset );	b.position( b.position() + rows * 4 );
+			getFloats( b, t.shapeP );
+			getFloats( b, t.shapeQ );
+		}
+		catch( RuntimeException e1 ) {		// buffer underflow, negative sizes
+			throw new IOException( f.getName() + " is corrupt" );
+		}
+		return t;
+	}
+
+	private static byte[][] encode( String[] s ) {
+		final byte[][] b = new byte[ s.length ][];
+		for( int i = 0; i < s.length; i++ ) b[ i ] = s[ i ].getBytes( UTF8 );
+		return b;
+	}
+
+	private static void putStrings( ByteBuffer b, byte[][] s ) {
+		b.putInt( s.length );
+		for( int i = 0; i < s.length; i++ ) {
+			b.putInt( s[ i ].length );
+			b.put( s[ i ]);
+		}
+	}
+
+	private static String[] getStrings( ByteBuffer b ) {
+		final String[]	s = new String[ b.getInt() ];
+		byte[]			bytes;
+
+		for( int i = 0; i < s.length; i++ ) {
+			bytes = new byte[ b.getInt() ];
+			b.get( bytes );
+			s[ i ] = new String( bytes, UTF8 );
+		}
+		return s;
+	}
+
+	private static void putFloats( ByteBuffer b, float[] f ) {
+		b.asFloatBuffer().put( f );
+		b.position( b.position() + f.length * 4 );
+	}
+
+	private static void getFloats( ByteBuffer b, float[] f ) {
+		b.asFloatBuffer().get( f );
+		b.position( b.position() + f.length * 4 );
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ *  RollingExtremum.java
+ *
+ */
+
+package surf.analysis.window;
+
+/**
+ *  The minimum or maximum of a sliding window, using a monotonic deque:
+ *  the deque holds the samples which may still become the extremum, in
+ *  the order they were added, so the extremum is always at its front.
+ *  A sample which is dominated by a newer one is dropped immediately,
+ *  hence each sample enters and leaves the deque at most once.
+ */
+abstract class RollingExtremum
+extends RollingOperator {
+
+	private final boolean	max;
+	private final float[]	values;		// circular deque of candidates
+	private final long[]	indices;	// their positions in the stream
+	private int				first	= 0;
+	private int				size	= 0;
+	private long			added	= 0L;
+
+	RollingExtremum( int windowSize, boolean max ) {
+		super( windowSize );
+		this.max	= max;
+		values		= new float[ windowSize ];
+		indices		= new long[ windowSize ];
+	}
+
+	public void add( float x ) {
+		final long	idx = added++;
+		int			last;
+
+		if( (size > 0) && (indices[ first ] <= idx - windowSize) ) {	// slid out of the window
+			if( ++first == windowSize ) first = 0;
+			size--;
+		}
+		while( size > 0 ) {
+			last = first + size - 1;
+			if( last >= windowSize ) last -= windowSize;
+			if( max ? values[ last ] > x : values[ last ] < x ) break;
+			size--;
+		}
+		last = first + size;
+		if( last >= windowSize ) last -= windowSize;
+		values[ last ]	= x;
+		indices[ last ]	= idx;
+		size++;
+	}
+
+	public double getValue() {
+		return( size > 0 ? values[ first ] : Double.NaN );
+	}
+
+	public int getCount() {
+		return (int) Math.min( added, windowSize );
+	}
+
+	public void reset() {
+		first	= 0;
+		size	= 0;
+		added	= 0L;
+	}
+}
@@ -0,0 +1,17 @@
+/*
+ *  RollingMax.java
+ *
+ */
+
+package surf.analysis.window;
+
+/**
+ *  The maximum of a sliding window.
+ */
+public class RollingMax
+extends RollingExtremum {
+
+	public RollingMax( int windowSize ) {
+		super( windowSize, true );
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ *  RollingMean.java
+ *
+ */
+
+package surf.analysis.window;
+
+/**
+ *  The arithmetic mean of a sliding window, from a running sum.
+ *  To keep rounding errors from accumulating over long streams, the
+ *  sum is recomputed from the window each time it has slid by its
+ *  full length.
+ */
+public class RollingMean
+extends RollingOperator {
+
+	private final float[]	ring;
+	private int				head	= 0;
+	private int				count	= 0;
+	private double			sum		= 0.0;
+
+	public RollingMean( int windowSize ) {
+		super( windowSize );
+		ring = new float[ windowSize ];
+	}
+
+	public void add( float x ) {
+		if( count == windowSize ) {
+			sum -= ring[ head ];
+		} else {
+			count++;
+		}
+		ring[ head ] = x;
+		sum += x;
+		if( ++head == windowSize ) {
+			head	= 0;
+			sum		= 0.0;
+			for( int i = 0; i < windowSize; i++ ) sum += ring[ i ];
+		}
+	}
+
+	public double getValue() {
+		return( count > 0 ? sum / count : Double.NaN );
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void reset() {
+		head	= 0;
+		count	= 0;
+		sum		= 0.0;
+	}
+}
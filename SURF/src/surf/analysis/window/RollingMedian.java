@@ -0,0 +1,155 @@
+/*
+ *  RollingMedian.java
+ *
+ */
+
+package surf.analysis.window;
+
+/**
+ *  The median of a sliding window, using two indexed heaps: a max-heap
+ *  with the lower half of the window and a min-heap with the upper half.
+ *  Every sample keeps its position in the heaps, so the oldest sample is
+ *  replaced by the newest one in place, and at most the two heap tops
+ *  have to be exchanged to restore the order of the halves. Each sample
+ *  thus costs logarithmic time in the window size. For an even number
+ *  of samples, the median is the mean of the two middle ones.
+ */
+public class RollingMedian
+extends RollingOperator {
+
+	private final float[]	ring;		// samples by slot
+	private final int[]		low;		// max-heap of slots
+	private final int[]		high;		// min-heap of slots
+	private final int[]		heapPos;	// position of each slot in its heap
+	private final boolean[]	inLow;		// heap of each slot
+	private int				lowSize		= 0;
+	private int				highSize	= 0;
+	private int				head		= 0;
+	private int				count		= 0;
+
+	public RollingMedian( int windowSize ) {
+		super( windowSize );
+		ring	= new float[ windowSize ];
+		low		= new int[ (windowSize + 1) / 2 + 1 ];
+		high	= new int[ windowSize / 2 + 1 ];
+		heapPos	= new int[ windowSize ];
+		inLow	= new boolean[ windowSize ];
+	}
+
+	public void add( float x ) {
+		final int	slot	= head;
+		int			s1, s2;
+
+		ring[ slot ] = x;
+		if( count < windowSize ) {
+			count++;
+			if( (lowSize == 0) || (x <= ring[ low[ 0 ]]) ) {
+				inLow[ slot ] = true;
+				set( low, lowSize, slot );
+				siftUp( low, true, lowSize++ );
+			} else {
+				inLow[ slot ] = false;
+				set( high, highSize, slot );
+				siftUp( high, false, highSize++ );
+			}
+			// the lower half holds one sample more than the upper, or the same number
+			if( lowSize > highSize + 1 ) {
+				moveTop( low, true );
+			} else if( highSize > lowSize ) {
+				moveTop( high, false );
+			}
+		} else {
+			// the oldest sample, whose slot is reused, changed its value
+			if( inLow[ slot ]) {
+				siftUp( low, true, heapPos[ slot ]);
+				siftDown( low, lowSize, true, heapPos[ slot ]);
+			} else {
+				siftUp( high, false, heapPos[ slot ]);
+				siftDown( high, highSize, false, heapPos[ slot ]);
+			}
+			if( (highSize > 0) && (ring[ low[ 0 ]] > ring[ high[ 0 ]]) ) {
+				s1				= low[ 0 ];
+				s2				= high[ 0 ];
+				inLow[ s1 ]		= false;
+				inLow[ s2 ]		= true;
+				set( low, 0, s2 );
+				set( high, 0, s1 );
+				siftDown( low, lowSize, true, 0 );
+				siftDown( high, highSize, false, 0 );
+			}
+		}
+		if( ++head == windowSize ) head = 0;
+	}
+
+	public double getValue() {
+		if( count == 0 ) return Double.NaN;
+		if( lowSize > highSize ) return ring[ low[ 0 ]];
+		return( ((double) ring[ low[ 0 ]] + ring[ high[ 0 ]]) / 2 );
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void reset() {
+		lowSize		= 0;
+		highSize	= 0;
+		head		= 0;
+		count		= 0;
+	}
+
+	// moves the top of one heap to the other one
+	private void moveTop( int[] heap, boolean isLow ) {
+		final int slot = heap[ 0 ];
+
+		if( isLow ) {
+			set( low, 0, low[ --lowSize ]);
+			siftDown( low, lowSize, true, 0 );
+			inLow[ slot ] = false;
+			set( high, highSize, slot );
+			siftUp( high, false, highSize++ );
+		} else {
+			set( high, 0, high[ --highSize ]);
+			siftDown( high, highSize, false, 0 );
+			inLow[ slot ] = true;
+			set( low, lowSize, slot );
+			siftUp( low, true, lowSize++ );
+		}
+	}
+
+	// whether slot a belongs above slot b
+	private boolean above( boolean isLow, int a, int b ) {
+		return( isLow ? ring[ a ] > ring[ b ] : ring[ a ] < ring[ b ]);
+	}
+
+	private void set( int[] heap, int pos, int slot ) {
+		heap[ pos ]		= slot;
+		heapPos[ slot ]	= pos;
+	}
+
+	private void siftUp( int[] heap, boolean isLow, int pos ) {
+		final int	slot = heap[ pos ];
+		int			parent;
+
+		while( pos > 0 ) {
+			parent = (pos - 1) >> 1;
+			if( !above( isLow, slot, heap[ parent ])) break;
+			set( heap, pos, heap[ parent ]);
+			pos = parent;
+		}
+		set( heap, pos, slot );
+	}
+
+	private void siftDown( int[] heap, int size, boolean isLow, int pos ) {
+		final int	slot = heap[ pos ];
+		int			child;
+
+		while( (child = (pos << 1) + 1) < size ) {
+			if( (child + 1 < size) && above( isLow, heap[ child + 1 ], heap[ child ])) child++;
+			if( !above( isLow, heap[ child ], slot )) break;
+			set( heap, pos, heap[ child ]);
+			pos = child;
+		}
+		set( heap, pos, slot );
+	}
+}
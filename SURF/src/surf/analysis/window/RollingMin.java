@@ -0,0 +1,17 @@
+/*
+ *  RollingMin.java
+ *
+ */
+
+package surf.analysis.window;
+
+/**
+ *  The minimum of a sliding window.
+ */
+public class RollingMin
+extends RollingExtremum {
+
+	public RollingMin( int windowSize ) {
+		super( windowSize, false );
+	}
+}
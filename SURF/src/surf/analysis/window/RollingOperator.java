@@ -0,0 +1,80 @@
+/*
+ *  RollingOperator.java
+ *
+ */
+
+package surf.analysis.window;
+
+/**
+ *  A statistic over the most recent <code>windowSize</code> samples of a
+ *  stream. Samples are added one at a time; after each one, the operator
+ *  holds the statistic of the window ending at that sample. Until the
+ *  window has been filled, the statistic covers all samples added so far.
+ *  <p>
+ *  Operators keep their state in primitive arrays allocated on
+ *  construction, so adding samples never allocates, and each sample costs
+ *  constant amortized time (logarithmic time for the median). Operators
+ *  are not thread safe.
+ *
+ *  @see	WindowPass
+ */
+public abstract class RollingOperator {
+
+	protected final int		windowSize;
+
+	/**
+	 *  @param	windowSize	the number of samples in the window
+	 *
+	 *  @throws IllegalArgumentException if the window size is less than one
+	 */
+	protected RollingOperator( int windowSize ) {
+		if( windowSize < 1 ) throw new IllegalArgumentException( "window size " + windowSize );
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 *  Returns the number of samples in a full window
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 *  Slides the window by one sample.
+	 */
+	public abstract void add( float x );
+
+	/**
+	 *  Returns the statistic of the current window,
+	 *  or <code>NaN</code> if no sample has been added
+	 */
+	public abstract double getValue();
+
+	/**
+	 *  Returns the number of samples in the current window, which
+	 *  is less than the window size until enough samples have been added
+	 */
+	public abstract int getCount();
+
+	/**
+	 *  Empties the window.
+	 */
+	public abstract void reset();
+
+	/**
+	 *  Adds a block of samples, storing the statistic after each one.
+	 *  Input and output may be the same array.
+	 *
+	 *  @param	in		the samples to add
+	 *  @param	inOff	offset of the first sample in <code>in</code>
+	 *  @param	out		receives the statistic of the window ending at each sample
+	 *  @param	outOff	offset of the first value in <code>out</code>
+	 *  @param	len		the number of samples
+	 */
+	public void process( float[] in, int inOff, float[] out, int outOff, int len ) {
+		for( int i = 0; i < len; i++ ) {
+			add( in[ inOff + i ]);
+			out[ outOff + i ] = (float) getValue();
+		}
+	}
+}
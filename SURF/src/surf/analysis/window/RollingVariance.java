@@ -0,0 +1,96 @@
+/*
+ *  RollingVariance.java
+ *
+ */
+
+package surf.analysis.window;
+
+/**
+ *  The sample variance (normalized by <code>n - 1</code>) of a sliding
+ *  window, using Welford's update extended to removals. The mean and
+ *  the sum of squared deviations are recomputed from the window each
+ *  time it has slid by its full length, so rounding errors do not
+ *  accumulate. <code>getValue</code> returns the variance; the mean
+ *  and standard deviation of the same window are available as well.
+ */
+public class RollingVariance
+extends RollingOperator {
+
+	private final float[]	ring;
+	private int				head	= 0;
+	private int				count	= 0;
+	private double			mean	= 0.0;
+	private double			m2		= 0.0;		// sum of squared deviations from the mean
+
+	public RollingVariance( int windowSize ) {
+		super( windowSize );
+		ring = new float[ windowSize ];
+	}
+
+	public void add( float x ) {
+		final double	oldMean;
+		final float		y;
+
+		if( count < windowSize ) {
+			count++;
+			oldMean	= mean;
+			mean   += (x - oldMean) / count;
+			m2	   += (x - oldMean) * (x - mean);
+		} else {
+			y		= ring[ head ];
+			oldMean	= mean;
+			mean   += ((double) x - y) / windowSize;
+			m2	   += ((double) x - y) * (x - mean + y - oldMean);
+			if( m2 < 0.0 ) m2 = 0.0;
+		}
+		ring[ head ] = x;
+		if( ++head == windowSize ) {
+			head = 0;
+			recompute();
+		}
+	}
+
+	/**
+	 *  Returns the variance of the window, zero for
+	 *  a single sample, <code>NaN</code> if empty
+	 */
+	public double getValue() {
+		return getVariance();
+	}
+
+	public double getVariance() {
+		return( count > 1 ? m2 / (count - 1) : (count == 1 ? 0.0 : Double.NaN) );
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt( getVariance() );
+	}
+
+	public double getMean() {
+		return( count > 0 ? mean : Double.NaN );
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void reset() {
+		head	= 0;
+		count	= 0;
+		mean	= 0.0;
+		m2		= 0.0;
+	}
+
+	// two-pass over the full window
+	private void recompute() {
+		double d, sum = 0.0;
+
+		for( int i = 0; i < windowSize; i++ ) sum += ring[ i ];
+		mean	= sum / windowSize;
+		m2		= 0.0;
+		for( int i = 0; i < windowSize; i++ ) {
+			d	= ring[ i ] - mean;
+			m2 += d * d;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ *  WindowPass.java
+ *
+ */
+
+package surf.analysis.window;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import surf.file.InterleavedStreamFile;
+import surf.file.Span;
+
+/**
+ *  Runs any number of rolling operators over the channels of a file in
+ *  a single pass. The frames are decoded block by block into one set of
+ *  buffers which all operators share; each operator writes its values for
+ *  the block into its own output buffer, which is handed to a sink. All
+ *  buffers are allocated once, so the pass does not allocate per block.
+ *  <p>
+ *  For example, to compute the one second mean and maximum of the first
+ *  channel of a 60 Hz file:
+ *  <pre>
+ *	final WindowPass pass = new WindowPass( 8192 );
+ *	pass.add( 0, new RollingMean( 60 ), meanSink );
+ *	pass.add( 0, new RollingMax( 60 ), maxSink );
+ *	pass.run( SURFFile.openAsRead( f ));
+ *  </pre>
+ */
+public class WindowPass {
+
+	private final int			blockFrames;
+	private final List<Entry>	entries	= new ArrayList<Entry>();
+
+	/**
+	 *  Receives the values of one operator block by block.
+	 */
+	public interface Sink {
+		/**
+		 *  @param	op			the operator which computed the values
+		 *  @param	frame		the frame index of the first value, i.e.
+		 *						the last frame of the window it was computed from
+		 *  @param	values		the values; the buffer is reused for the next block
+		 *  @param	len			the number of values
+		 */
+		public void values( RollingOperator op, long frame, float[] values, int len ) throws IOException;
+	}
+
+	/**
+	 *  @param	blockFrames	the number of frames decoded at once
+	 */
+	public WindowPass( int blockFrames ) {
+		if( blockFrames < 1 ) throw new IllegalArgumentException( "block size " + blockFrames );
+		this.blockFrames = blockFrames;
+	}
+
+	/**
+	 *  Adds an operator to the pass.
+	 *
+	 *  @param	channel	the channel the operator runs over
+	 *  @param	op		the operator
+	 *  @param	sink	receives the operator's values
+	 */
+	public void add( int channel, RollingOperator op, Sink sink ) {
+		if( channel < 0 ) throw new IllegalArgumentException( "channel " + channel );
+		entries.add( new Entry( channel, op, sink, new float[ blockFrames ]));
+	}
+
+	/**
+	 *  Runs the operators over all frames of a file. The
+	 *  operators are not reset, so a pass may continue
+	 *  where a previous one stopped.
+	 *
+	 *  @throws IOException if a read error occurs, a sink fails,
+	 *						or an operator's channel does not exist
+	 */
+	public void run( InterleavedStreamFile f ) throws IOException {
+		run( f, new Span( 0, f.getFrameNum() ));
+	}
+
+	/**
+	 *  Runs the operators over a range of frames of a file.
+	 *
+	 *  @throws IOException if a read error occurs, a sink fails,
+	 *						or an operator's channel does not exist
+	 */
+	public void run( InterleavedStreamFile f, Span span ) throws IOException {
+		final float[][]	buf		= new float[ f.getChannelNum() ][];
+		final long		stop	= Math.min( span.stop, f.getFrameNum() );
+		Entry			e;
+		int				len;
+
+		for( int i = 0; i < entries.size(); i++ ) {
+			e = entries.get( i );
+			if( e.channel >= buf.length ) throw new IOException( "channel " + e.channel + " does not exist" );
+			if( buf[ e.channel ] == null ) buf[ e.channel ] = new float[ blockFrames ];	// other channels are skipped
+		}
+		f.seekFrame( span.start );
+		for( long pos = span.start; pos < stop; pos += len ) {
+			len = (int) Math.min( blockFrames, stop - pos );
+			f.readFrames( buf, 0, len );
+			for( int i = 0; i < entries.size(); i++ ) {
+				e = entries.get( i );
+				e.op.process( buf[ e.channel ], 0, e.out, 0, len );
+				e.sink.values( e.op, pos, e.out, len );
+			}
+		}
+	}
+
+	private static class Entry {
+		protected final int				channel;
+		protected final RollingOperator	op;
+		protected final Sink			sink;
+		protected final float[]			out;
+
+		protected Entry( int channel, RollingOperator op, Sink sink, float[] out ) {
+			this.channel	= channel;
+			this.op			= op;
+			this.sink		= sink;
+			this.out		= out;
+		}
+	}
+}
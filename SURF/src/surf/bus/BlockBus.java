@@ -0,0 +1,200 @@
+/*
+ *  BlockBus.java
+ *
+ */
+
+package surf.bus;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import surf.file.FrameBlock;
+import surf.file.SURFFile;
+import surf.file.Span;
+
+/**
+ *  Reads a SURF file once and hands each decoded block of frames to any
+ *  number of subscribers, e.g. a chart, a feature extractor and an event
+ *  detector working on the same file. The frames are decoded only once,
+ *  whatever the number of subscribers, and the subscribers share the
+ *  same off-heap block instead of receiving copies.
+ *  <p>
+ *  Each subscriber has a <code>Subscription</code> with a queue of its
+ *  own, so subscribers running on different threads proceed independently.
+ *  A block is shared by reference counting: the reader and each
+ *  subscriber which is handed the block hold a reference, and once all
+ *  of them have released it, its memory is reused for a later block.
+ *  The number of blocks allocated therefore only depends on the queue
+ *  sizes, not on the length of the file.
+ *  <p>
+ *  The blocks hold the frames as stored in the file, without calibration.
+ *  <pre>
+ *	final BlockBus bus = new BlockBus( sf, 4096 );
+ *	final Subscription sub = bus.subscribe( Subscription.POLICY_BLOCK, 4 );
+ *	// ... start a thread which takes blocks from sub, then
+ *	bus.run();
+ *  </pre>
+ *
+ *  @see	Subscription
+ *  @see	SharedBlock
+ */
+public class BlockBus {
+
+	private final SURFFile					sf;
+	private final int						blockFrames;
+	private final int						layout;
+
+	private final List<Subscription>		subs		= new CopyOnWriteArrayList<Subscription>();
+	private final Queue<SharedBlock>		free		= new ConcurrentLinkedQueue<SharedBlock>();
+
+	private volatile boolean				stopped		= false;
+	private volatile long					blocksRead	= 0L;
+	private volatile int					blocksAllocated	= 0;
+
+	/**
+	 *  Creates a bus with planar blocks.
+	 *
+	 *  @param	sf			the file to read, opened for reading
+	 *  @param	blockFrames	the number of frames per block
+	 */
+	public BlockBus( SURFFile sf, int blockFrames ) {
+		this( sf, blockFrames, FrameBlock.LAYOUT_PLANAR );
+	}
+
+	/**
+	 *  @param	sf			the file to read, opened for reading
+	 *  @param	blockFrames	the number of frames per block
+	 *  @param	layout		<code>FrameBlock.LAYOUT_PLANAR</code> or <code>FrameBlock.LAYOUT_INTERLEAVED</code>
+	 */
+	public BlockBus( SURFFile sf, int blockFrames, int layout ) {
+		if( blockFrames <= 0 ) throw new IllegalArgumentException( "blockFrames " + blockFrames );
+		if( (layout != FrameBlock.LAYOUT_INTERLEAVED) && (layout != FrameBlock.LAYOUT_PLANAR) ) {
+			throw new IllegalArgumentException( "layout " + layout );
+		}
+		this.sf				= sf;
+		this.blockFrames	= blockFrames;
+		this.layout			= layout;
+	}
+
+	/**
+	 *  Adds a subscriber. A subscriber added while the bus is running
+	 *  receives the blocks read from then on.
+	 *
+	 *  @param	policy		what to do when the subscriber's queue is full,
+	 *						<code>Subscription.POLICY_BLOCK</code>, <code>POLICY_DROP</code>
+	 *						or <code>POLICY_SAMPLE</code>
+	 *  @param	queueSize	the number of blocks queued for the subscriber
+	 */
+	public Subscription subscribe( int policy, int queueSize ) {
+		final Subscription sub = new Subscription( policy, queueSize );
+		subs.add( sub );
+		return sub;
+	}
+
+	public List<Subscription> getSubscriptions() {
+		return Collections.unmodifiableList( subs );
+	}
+
+	/**
+	 *  Reads all frames of the file and publishes them.
+	 *
+	 *  @see	#run( Span )
+	 */
+	public void run() throws IOException, InterruptedException {
+		run( null );
+	}
+
+	/**
+	 *  Reads a range of frames and publishes them block by block, on the
+	 *  calling thread. When the range has been read, the bus was stopped or
+	 *  reading failed, the stream of every subscription is ended.
+	 *
+	 *  @param	span	the frames to read, or <code>null</code> for the whole file
+	 *
+	 *  @throws IOException if the file cannot be read; the subscribers see the same error
+	 *  @throws InterruptedException if the calling thread is interrupted while
+	 *			waiting for a subscriber with <code>POLICY_BLOCK</code>
+	 */
+	public void run( Span span ) throws IOException, InterruptedException {
+		final long	stop;
+		long		pos;
+		int			len;
+		SharedBlock	b;
+		IOException	error	= null;
+
+		try {
+			pos		= span == null ? 0L : Math.max( 0L, span.start );
+			stop	= span == null ? sf.getFrameNum() : Math.min( sf.getFrameNum(), span.stop );
+			while( !stopped && (pos < stop) ) {
+				len	= (int) Math.min( blockFrames, stop - pos );
+				b	= obtain();
+				try {
+					sf.readFrames( b.getBlock(), pos, len );
+					blocksRead++;
+					for( Subscription sub : subs ) {
+						if( sub.isCancelled() ) {
+							subs.remove( sub );
+						} else {
+							sub.offer( b );
+						}
+					}
+				}
+				finally {
+					b.release();		// the reader's reference
+				}
+				pos += len;
+			}
+		}
+		catch( IOException e1 ) {
+			error = e1;
+			throw e1;
+		}
+		finally {
+			for( Subscription sub : subs ) sub.end( error );
+		}
+	}
+
+	/**
+	 *  Makes <code>run</code> return after the current block.
+	 *  May be called from any thread.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 *  Returns the number of blocks read and decoded
+	 */
+	public long getBlocksRead() {
+		return blocksRead;
+	}
+
+	/**
+	 *  Returns the number of blocks allocated, which stays at the number of
+	 *  blocks in use at the same time as blocks are recycled
+	 */
+	public int getBlocksAllocated() {
+		return blocksAllocated;
+	}
+
+	// ---- SharedBlock ----
+
+	void recycle( SharedBlock b ) {
+		free.add( b );
+	}
+
+	private SharedBlock obtain() {
+		SharedBlock b = free.poll();
+
+		if( b == null ) {
+			b = new SharedBlock( this, new FrameBlock( sf.getChannelNum(), blockFrames, layout ));
+			blocksAllocated++;
+		}
+		b.acquire();
+		return b;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ *  Flow.java
+ *
+ */
+
+package surf.bus;
+
+/**
+ *  The interfaces of reactive streams with demand-driven backpressure,
+ *  declared as in <code>java.util.concurrent.Flow</code> of Java 9 and
+ *  later, which is not available to this library. Implementations can be
+ *  adapted to the standard interfaces one to one, method by method.
+ *  <p>
+ *  A subscriber receives <code>onSubscribe</code> first, then at most as
+ *  many <code>onNext</code> calls as it has requested through its
+ *  subscription, and finally either <code>onComplete</code> or
+ *  <code>onError</code>, unless it cancels first. The calls to one
+ *  subscriber are never concurrent.
+ *
+ *  @see	FramePublisher
+ */
+public final class Flow {
+
+	private Flow() { /* empty */ }
+
+	/**
+	 *  A source of items for any number of subscribers
+	 */
+	public interface Publisher<T> {
+		public void subscribe( Subscriber<? super T> subscriber );
+	}
+
+	/**
+	 *  A receiver of items
+	 */
+	public interface Subscriber<T> {
+		public void onSubscribe( Subscription subscription );
+
+		public void onNext( T item );
+
+		public void onError( Throwable error );
+
+		public void onComplete();
+	}
+
+	/**
+	 *  The link between one publisher and one subscriber
+	 */
+	public interface Subscription {
+		/**
+		 *  Allows the publisher to deliver <code>n</code> more items.
+		 *  A value of zero or less is answered with <code>onError</code>.
+		 */
+		public void request( long n );
+
+		/**
+		 *  Stops the delivery of items, possibly after some more items
+		 *  which are already on their way.
+		 */
+		public void cancel();
+	}
+
+	/**
+	 *  A stage which is both subscriber and publisher
+	 */
+	public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+		// no additional methods
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ *  FramePublisher.java
+ *
+ */
+
+package surf.bus;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import surf.file.FrameBlock;
+import surf.file.IOUtil;
+import surf.file.SURFFile;
+import surf.file.SURFFileDescr;
+import surf.file.Span;
+
+/**
+ *  Publishes the frames of a SURF file as a reactive stream of frame
+ *  blocks. Frames are only read when the subscriber has requested them,
+ *  so a slow subscriber slows down the reading instead of being flooded,
+ *  and no thread waits for the subscriber in between.
+ *  <p>
+ *  Each subscription opens the file on its own and has its own position,
+ *  so any number of subscribers may read the whole file or different
+ *  ranges of it, given by frames (<code>subscribe( Subscriber, Span )</code>)
+ *  or by wall clock time (<code>subscribe( Subscriber, long, long )</code>).
+ *  Reading and the calls to the subscriber happen on the executor of the
+ *  publisher; each call to <code>onNext</code> delivers one block, holding
+ *  the frames as stored in the file, without calibration.
+ *  <p>
+ *  The subscriber owns the blocks it receives. A subscriber which is done
+ *  with a block may hand it back through <code>recycle</code>, so that the
+ *  publisher reuses its memory instead of allocating a new block.
+ *  <pre>
+ *	new FramePublisher( file, 4096 ).subscribe( new Flow.Subscriber&lt;FrameBlock&gt;() {
+ *		private Flow.Subscription s;
+ *		public void onSubscribe( Flow.Subscription s ) { this.s = s; s.request( 1 ); }
+ *		public void onNext( FrameBlock b ) { ...; publisher.recycle( b ); s.request( 1 ); }
+ *		...
+ *	});
+ *  </pre>
+ *
+ *  @see	Flow
+ *  @see	BlockBus
+ */
+public class FramePublisher
+implements Flow.Publisher<FrameBlock> {
+
+	private static final int		MAX_BATCH	= 16;	// blocks delivered before yielding the thread
+
+	private static ExecutorService	defaultExecutor	= null;
+
+	private final File				file;
+	private final int				blockFrames;
+	private final int				layout;
+	private final Executor			executor;
+
+	private final Queue<FrameBlock>	free		= new ConcurrentLinkedQueue<FrameBlock>();
+
+	/**
+	 *  Creates a publisher of planar blocks which runs on a shared
+	 *  pool of daemon threads.
+	 *
+	 *  @param	file		the file to publish
+	 *  @param	blockFrames	the maximum number of frames per block
+	 */
+	public FramePublisher( File file, int blockFrames ) {
+		this( file, blockFrames, FrameBlock.LAYOUT_PLANAR, getDefaultExecutor() );
+	}
+
+	/**
+	 *  @param	file		the file to publish
+	 *  @param	blockFrames	the maximum number of frames per block
+	 *  @param	layout		<code>FrameBlock.LAYOUT_PLANAR</code> or <code>FrameBlock.LAYOUT_INTERLEAVED</code>
+	 *  @param	executor	runs the reading and the calls to the subscribers; as
+	 *						reading blocks on the disk, this should not be an event loop
+	 */
+	public FramePublisher( File file, int blockFrames, int layout, Executor executor ) {
+		if( blockFrames <= 0 ) throw new IllegalArgumentException( "blockFrames " + blockFrames );
+		if( (layout != FrameBlock.LAYOUT_INTERLEAVED) && (layout != FrameBlock.LAYOUT_PLANAR) ) {
+			throw new IllegalArgumentException( "layout " + layout );
+		}
+		this.file			= file;
+		this.blockFrames	= blockFrames;
+		this.layout			= layout;
+		this.executor		= executor;
+	}
+
+	private static synchronized Executor getDefaultExecutor() {
+		if( defaultExecutor == null ) {
+			defaultExecutor = Executors.newCachedThreadPool( new ThreadFactory() {
+				private int count = 0;
+
+				public synchronized Thread newThread( Runnable r ) {
+					final Thread t = new Thread( r, "SURF publisher " + (++count) );
+					t.setDaemon( true );
+					return t;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 *  Publishes all frames of the file
+	 */
+	public void subscribe( Flow.Subscriber<? super FrameBlock> subscriber ) {
+		subscribe( subscriber, null );
+	}
+
+	/**
+	 *  Publishes a range of frames.
+	 *
+	 *  @param	span	the frames to publish, clipped to the file, or
+	 *					<code>null</code> for the whole file
+	 */
+	public void subscribe( Flow.Subscriber<? super FrameBlock> subscriber, Span span ) {
+		if( subscriber == null ) throw new NullPointerException();
+		new FrameSubscription( subscriber, span, false, 0L, 0L ).schedule();
+	}
+
+	/**
+	 *  Publishes the frames recorded within a time window, using the
+	 *  initial timestamp and sample rate of the file. If the timestamp
+	 *  of the file cannot be parsed, the subscriber receives an error.
+	 *
+	 *  @param	startMillis	the start of the window, in milliseconds since 1970
+	 *  @param	stopMillis	the end of the window, exclusive
+	 *
+	 *  @see	SURFFileDescr#getFrameAtTime( long )
+	 */
+	public void subscribe( Flow.Subscriber<? super FrameBlock> subscriber, long startMillis, long stopMillis ) {
+		if( subscriber == null ) throw new NullPointerException();
+		new FrameSubscription( subscriber, null, true, startMillis, stopMillis ).schedule();
+	}
+
+	/**
+	 *  Hands back a block received from this publisher, which is then reused
+	 *  for a later block of any subscription. The caller must not access
+	 *  the block afterwards.
+	 */
+	public void recycle( FrameBlock block ) {
+		if( (block.getCapacity() == blockFrames) && (block.getLayout() == layout) ) free.add( block );
+	}
+
+	private FrameBlock obtain( int channels ) {
+		FrameBlock b;
+
+		while( (b = free.poll()) != null ) {
+			if( b.getChannelNum() == channels ) return b;
+		}
+		return new FrameBlock( channels, blockFrames, layout );
+	}
+
+	/*
+	 *	All signals to the subscriber are sent by run(), which only ever
+	 *	runs on one thread at a time: whoever increments wip from zero
+	 *	schedules it, and it keeps going until it has seen every increment.
+	 */
+	private class FrameSubscription
+	implements Flow.Subscription, Runnable {
+
+		private final Flow.Subscriber<? super FrameBlock>	subscriber;
+		private final Span			span;
+		private final boolean		byTime;
+		private final long			startMillis, stopMillis;
+
+		private final AtomicLong	demand		= new AtomicLong( 0L );
+		private final AtomicInteger	wip			= new AtomicInteger( 0 );
+		private volatile boolean	cancelled	= false;
+		private volatile IllegalArgumentException	badRequest	= null;
+
+		// only accessed by run()
+		private boolean				subscribed	= false;
+		private boolean				done		= false;
+		private SURFFile			sf			= null;
+		private long				pos, stop;
+
+		FrameSubscription( Flow.Subscriber<? super FrameBlock> subscriber, Span span, boolean byTime,
+						   long startMillis, long stopMillis ) {
+			this.subscriber		= subscriber;
+			this.span			= span;
+			this.byTime			= byTime;
+			this.startMillis	= startMillis;
+			this.stopMillis		= stopMillis;
+		}
+
+		public void request( long n ) {
+			long d;
+
+			if( n <= 0L ) {
+				badRequest = new IllegalArgumentException( "request " + n );
+			} else {
+				do {
+					d = demand.get();
+					if( d == Long.MAX_VALUE ) break;
+				} while( !demand.compareAndSet( d, d + n < 0L ? Long.MAX_VALUE : d + n ));
+			}
+			schedule();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		void schedule() {
+			if( wip.getAndIncrement() == 0 ) executor.execute( this );
+		}
+
+		public void run() {
+			int missed = 1;
+
+			do {
+				if( !drain() ) {
+					executor.execute( this );		// more to deliver, wip stays above zero
+					return;
+				}
+				missed = wip.addAndGet( -missed );
+			} while( missed != 0 );
+		}
+
+		// returns false if it stopped early to let other tasks run
+		private boolean drain() {
+			FrameBlock	b;
+			int			len;
+
+			if( done ) return true;
+			try {
+				if( !subscribed ) {
+					subscribed = true;
+					subscriber.onSubscribe( this );
+				}
+				if( cancelled ) {
+					close();
+					return true;
+				}
+				if( badRequest != null ) {
+					close();
+					subscriber.onError( badRequest );
+					return true;
+				}
+				if( sf == null ) {
+					try {
+						open();
+					}
+					catch( IOException e1 ) {
+						close();
+						subscriber.onError( e1 );
+						return true;
+					}
+				}
+				for( int i = 0; (pos < stop) && (demand.get() > 0L); i++ ) {
+					if( i == MAX_BATCH ) return false;
+					if( cancelled ) {
+						close();
+						return true;
+					}
+					len = (int) Math.min( blockFrames, stop - pos );
+					b	= obtain( sf.getChannelNum() );
+					try {
+						sf.readFrames( b, pos, len );
+					}
+					catch( IOException e1 ) {
+						close();
+						subscriber.onError( e1 );
+						return true;
+					}
+					pos += len;
+					if( demand.get() != Long.MAX_VALUE ) demand.decrementAndGet();
+					subscriber.onNext( b );
+				}
+				if( pos >= stop ) {
+					close();
+					if( !cancelled ) subscriber.onComplete();
+				}
+			}
+			catch( RuntimeException e1 ) {		// a failing subscriber is treated as cancelled
+				cancelled = true;
+				close();
+			}
+			return true;
+		}
+
+		private void open() throws IOException {
+			final long frames;
+
+			sf		= SURFFile.openAsRead( file );
+			frames	= sf.getFrameNum();
+			if( span != null ) {
+				pos		= Math.max( 0L, span.start );
+				stop	= Math.min( frames, span.stop );
+			} else if( byTime ) {
+				try {
+					pos		= Math.max( 0L, sf.getDescr().getFrameAtTime( startMillis ));
+					stop	= Math.min( frames, sf.getDescr().getFrameAtTime( stopMillis ));
+				}
+				catch( ParseException e1 ) {
+					throw IOUtil.map( e1 );
+				}
+			} else {
+				pos		= 0L;
+				stop	= frames;
+			}
+		}
+
+		private void close() {
+			done = true;
+			if( sf != null ) sf.cleanUp();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ *  SharedBlock.java
+ *
+ */
+
+package surf.bus;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import surf.file.FrameBlock;
+
+/**
+ *  A read-only, reference counted view of a decoded frame block which
+ *  a <code>BlockBus</code> hands to all of its subscribers. Each
+ *  subscriber receives its own reference and must <code>release</code>
+ *  it once it has processed the block; when the last reference is
+ *  released, the bus reuses the block's memory for a later block.
+ *  A block must not be accessed after it has been released.
+ *  <p>
+ *  To keep a block beyond the processing of one subscriber, e.g. to
+ *  hand it to another thread, take an additional reference with
+ *  <code>retain</code> and release it there.
+ *
+ *  @see	BlockBus
+ */
+public class SharedBlock {
+
+	private final BlockBus		bus;
+	private final FrameBlock	block;
+	private final AtomicInteger	refs	= new AtomicInteger( 0 );
+
+	SharedBlock( BlockBus bus, FrameBlock block ) {
+		this.bus	= bus;
+		this.block	= block;
+	}
+
+	public int getChannelNum() {
+		return block.getChannelNum();
+	}
+
+	/**
+	 *  Returns the number of frames in the block
+	 */
+	public int getFrameNum() {
+		return block.getFrameNum();
+	}
+
+	/**
+	 *  Returns the file position of the first frame in the block
+	 */
+	public long getStartFrame() {
+		return block.getStartFrame();
+	}
+
+	/**
+	 *  Returns one sample.
+	 *
+	 *  @param  ch		channel index
+	 *  @param  frame	frame index relative to the start of the block
+	 */
+	public float get( int ch, int frame ) {
+		return block.get( ch, frame );
+	}
+
+	/**
+	 *  Copies the frames of one channel onto the heap.
+	 *
+	 *  @see	FrameBlock#get( int, int, float[], int, int )
+	 */
+	public void get( int ch, int frame, float[] dst, int off, int len ) {
+		block.get( ch, frame, dst, off, len );
+	}
+
+	/**
+	 *  Returns a read-only view of the frames of one channel.
+	 *  Only available if the bus decodes planar blocks.
+	 *
+	 *  @see	FrameBlock#getChannel( int )
+	 */
+	public FloatBuffer getChannel( int ch ) {
+		return block.getChannel( ch ).asReadOnlyBuffer();
+	}
+
+	/**
+	 *  Returns a read-only view of all samples, in the layout of the bus
+	 *
+	 *  @see	FrameBlock#getData()
+	 */
+	public FloatBuffer getData() {
+		return block.getData().asReadOnlyBuffer();
+	}
+
+	/**
+	 *  Takes an additional reference to the block
+	 *
+	 *  @throws IllegalStateException if the block has already been released
+	 */
+	public SharedBlock retain() {
+		int n;
+		do {
+			n = refs.get();
+			if( n <= 0 ) throw new IllegalStateException( "block released" );
+		} while( !refs.compareAndSet( n, n + 1 ));
+		return this;
+	}
+
+	/**
+	 *  Gives up a reference to the block
+	 *
+	 *  @throws IllegalStateException if all references have already been released
+	 */
+	public void release() {
+		final int n = refs.decrementAndGet();
+		if( n == 0 ) {
+			bus.recycle( this );
+		} else if( n < 0 ) {
+			refs.incrementAndGet();
+			throw new IllegalStateException( "block released" );
+		}
+	}
+
+	// ---- bus ----
+
+	FrameBlock getBlock() {
+		return block;
+	}
+
+	// the reader's reference to a block taken from the pool
+	void acquire() {
+		refs.set( 1 );
+	}
+}
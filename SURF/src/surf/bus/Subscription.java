@@ -0,0 +1,185 @@
+/*
+ *  Subscription.java
+ *
+ */
+
+package surf.bus;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ *  The cursor of one subscriber of a <code>BlockBus</code>. Blocks are
+ *  queued for the subscriber until it takes them, so each subscriber
+ *  consumes the stream at its own pace. What happens when the queue is
+ *  full depends on the policy of the subscription:
+ *  <ul>
+ *  <li><code>POLICY_BLOCK</code> makes the reader wait, so the slowest of
+ *	these subscribers paces the whole bus and no block is lost, e.g. for
+ *	an archiver or a detector</li>
+ *  <li><code>POLICY_DROP</code> discards the new block, so the subscriber
+ *	keeps a contiguous stretch of older blocks</li>
+ *  <li><code>POLICY_SAMPLE</code> discards the oldest queued block, so
+ *	the subscriber always continues with recent data, e.g. for a chart</li>
+ *  </ul>
+ *
+ *  @see	BlockBus#subscribe( int, int )
+ */
+public class Subscription {
+
+	/**
+	 *  policy : the reader waits until the subscriber has taken a block
+	 */
+	public static final int POLICY_BLOCK	= 0;
+	/**
+	 *  policy : new blocks are dropped while the queue is full
+	 */
+	public static final int POLICY_DROP		= 1;
+	/**
+	 *  policy : the oldest queued block is dropped to make room for a new one
+	 */
+	public static final int POLICY_SAMPLE	= 2;
+
+	private final int						policy;
+	private final int						capacity;
+	private final ArrayDeque<SharedBlock>	queue;
+
+	private boolean							ended		= false;
+	private boolean							cancelled	= false;
+	private long							delivered	= 0L;
+	private long							dropped		= 0L;
+	private long							position	= -1L;
+	private IOException						error		= null;
+
+	Subscription( int policy, int capacity ) {
+		if( (policy < POLICY_BLOCK) || (policy > POLICY_SAMPLE) ) throw new IllegalArgumentException( "policy " + policy );
+		if( capacity < 1 ) throw new IllegalArgumentException( "capacity " + capacity );
+		this.policy		= policy;
+		this.capacity	= capacity;
+		queue			= new ArrayDeque<SharedBlock>( capacity );
+	}
+
+	public int getPolicy() {
+		return policy;
+	}
+
+	/**
+	 *  Returns the next block, waiting until one is available. The
+	 *  caller owns a reference to the block and must release it.
+	 *
+	 *  @return the next block, or <code>null</code> when the stream has
+	 *			ended or the subscription has been cancelled
+	 *
+	 *  @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public synchronized SharedBlock take() throws InterruptedException {
+		while( queue.isEmpty() && !ended && !cancelled ) wait();
+		return next();
+	}
+
+	/**
+	 *  Returns the next block if one is available, without waiting.
+	 *  The caller owns a reference to the block and must release it.
+	 *
+	 *  @return the next block, or <code>null</code>
+	 */
+	public synchronized SharedBlock poll() {
+		return next();
+	}
+
+	/**
+	 *  Returns whether the stream has ended and all blocks have been taken,
+	 *  or the subscription has been cancelled
+	 */
+	public synchronized boolean isDone() {
+		return( cancelled || (ended && queue.isEmpty()) );
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 *  Ends the subscription. Queued blocks are released, and the bus
+	 *  no longer waits for this subscriber.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		while( !queue.isEmpty() ) queue.poll().release();
+		notifyAll();
+	}
+
+	/**
+	 *  Returns the error which ended the stream early,
+	 *  or <code>null</code>
+	 */
+	public synchronized IOException getError() {
+		return error;
+	}
+
+	/**
+	 *  Returns the number of blocks taken by the subscriber
+	 */
+	public synchronized long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 *  Returns the number of blocks which were dropped because the queue was full
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 *  Returns the file position behind the last block taken,
+	 *  or <code>-1</code> if none has been taken
+	 */
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	private SharedBlock next() {
+		final SharedBlock b = queue.poll();
+		if( b != null ) {
+			delivered++;
+			position = b.getStartFrame() + b.getFrameNum();
+			notifyAll();		// a blocked reader may continue
+		}
+		return b;
+	}
+
+	// ---- bus ----
+
+	// queues a block according to the policy, taking a reference if it is queued
+	synchronized void offer( SharedBlock b ) throws InterruptedException {
+		if( cancelled ) return;
+		if( queue.size() >= capacity ) {
+			switch( policy ) {
+			case POLICY_BLOCK:
+				while( (queue.size() >= capacity) && !cancelled ) wait();
+				if( cancelled ) return;
+				break;
+			case POLICY_DROP:
+				dropped++;
+				return;
+			default:
+				queue.poll().release();
+				dropped++;
+				break;
+			}
+		}
+		queue.add( b.retain() );
+		notifyAll();
+	}
+
+	synchronized void end( IOException e ) {
+		ended	= true;
+		error	= e;
+		notifyAll();
+	}
+}
@@ -196,22 +196,18 @@ public class SURFRead {
 		
 		private  SimpleDateFormat dateFormat 	= new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
 		
-		private float[] calibrationConstants;
-		
 		public ReadPowerAux() {
 			
 			try {
 				powerReader = new SURFPowerReader(file_IN);		
 				
 				datetime = SURF_file_IN.getDescr().SURF_initial_timestamp;
-				calibrationConstants = SURF_file_IN.getDescr().SURF_channel_calibration;
 				timestamp = dateFormat.parse(datetime).getTime();
 				
 				powerCalculator = new PowerCalculator(timestamp);
-				powerCalculator.setCalibatrionConstants(calibrationConstants);
 				powerCalculator.setChannelSamples(powerReader.getAudioDataQueue());
 				
-				powerChart = new PowerChart(5000);
+				powerChart = new PowerChart(5000, 25);
 				powerChart.setPowerSamplesQueue(powerCalculator.getPowerSamplesQueue());
 				
 				// start all this crap
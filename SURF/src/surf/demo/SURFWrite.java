@@ -3,55 +3,68 @@ package surf.demo;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.json.simple.JSONValue;
 
+import surf.demo.model.BLUEDGroundTruthLabelDTO;
 import surf.demo.service.LoadBLUEDGroundTruthLabelsJob;
 import surf.demo.util.NILMMetadata_BLUED;
 import surf.file.Annotation;
 import surf.file.Info;
 import surf.file.Marker;
-import surf.file.Region;
 import surf.file.SURFFile;
 import surf.file.SURFFileDescr;
 
 import com.almworks.sqlite4java.SQLiteQueue;
 
+/**
+ * Converts a directory of raw BLUED wave files (e.g. BLUED_PhaseB_DayONE_wave.wav) into SURF files,
+ * adding the ground truth labels from the SQLite database and the NILM metadata.
+ *
+ * Usage: SURFWrite [input dir] [database] [metadata dir] [output dir] [threads]
+ *
+ * The label positions in the database count from the start of the first day of each phase, so the
+ * files of one phase are ordered by day and each file gets the labels that fall within its frames.
+ * The files are converted in parallel by a fixed pool of threads (one per core by default).
+ */
 public class SURFWrite {
 
-	private static File database_file = new File("assets/BLUED.db");
-	private static SQLiteQueue sqliteQueue = new SQLiteQueue(database_file);
-	
-	private static File file_IN = new File("assets/BLUED_PhaseB_DayONE_wave.wav");
-	private static File file_OUT;
-	
-	private static SURFFile SURF_file_IN;
-	private static SURFFile SURF_file_OUT;
-	
-	private static SURFFileDescr SURF_descr_IN;
-	private static SURFFileDescr SURF_descr_OUT;
-	
-	private static List<Marker> labels 			= new ArrayList<Marker>();
-	private static List<Marker> notes 			= new ArrayList<Marker>();
-	private static List<Region> regions			= new ArrayList<Region>();
-	
-	private static List<Annotation> metadata 	= new ArrayList<Annotation>();
-	private static List<Annotation> comments	= new ArrayList<Annotation>();
-	
-	private static Info	SURF_info		= new Info();
-	
+	private static final String INITIAL_TIMESTAMP	= "2011-10-20 11:58:32.623";	// first frame of day one
+	private static final String TIMEZONE			= "EST";
+	private static final float[] CALIBRATION		= new float[]{19200, 19200};
+
+	private static final Pattern FILE_PATTERN	= Pattern.compile("(.*)Phase([A-Z])_Day(\\w+?)_wave\\.wav");
+	private static final List<String> DAYS		= Arrays.asList("ONE", "TWO", "THREE", "FOUR", "FIVE", "SIX", "SEVEN",
+																"EIGHT", "NINE", "TEN");
+
+	private static final int BLOCK_FRAMES		= 65536;
+	private static final int HEADER_RESERVE		= 16384;		// room for labels added later
+
 	private static DecimalFormat df 			= new DecimalFormat("#.###");
 	private static SimpleDateFormat dateFormat 	= new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-	
+
 	// ------ Methods -----
-	
-	private static String Label2JSON(surf.demo.model.BLUEDGroundTruthLabelDTO label) {
+
+	private static String Label2JSON(BLUEDGroundTruthLabelDTO label) {
 		Map<String, Object> obj = new LinkedHashMap<String, Object>();
 		obj.put("SURF_ID", label.id);
 		obj.put("App_ID", new Integer(label.appliance_id));
@@ -63,90 +76,231 @@ public class SURFWrite {
 		obj.put("Type", new Integer((label.delta_P > 0)? 1 : -1));
 		return JSONValue.toJSONString(obj);
 	}
-	
-	public static void main(String[] args) {
-		
-		file_OUT = new File( "output/" + Calendar.getInstance().getTimeInMillis() + "_" + file_IN.getName() );
-		
-		// Start the sqlite jobs execution queue
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		File dir_IN			= new File(args.length > 0 ? args[0] : "assets");
+		File database_file	= new File(args.length > 1 ? args[1] : "assets/BLUED.db");
+		File metadata_dir	= new File(args.length > 2 ? args[2] : "assets");
+		File dir_OUT		= new File(args.length > 3 ? args[3] : "output");
+		int threads			= args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+		List<Job> jobs = findJobs(dir_IN, dir_OUT);
+		if(jobs.isEmpty()) {
+			System.out.println("No raw BLUED wave files found in " + dir_IN.getAbsolutePath());
+			return;
+		}
+
+		// Load all the labels once; the database is only read here, not by the conversion threads
+		SQLiteQueue sqliteQueue = new SQLiteQueue(database_file);
 		sqliteQueue.start();
-		
-		// Load all the labels
-		surf.demo.model.BLUEDGroundTruthLabelDTO[] BLUED_labels = 
-				sqliteQueue.execute(new LoadBLUEDGroundTruthLabelsJob<surf.demo.model.BLUEDGroundTruthLabelDTO[]>
-				("phase = 'B' and position <= 5420818")).complete();
-		
-		// For each label create a marker
-		for(int i = 0; i < BLUED_labels.length; i++)
-			Marker.add(labels, new Marker( BLUED_labels[i].position, Label2JSON( BLUED_labels[i] ) ) );
-		
+		BLUEDGroundTruthLabelDTO[] BLUED_labels;
 		try {
-			SURF_file_IN 	= SURFFile.openAsRead(file_IN);
-			SURF_descr_IN 	= SURF_file_IN.getDescr();
-			
-			SURF_descr_OUT 	= new SURFFileDescr();
-			
-			SURF_descr_OUT.type 		= SURF_descr_IN.type;
-			SURF_descr_OUT.sampleFormat = SURF_descr_IN.sampleFormat;
-			SURF_descr_OUT.channels 	= SURF_descr_IN.channels;
-			SURF_descr_OUT.rate 		= SURF_descr_IN.rate;
-			SURF_descr_OUT.bitsPerSample= SURF_descr_IN.bitsPerSample;
-			SURF_descr_OUT.file 		= file_OUT;
-			
-			// SURF mandatory configuration fields
-			SURF_descr_OUT.SURF_initial_timestamp 	= "2011-10-20 11:58:32.623";
-			SURF_descr_OUT.SURF_timezone 			= "EST";
-			SURF_descr_OUT.SURF_sample_rate 		= 60f;
-			SURF_descr_OUT.SURF_channel_calibration = new float[]{19200, 19200};
-			
-			// SURF (optional) info chunk
+			BLUED_labels = sqliteQueue.execute(new LoadBLUEDGroundTruthLabelsJob<BLUEDGroundTruthLabelDTO[]>()).complete();
+		} finally {
+			sqliteQueue.stop(true);
+		}
+
+		// The metadata is the same for every file
+		List<Annotation> metadata = new ArrayList<Annotation>();
+		metadata.add( new Annotation( NILMMetadata_BLUED.getRawDataFromFile(new File(metadata_dir, "dataset.yaml").getPath()) ));
+		metadata.add( new Annotation( NILMMetadata_BLUED.getRawDataFromFile(new File(metadata_dir, "meter_devices.yaml").getPath()) ));
+		metadata.add( new Annotation( NILMMetadata_BLUED.getRawDataFromFile(new File(metadata_dir, "building1.yaml").getPath()) ));
+
+		// For each file create the markers of the labels within its frames
+		for(Job job : jobs) {
+			for(int i = 0; i < BLUED_labels.length; i++) {
+				BLUEDGroundTruthLabelDTO label = BLUED_labels[i];
+				if(label.phase.equals(job.phase) && label.position >= job.offset && label.position < job.offset + job.length)
+					Marker.add(job.labels, new Marker( label.position - job.offset, Label2JSON( label ) ) );
+			}
+			job.metadata = metadata;
+		}
+
+		if(!dir_OUT.isDirectory() && !dir_OUT.mkdirs())
+			throw new IOException("Cannot create " + dir_OUT.getAbsolutePath());
+
+		System.out.println("Converting " + jobs.size() + " files with " + threads + " threads");
+		long start = System.currentTimeMillis();
+		long bytes = 0;
+		int failed = 0;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for(Job job : jobs)
+			results.add(pool.submit(job));
+		pool.shutdown();
+
+		for(int i = 0; i < results.size(); i++) {
+			try {
+				bytes += results.get(i).get();
+			} catch (ExecutionException e) {
+				failed++;
+				System.out.println(jobs.get(i).file_IN.getName() + ": FAILED (" + e.getCause() + ")");
+				e.getCause().printStackTrace();
+			}
+		}
+
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println(String.format("Done: %d of %d files, %.1f MB in %.1f s (%.1f MB/s)", jobs.size() - failed,
+				jobs.size(), bytes / 1048576.0, time / 1000.0, bytes / 1048576.0 / (time / 1000.0)));
+	}
+
+	/*
+	 * Finds the raw wave files, orders the files of each phase by day, and computes the
+	 * position of each file within its phase from the lengths of the preceding days.
+	 */
+	private static List<Job> findJobs(File dir_IN, File dir_OUT) throws IOException {
+		File[] files = dir_IN.listFiles();
+		List<Job> jobs = new ArrayList<Job>();
+		if(files == null)
+			throw new IOException(dir_IN.getAbsolutePath() + " is not a directory");
+
+		for(File f : files) {
+			Matcher m = FILE_PATTERN.matcher(f.getName());
+			if(!m.matches())
+				continue;
+			Job job = new Job();
+			job.file_IN		= f;
+			job.file_OUT	= new File(dir_OUT, m.group(1) + "Phase" + m.group(2) + "_Day" + m.group(3) + "_surf.wav");
+			job.phase		= m.group(2);
+			job.day			= DAYS.indexOf(m.group(3).toUpperCase()) + 1;
+			if(job.day == 0) {
+				try {
+					job.day = Integer.parseInt(m.group(3));
+				} catch (NumberFormatException e) {
+					throw new IOException(f.getName() + ": unknown day " + m.group(3));
+				}
+			}
+			SURFFile SURF_file_IN = SURFFile.openAsRead(f);
+			job.length = SURF_file_IN.getFrameNum();
+			job.rate = SURF_file_IN.getDescr().rate;
+			SURF_file_IN.close();
+			jobs.add(job);
+		}
+
+		Collections.sort(jobs, new Comparator<Job>() {
+			public int compare(Job j1, Job j2) {
+				int c = j1.phase.compareTo(j2.phase);
+				return c != 0 ? c : j1.day - j2.day;
+			}
+		});
+
+		for(int i = 1; i < jobs.size(); i++) {
+			Job prev = jobs.get(i - 1);
+			if(prev.phase.equals(jobs.get(i).phase))
+				jobs.get(i).offset = prev.offset + prev.length;
+		}
+		return jobs;
+	}
+
+	// ------ Conversion of one file -----
+
+	private static class Job implements Callable<Long> {
+		File file_IN;
+		File file_OUT;
+		String phase;
+		int day;
+		long offset;
+		long length;
+		double rate;
+		List<Marker> labels = new ArrayList<Marker>();
+		List<Annotation> metadata;
+
+		@Override
+		public Long call() throws IOException, ParseException {
+			SURFFile SURF_file_IN = SURFFile.openAsRead(file_IN);
+			SURFFile SURF_file_OUT = null;
+			try {
+				SURFFileDescr SURF_descr_IN = SURF_file_IN.getDescr();
+				SURFFileDescr SURF_descr_OUT = new SURFFileDescr();
+
+				SURF_descr_OUT.type 		= SURF_descr_IN.type;
+				SURF_descr_OUT.sampleFormat = SURF_descr_IN.sampleFormat;
+				SURF_descr_OUT.channels 	= SURF_descr_IN.channels;
+				SURF_descr_OUT.rate 		= SURF_descr_IN.rate;
+				SURF_descr_OUT.bitsPerSample= SURF_descr_IN.bitsPerSample;
+				SURF_descr_OUT.file 		= file_OUT;
+
+				// SURF mandatory configuration fields; each day starts where the previous one ended
+				SURF_descr_OUT.SURF_initial_timestamp 	= getInitialTimestamp();
+				SURF_descr_OUT.SURF_timezone 			= TIMEZONE;
+				SURF_descr_OUT.SURF_sample_rate 		= (float) rate;
+				SURF_descr_OUT.SURF_channel_calibration = CALIBRATION.clone();
+
+				SURF_descr_OUT.setProperty(SURFFileDescr.KEY_LABELS, labels);
+				SURF_descr_OUT.setProperty(SURFFileDescr.KEY_INFO, createInfo());
+				SURF_descr_OUT.setProperty(SURFFileDescr.KEY_METADATA, metadata);
+
+				List<Annotation> comments = new ArrayList<Annotation>();
+				comments.add( new Annotation("This is day " + day + " of BLUED phase " + phase + "."));
+				comments.add(new Annotation("The metadata schema being used is the one from the NILM metadata project"
+						+ " (see: https://github.com/nilmtk/nilm_metadata)"));
+				comments.add( new Annotation("The original metadata files can be found in the assets folder of the"
+						+ " source code (see: http://github.com/alspereira/surf)") );
+				SURF_descr_OUT.setProperty(SURFFileDescr.KEY_COMMENTS, comments);
+
+				// The output has as many frames as the input, so allocate it in one go
+				SURF_file_OUT = SURFFile.openAsWrite(SURF_descr_OUT, SURF_file_IN.getFrameNum(), HEADER_RESERVE);
+
+				// Overlap reading, converting and writing: read ahead on the input, encode on a background thread
+				SURF_file_IN.setReadAhead(2, 1 << 20);
+				SURF_file_OUT.setAsyncWrite(3, BLOCK_FRAMES);
+
+				float[][] buf = new float[SURF_descr_IN.channels][BLOCK_FRAMES];
+				long total = SURF_file_IN.getFrameNum();
+				long start = System.currentTimeMillis();
+				int reported = 0;
+				for(long pos = 0; pos < total; ) {
+					int chunk = (int) Math.min(BLOCK_FRAMES, total - pos);
+					SURF_file_IN.readFrames(buf, 0, chunk);
+					SURF_file_OUT.writeFrames(buf, 0, chunk);
+					pos += chunk;
+					int percent = (int) (pos * 100 / total);
+					if(percent / 25 > reported / 25) {
+						reported = percent;
+						System.out.println(file_IN.getName() + ": " + percent + "%");
+					}
+				}
+				SURF_file_OUT.close();
+				SURF_file_OUT = null;
+
+				long bytes = file_OUT.length();
+				long time = Math.max(1, System.currentTimeMillis() - start);
+				System.out.println(String.format("%s -> %s: %d labels, %.1f MB, %.1f MB/s", file_IN.getName(),
+						file_OUT.getName(), labels.size(), bytes / 1048576.0, bytes / 1048576.0 / (time / 1000.0)));
+				return bytes;
+			} finally {
+				SURF_file_IN.cleanUp();
+				if(SURF_file_OUT != null)
+					SURF_file_OUT.cleanUp();
+			}
+		}
+
+		private String getInitialTimestamp() throws ParseException {
+			SimpleDateFormat format = new SimpleDateFormat(SURFFileDescr.TIMESTAMP_PATTERN);
+			format.setTimeZone(TimeZone.getTimeZone(TIMEZONE));
+			long millis = format.parse(INITIAL_TIMESTAMP).getTime() + Math.round(offset * 1000.0 / rate);
+			return format.format(new Date(millis));
+		}
+
+		private Info createInfo() {
+			Info SURF_info = new Info();
 			SURF_info.archival_location = "http://nilm.cmubi.org";
-			SURF_info.comments 			= "This is the SURF version of the first 24 hours of the BLUED dataset phase B at 60 Hz";
+			SURF_info.comments 			= "This is the SURF version of day " + day + " of the BLUED dataset phase " + phase + " at 60 Hz";
 			SURF_info.commissioner 		= "Mario Bergés (marioberges@cmu.edu)";
 			SURF_info.copyright 		= "Inherited from the original source";
-			SURF_info.creation_date 	= dateFormat.format( Calendar.getInstance().getTime() );
+			synchronized(dateFormat) {
+				SURF_info.creation_date = dateFormat.format( Calendar.getInstance().getTime() );
+			}
 			SURF_info.file_creator		= "Lucas Pereira (lucas@m-iti.org)";
 			SURF_info.keywords 			= "NILM, dataset, event-based";
-			SURF_info.name 				= "SURF-BLUED: Phase B at 60 Hz (First 24 hours)";
+			SURF_info.name 				= "SURF-BLUED: Phase " + phase + " at 60 Hz (Day " + day + ")";
 			SURF_info.product 			= "Event-based NILM performance evaluation";
 			SURF_info.software 			= "SURF and SURF-PI: Java v0.1";
-			SURF_info.subject 			= "Phase B: Real and Reactive power at 60 Hz (First 24 hours)";
+			SURF_info.subject 			= "Phase " + phase + ": Real and Reactive power at 60 Hz (Day " + day + ")";
 			SURF_info.source 			= "BLUED: Building-Level fUlly labeled Electricity Disaggregation Dataset";
 			SURF_info.source_form 		= "Matlab (.mat)";
-			
-			// Add the labels to the descriptor of the SURF_file_OUT
-			SURF_descr_OUT.setProperty(SURFFileDescr.KEY_LABELS, labels);
-			
-			// Add the info to the descriptor of the SURF_file_OUT
-			SURF_descr_OUT.setProperty(SURFFileDescr.KEY_INFO, SURF_info);
-			
-			// Add metadata from the NILM Metadata specification (https://github.com/nilmtk/nilm_metadata)
-			metadata.add( new Annotation( NILMMetadata_BLUED.getRawDatasetMetadataFromFile() ));
-			metadata.add( new Annotation( NILMMetadata_BLUED.getRawMeterDevicesMetadataFromFile() ));
-			metadata.add( new Annotation( NILMMetadata_BLUED.getRawBuildingMetadataFromFile() ));
-
-			// Add the metadata to the descriptor of the SURF_file_OUT
-			SURF_descr_OUT.setProperty(SURFFileDescr.KEY_METADATA, metadata);
-			
-			// Add some comments
-			
-			comments.add( new Annotation("This is the first 24 hours of BLUED phase B and is being used here only for testing purposes."));
-			comments.add(new Annotation("The metadata schema being used is the one from the NILM metadata project"
-					+ " (see: https://github.com/nilmtk/nilm_metadata)"));
-			comments.add( new Annotation("The original metadata files can be found in the assets folder of the"
-					+ " source code (see: http://github.com/alspereira/surf)") );
-			
-			// Add the comment to the descriptor of the SURF_file_OUT
-			SURF_descr_OUT.setProperty(SURFFileDescr.KEY_COMMENTS, comments);
-			
-			SURF_file_OUT = SURFFile.openAsWrite(SURF_descr_OUT);
-		
-			// Copy the waveform data
-			SURF_file_IN.copyFrames( SURF_file_OUT, SURF_file_IN.getFrameNum() );
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			sqliteQueue.stop(true);
+			return SURF_info;
 		}
 	}
 }
@@ -15,6 +15,7 @@ public class SURFPowerReader implements Runnable {
 	
 	private File file;
 	
+	// the frames are calibrated while decoding, so they are in watts and VAR
 	public SURFPowerReader(File file) {
 		powerData = new ArrayBlockingQueue<float[][]>(10);
 		this.file = file;
@@ -33,6 +34,8 @@ public class SURFPowerReader implements Runnable {
 
 		try {
 			SURFFile surfFile = SURFFile.openAsRead(file);
+			// the whole file is scanned front to back, so let the disk run ahead of the decoding
+			surfFile.setReadAhead(2, 1 << 20);
 			samplesLength = (int) surfFile.getFrameNum();
 			
 			
@@ -47,13 +50,13 @@ public class SURFPowerReader implements Runnable {
 			float[][] frames = new float[channels][bufferSize];
 			while(numBuffers > 0) {
 				frames = new float[channels][bufferSize];
-				surfFile.readFrames(frames, 0, bufferSize);
+				surfFile.readFramesCalibrated(frames, 0, bufferSize);
 				numBuffers --;
 				powerData.put(frames);
 			}
 			if(samplesRemaining > 0) {
 				frames = new float[channels][samplesRemaining];
-				surfFile.readFrames(frames, 0, samplesRemaining);
+				surfFile.readFramesCalibrated(frames, 0, samplesRemaining);
 				powerData.put(frames);
 			}
 			
@@ -7,7 +7,10 @@ import java.awt.Color;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import info.monitorenter.gui.chart.Chart2D;
 import info.monitorenter.gui.chart.ITrace2D;
@@ -35,7 +38,12 @@ public class PowerChart extends JFrame implements Runnable {
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
+	private static final int CHART_WIDTH = 800;
+	private static final int BATCH_SIZE = 8192;
+	
 	private int chartSize;
+	private int maxFramesPerSecond;
+	private int samplesPerPixel = 1;
 
 	private Chart2D pChart = new Chart2D();
 
@@ -48,7 +56,25 @@ public class PowerChart extends JFrame implements Runnable {
 	public ArrayBlockingQueue<IPowerSample> samplesQueue;
 	
 	public PowerChart(int maxChartSamples) {
+        this(maxChartSamples, 0);
+	}
+	
+	/**
+	 * Creates a chart for live views of fast streams. Instead of adding every
+	 * sample to the traces, the chart drains its queue in batches and reduces
+	 * the samples falling on one pixel column to their minimum and maximum,
+	 * so peaks remain visible while the traces only hold two points per pixel.
+	 * The traces are updated and repainted at most <code>maxFramesPerSecond</code>
+	 * times a second, while the queue is drained continuously, so the
+	 * producer is never held back by the rendering.
+	 * 
+	 * @param maxChartSamples number of most recent samples shown
+	 * @param maxFramesPerSecond repaint rate limit, or zero to add each sample
+	 * 		  to the traces as it arrives
+	 */
+	public PowerChart(int maxChartSamples, int maxFramesPerSecond) {
         this.chartSize = maxChartSamples;
+        this.maxFramesPerSecond = maxFramesPerSecond;
         init();
 	}
 	
@@ -57,8 +83,14 @@ public class PowerChart extends JFrame implements Runnable {
 	}
 	
 	private void init() {
-		pTrace = new Trace2DLtd(chartSize);
-    	qTrace = new Trace2DLtd(chartSize);
+		int traceSize = chartSize;
+		if(maxFramesPerSecond > 0) {
+			samplesPerPixel = Math.max(1, (chartSize + CHART_WIDTH - 1) / CHART_WIDTH);
+			traceSize = 2 * ((chartSize + samplesPerPixel - 1) / samplesPerPixel);
+			pChart.setMinPaintLatency(1000 / maxFramesPerSecond);
+		}
+		pTrace = new Trace2DLtd(traceSize);
+    	qTrace = new Trace2DLtd(traceSize);
 
     	yAxis = new AxisLinear();
     	 xAxis = new AxisLinear();
@@ -82,7 +114,7 @@ public class PowerChart extends JFrame implements Runnable {
 		
 		this.getContentPane().add(pChart);
 
-		this.setSize(800,300);
+		this.setSize(CHART_WIDTH,300);
 		this.setVisible(true);
 	}
 	
@@ -95,6 +127,10 @@ public class PowerChart extends JFrame implements Runnable {
 
 	@Override
 	public void run() {
+		if(maxFramesPerSecond > 0) {
+			runBatched();
+			return;
+		}
 		IPowerSample ps;
 		while(true) {
 			try {
@@ -106,4 +142,94 @@ public class PowerChart extends JFrame implements Runnable {
 			}
 		}
 	}
+	
+	private void runBatched() {
+		ArrayList<IPowerSample> batch = new ArrayList<IPowerSample>(BATCH_SIZE);
+		Envelope pEnvelope = new Envelope(samplesPerPixel);
+		Envelope qEnvelope = new Envelope(samplesPerPixel);
+		long frameTime = 1000 / maxFramesPerSecond;
+		long nextFrame = System.currentTimeMillis() + frameTime;
+		long now;
+		IPowerSample ps;
+		
+		while(true) {
+			try {
+				ps = samplesQueue.poll(Math.max(1, nextFrame - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e1) {
+				return;
+			}
+			if(ps != null) {
+				batch.add(ps);
+				samplesQueue.drainTo(batch, BATCH_SIZE - 1);
+				for(int i = 0; i < batch.size(); i++) {
+					ps = batch.get(i);
+					pEnvelope.add(ps.getTimestamp(), ps.getRealPower());
+					qEnvelope.add(ps.getTimestamp(), ps.getReactivePower());
+				}
+				batch.clear();
+			}
+			now = System.currentTimeMillis();
+			if(now >= nextFrame) {
+				pEnvelope.flush(pTrace);
+				qEnvelope.flush(qTrace);
+				nextFrame = now + frameTime;
+			}
+		}
+	}
+	
+	/**
+	 * Reduces each run of <code>bucketSize</code> samples to its minimum and maximum,
+	 * in the order they occurred, and keeps the resulting points until they are
+	 * added to a trace.
+	 */
+	private static class Envelope {
+		private final int bucketSize;
+		private int count = 0;
+		private double minX, minY, maxX, maxY;
+		private int minIndex, maxIndex;
+		private double[] points = new double[256];	// x, y pairs
+		private int numPoints = 0;
+		
+		Envelope(int bucketSize) {
+			this.bucketSize = bucketSize;
+		}
+		
+		void add(double x, double y) {
+			if(count == 0 || y < minY) {
+				minX = x;
+				minY = y;
+				minIndex = count;
+			}
+			if(count == 0 || y > maxY) {
+				maxX = x;
+				maxY = y;
+				maxIndex = count;
+			}
+			if(++count == bucketSize) {
+				if(minIndex == maxIndex) {
+					addPoint(minX, minY);
+				} else if(minIndex < maxIndex) {
+					addPoint(minX, minY);
+					addPoint(maxX, maxY);
+				} else {
+					addPoint(maxX, maxY);
+					addPoint(minX, minY);
+				}
+				count = 0;
+			}
+		}
+		
+		void flush(ITrace2D trace) {
+			for(int i = 0; i < numPoints; i += 2)
+				trace.addPoint(points[i], points[i + 1]);
+			numPoints = 0;
+		}
+		
+		private void addPoint(double x, double y) {
+			if(numPoints == points.length)
+				points = Arrays.copyOf(points, numPoints << 1);
+			points[numPoints++] = x;
+			points[numPoints++] = y;
+		}
+	}
 }
@@ -0,0 +1,76 @@
+/*
+ *  BlockChecksums.java
+ *
+ */
+
+package surf.file;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ *  Running CRC-32C checksums over consecutive fixed-size blocks
+ *  of a byte stream. Bytes are fed in arbitrary portions; whenever
+ *  a block is complete, its checksum is appended to the table.
+ *
+ *  @see	SURFFile#setChecksums( int )
+ */
+class BlockChecksums {
+
+	private final CRC32C	crc			= new CRC32C();
+	private final long		blockBytes;
+
+	private int[]			table		= new int[ 64 ];
+	private int				numBlocks	= 0;
+	private long			length		= 0L;		// total bytes fed
+	private long			inBlock		= 0L;		// bytes fed into the current block
+
+	BlockChecksums( long blockBytes ) {
+		this.blockBytes = blockBytes;
+	}
+
+	/**
+	 *  Feeds the remaining bytes of <code>b</code>,
+	 *  advancing its position to the limit.
+	 */
+	void update( ByteBuffer b ) {
+		final int	oldLimit	= b.limit();
+		int			n;
+
+		while( b.hasRemaining() ) {
+			n = (int) Math.min( b.remaining(), blockBytes - inBlock );
+			b.limit( b.position() + n );
+			crc.update( b );
+			b.limit( oldLimit );
+			inBlock += n;
+			length	+= n;
+			if( inBlock == blockBytes ) {
+				add( (int) crc.getValue() );
+				crc.reset();
+				inBlock = 0L;
+			}
+		}
+	}
+
+	/**
+	 *  Returns the number of bytes fed so far
+	 */
+	long getLength() {
+		return length;
+	}
+
+	/**
+	 *  Returns the checksums of all blocks, including
+	 *  the incomplete last one
+	 */
+	int[] getTable() {
+		final int[] t = Arrays.copyOf( table, numBlocks + (inBlock > 0L ? 1 : 0) );
+		if( inBlock > 0L ) t[ numBlocks ] = (int) crc.getValue();
+		return t;
+	}
+
+	private void add( int value ) {
+		if( numBlocks == table.length ) table = Arrays.copyOf( table, numBlocks << 1 );
+		table[ numBlocks++ ] = value;
+	}
+}
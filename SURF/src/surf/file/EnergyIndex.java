@@ -0,0 +1,113 @@
+/*
+ *  EnergyIndex.java
+ *
+ */
+
+package surf.file;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ *  Running sums of the samples of each channel, recorded at the end
+ *  of every complete block of a fixed number of frames. Row <code>k</code>
+ *  of the table holds the sums over frames <code>0 ... (k+1) * blockFrames</code>,
+ *  so the sum over any range of frames follows from two rows and the
+ *  frames between the range boundaries and the nearest block boundaries.
+ *  The sums are taken over the samples as stored, without calibration.
+ *
+ *  @see	SURFFile#setEnergyIndex( int )
+ */
+class EnergyIndex {
+
+	private final int		channels;
+	private final int		blockFrames;
+	private final double[]	sums;					// running sums up to the current frame
+
+	private double[]		table;
+	private int				numBlocks	= 0;
+	private long			length		= 0L;		// total frames fed
+	private int				inBlock		= 0;		// frames fed into the current block
+
+	EnergyIndex( int channels, int blockFrames ) {
+		this.channels		= channels;
+		this.blockFrames	= blockFrames;
+		sums				= new double[ channels ];
+		table				= new double[ 64 * channels ];
+	}
+
+	/**
+	 *  Feeds de-interleaved frames. Channels whose array
+	 *  is <code>null</code> count as silent.
+	 */
+	void update( float[][] data, int offset, int len ) {
+		float[]	chan;
+		double	sum;
+		int		n;
+
+		while( len > 0 ) {
+			n = Math.min( len, blockFrames - inBlock );
+			for( int ch = 0; ch < channels; ch++ ) {
+				chan = data[ ch ];
+				if( chan == null ) continue;
+				sum = 0.0;
+				for( int i = offset, stop = offset + n; i < stop; i++ ) sum += chan[ i ];
+				sums[ ch ] += sum;
+			}
+			advance( n );
+			offset	+= n;
+			len		-= n;
+		}
+	}
+
+	/**
+	 *  Feeds interleaved 32 bit float frames between the position and the
+	 *  limit of <code>b</code>, without changing the position.
+	 */
+	void updateFloat( ByteBuffer b, ByteOrder order ) {
+		final FloatBuffer	fb	= b.duplicate().order( order ).asFloatBuffer();
+		int					len	= fb.remaining() / channels;
+		int					n;
+
+		while( len > 0 ) {
+			n = Math.min( len, blockFrames - inBlock );
+			for( int i = 0; i < n; i++ ) {
+				for( int ch = 0; ch < channels; ch++ ) sums[ ch ] += fb.get();
+			}
+			advance( n );
+			len -= n;
+		}
+	}
+
+	private void advance( int n ) {
+		length	+= n;
+		inBlock	+= n;
+		if( inBlock == blockFrames ) {
+			if( (numBlocks + 1) * channels > table.length ) table = Arrays.copyOf( table, table.length << 1 );
+			System.arraycopy( sums, 0, table, numBlocks * channels, channels );
+			numBlocks++;
+			inBlock = 0;
+		}
+	}
+
+	/**
+	 *  Returns the number of frames fed so far
+	 */
+	long getLength() {
+		return length;
+	}
+
+	int getBlockFrames() {
+		return blockFrames;
+	}
+
+	/**
+	 *  Returns the sums at the end of each complete block,
+	 *  one row of <code>channels</code> values per block
+	 */
+	double[] getTable() {
+		return Arrays.copyOf( table, numBlocks * channels );
+	}
+}
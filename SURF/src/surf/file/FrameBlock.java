@@ -0,0 +1,224 @@
+/*
+ *  FrameBlock.java
+ *
+ */
+
+package surf.file;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ *  A block of decoded sample frames held outside the Java heap,
+ *  in a direct <code>ByteBuffer</code> of native byte order.
+ *  Large working sets of waveform data can be kept resident as
+ *  a list of blocks without being scanned and copied by the
+ *  garbage collector the way <code>float[][]</code> arrays are.
+ *  <p>
+ *  The samples are stored as 32 bit floats, either interleaved
+ *  (<code>LAYOUT_INTERLEAVED</code>: frame 0 of all channels, then
+ *  frame 1, ...) or planar (<code>LAYOUT_PLANAR</code>: all frames
+ *  of channel 0, then all frames of channel 1, ...). Planar blocks
+ *  hand out per-channel <code>FloatBuffer</code> views through
+ *  <code>getChannel</code>.
+ *  <p>
+ *  A block is limited to 2 GB; multi-gigabyte windows are held as
+ *  several blocks. A block remembers which frames of its file it
+ *  holds (<code>getStartFrame</code>, <code>getFrameNum</code>).
+ *
+ *  @see	SURFFile#readFrames( FrameBlock, long, int )
+ */
+public class FrameBlock {
+
+	/**
+	 *  layout value : channels interleaved frame by frame
+	 */
+	public static final int LAYOUT_INTERLEAVED	= 0;
+	/**
+	 *  layout value : one contiguous region per channel
+	 */
+	public static final int LAYOUT_PLANAR		= 1;
+
+	private final ByteBuffer	buf;
+	private final FloatBuffer	data;
+	private final int			channels;
+	private final int			capacity;
+	private final int			layout;
+
+	private long				startFrame		= 0L;
+	private int					frames			= 0;
+
+	/**
+	 *  Allocates a new off-heap block.
+	 *
+	 *  @param  channels	number of channels
+	 *  @param  capacity	maximum number of frames the block can hold
+	 *  @param  layout		<code>LAYOUT_INTERLEAVED</code> or <code>LAYOUT_PLANAR</code>
+	 *
+	 *  @throws IllegalArgumentException if the block would exceed 2 GB
+	 */
+	public FrameBlock( int channels, int capacity, int layout ) {
+		final long size = (long) channels * capacity * 4;
+
+		if( (channels < 1) || (capacity < 0) || (size > Integer.MAX_VALUE) ) {
+			throw new IllegalArgumentException( channels + " channels x " + capacity + " frames" );
+		}
+		if( (layout != LAYOUT_INTERLEAVED) && (layout != LAYOUT_PLANAR) ) {
+			throw new IllegalArgumentException( "layout " + layout );
+		}
+		this.channels	= channels;
+		this.capacity	= capacity;
+		this.layout		= layout;
+		buf				= ByteBuffer.allocateDirect( (int) size ).order( ByteOrder.nativeOrder() );
+		data			= buf.asFloatBuffer();
+	}
+
+	public int getChannelNum() {
+		return channels;
+	}
+
+	/**
+	 *  Returns the maximum number of frames of this block
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getLayout() {
+		return layout;
+	}
+
+	/**
+	 *  Returns the number of valid frames in the block
+	 */
+	public int getFrameNum() {
+		return frames;
+	}
+
+	/**
+	 *  Returns the file position of the first frame in the block
+	 */
+	public long getStartFrame() {
+		return startFrame;
+	}
+
+	/**
+	 *  Returns the number of off-heap bytes held by this block
+	 */
+	public long getByteSize() {
+		return buf.capacity();
+	}
+
+	/**
+	 *  Declares which frames of a file the block holds.
+	 *
+	 *  @param  startFrame	file position of the first frame
+	 *  @param  numFrames	number of valid frames, at most <code>getCapacity()</code>
+	 */
+	public void setRange( long startFrame, int numFrames ) {
+		if( (numFrames < 0) || (numFrames > capacity) ) throw new IndexOutOfBoundsException( String.valueOf( numFrames ));
+		this.startFrame	= startFrame;
+		this.frames		= numFrames;
+	}
+
+	/**
+	 *  Returns one sample.
+	 *
+	 *  @param  ch		channel index
+	 *  @param  frame	frame index relative to the start of the block
+	 */
+	public float get( int ch, int frame ) {
+		return data.get( index( ch, frame ));
+	}
+
+	/**
+	 *  Replaces one sample.
+	 *
+	 *  @param  ch		channel index
+	 *  @param  frame	frame index relative to the start of the block
+	 *  @param  value	new sample value
+	 */
+	public void put( int ch, int frame, float value ) {
+		data.put( index( ch, frame ), value );
+	}
+
+	/**
+	 *  Copies the frames of one channel onto the heap.
+	 *
+	 *  @param  ch		channel index
+	 *  @param  frame	first frame, relative to the start of the block
+	 *  @param  dst		destination array
+	 *  @param  off		offset into <code>dst</code>
+	 *  @param  len		number of frames to copy
+	 */
+	public void get( int ch, int frame, float[] dst, int off, int len ) {
+		if( layout == LAYOUT_PLANAR ) {
+			final FloatBuffer b = data.duplicate();
+			b.position( index( ch, frame ));
+			b.get( dst, off, len );
+		} else {
+			for( int i = index( ch, frame ), stop = off + len; off < stop; i += channels, off++ ) {
+				dst[ off ] = data.get( i );
+			}
+		}
+	}
+
+	/**
+	 *  Copies de-interleaved frames into the block.
+	 *
+	 *  @param  src		source frames, as used by <code>InterleavedStreamFile.readFrames</code>;
+	 *					<code>null</code> channels are left untouched
+	 *  @param  srcOff	frame offset into <code>src</code>
+	 *  @param  frame	first destination frame, relative to the start of the block
+	 *  @param  len		number of frames to copy
+	 */
+	public void put( float[][] src, int srcOff, int frame, int len ) {
+		float[] b;
+
+		for( int ch = 0; ch < channels; ch++ ) {
+			b = src[ ch ];
+			if( b == null ) continue;
+			if( layout == LAYOUT_PLANAR ) {
+				final FloatBuffer d = data.duplicate();
+				d.position( index( ch, frame ));
+				d.put( b, srcOff, len );
+			} else {
+				for( int i = index( ch, frame ), j = srcOff, stop = srcOff + len; j < stop; i += channels, j++ ) {
+					data.put( i, b[ j ]);
+				}
+			}
+		}
+	}
+
+	/**
+	 *  Returns a view of the valid frames of one channel.
+	 *  Only available for planar blocks.
+	 *
+	 *  @throws IllegalStateException if the block is interleaved
+	 */
+	public FloatBuffer getChannel( int ch ) {
+		if( layout != LAYOUT_PLANAR ) throw new IllegalStateException( "interleaved block" );
+		final FloatBuffer b = data.duplicate();
+		b.limit( index( ch, frames )).position( index( ch, 0 ));
+		return b.slice();
+	}
+
+	/**
+	 *  Returns a view of all samples of the block, in the
+	 *  block's layout. The view's position and limit
+	 *  are independent of the block.
+	 */
+	public FloatBuffer getData() {
+		return data.duplicate();
+	}
+
+	// the raw storage, for decoders which write straight into the block
+	ByteBuffer getBuffer() {
+		return buf.duplicate().order( buf.order() );
+	}
+
+	private int index( int ch, int frame ) {
+		return( layout == LAYOUT_PLANAR ? ch * capacity + frame : frame * channels + ch );
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ *  FrameBlockCache.java
+ *
+ */
+
+package surf.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ *  A cache of decoded, fixed-size frame blocks which is shared
+ *  by all <code>SURFFile</code> instances that are attached to it.
+ *  Blocks are keyed by file identity (canonical path, modification
+ *  time and size) and block index, so several readers of the same
+ *  file share one decoded copy. If two readers miss the same block
+ *  at the same time, only one of them decodes it, the other waits
+ *  for the result.
+ *  <p>
+ *  The cache is bounded by the number of off-heap bytes held by the
+ *  blocks; the least recently used blocks are evicted first. Hit,
+ *  miss and eviction counts are kept for monitoring.
+ *  <p>
+ *  Cached blocks must be treated as read-only.
+ *
+ *  @see	SURFFile#setBlockCache( FrameBlockCache )
+ */
+public class FrameBlockCache {
+
+	/**
+	 *  default budget of the process-wide cache : 64 MB
+	 */
+	public static final long	DEFAULT_MAX_BYTES		= 64L << 20;
+	/**
+	 *  default number of frames per block
+	 */
+	public static final int		DEFAULT_BLOCK_FRAMES	= 16384;
+
+	private static FrameBlockCache	defaultCache	= null;
+
+	private final long								maxBytes;
+	private final int								blockFrames;
+	private final LinkedHashMap<Key, FutureTask<FrameBlock>>	blocks;
+	// tasks whose bytes are not yet counted in byteSize, because their loader has not returned
+	private final Set<FutureTask<FrameBlock>>	loading	= Collections.newSetFromMap( new IdentityHashMap<FutureTask<FrameBlock>, Boolean>() );
+
+	private long					byteSize		= 0L;
+	private long					hits			= 0L;
+	private long					misses			= 0L;
+	private long					evictions		= 0L;
+
+	/**
+	 *  Creates a new cache.
+	 *
+	 *  @param  maxBytes	the maximum number of bytes held by cached blocks
+	 *  @param  blockFrames	the number of frames per block
+	 */
+	public FrameBlockCache( long maxBytes, int blockFrames ) {
+		if( blockFrames < 1 ) throw new IllegalArgumentException( String.valueOf( blockFrames ));
+		this.maxBytes		= maxBytes;
+		this.blockFrames	= blockFrames;
+		blocks				= new LinkedHashMap<Key, FutureTask<FrameBlock>>( 64, 0.75f, true );
+	}
+
+	/**
+	 *  Returns the process-wide cache, creating it with the
+	 *  default budget if necessary.
+	 */
+	public static synchronized FrameBlockCache getDefault() {
+		if( defaultCache == null ) defaultCache = new FrameBlockCache( DEFAULT_MAX_BYTES, DEFAULT_BLOCK_FRAMES );
+		return defaultCache;
+	}
+
+	/**
+	 *  Replaces the process-wide cache, e.g. to change its budget.
+	 *  Files already attached to the previous cache keep using it.
+	 */
+	public static synchronized void setDefault( FrameBlockCache cache ) {
+		defaultCache = cache;
+	}
+
+	public int getBlockFrames() {
+		return blockFrames;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized long getByteSize() {
+		return byteSize;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 *  Returns the fraction of block lookups which were served
+	 *  from the cache, or zero if there were none.
+	 */
+	public synchronized double getHitRatio() {
+		return( hits + misses == 0L ? 0.0 : (double) hits / (hits + misses) );
+	}
+
+	/**
+	 *  Removes all blocks. Blocks which are currently being
+	 *  decoded are still handed to their waiting readers,
+	 *  but are not added to the cache.
+	 */
+	public synchronized void clear() {
+		blocks.clear();
+		byteSize = 0L;
+	}
+
+	public synchronized String toString() {
+		return( "FrameBlockCache[ " + blocks.size() + " blocks, " + (byteSize >> 10) + " of " + (maxBytes >> 10) +
+				" KB, hits " + hits + ", misses " + misses + ", evictions " + evictions + " ]" );
+	}
+
+	/*
+	 *  Returns the block, decoding it through the loader on a miss.
+	 */
+	FrameBlock get( Object fileKey, long blockIndex, Callable<FrameBlock> loader ) throws IOException {
+		final Key					key		= new Key( fileKey, blockIndex );
+		final FutureTask<FrameBlock>	task;
+		FutureTask<FrameBlock>		t;
+		boolean						load	= false;
+
+		synchronized( this ) {
+			t = blocks.get( key );
+			if( t == null ) {
+				t		= new FutureTask<FrameBlock>( loader );
+				load	= true;
+				blocks.put( key, t );
+				loading.add( t );
+				misses++;
+			} else {
+				hits++;
+			}
+			task = t;
+		}
+
+		if( load ) task.run();		// decode on the calling thread, outside the lock
+
+		try {
+			final FrameBlock fb = task.get();
+			if( load ) loaded( key, task, fb.getByteSize() );
+			return fb;
+		}
+		catch( InterruptedException e1 ) {
+			Thread.currentThread().interrupt();
+			throw IOUtil.map( e1 );
+		}
+		catch( ExecutionException e1 ) {
+			synchronized( this ) {
+				if( blocks.get( key ) == task ) blocks.remove( key );
+				loading.remove( task );
+			}
+			if( e1.getCause() instanceof IOException ) throw (IOException) e1.getCause();
+			throw IOUtil.map( e1 );
+		}
+	}
+
+	// counts the bytes of a decoded block, unless it was removed meanwhile, and evicts old blocks
+	private synchronized void loaded( Key key, FutureTask<FrameBlock> task, long size ) {
+		final Iterator<FutureTask<FrameBlock>>	iter;
+		FutureTask<FrameBlock>					t;
+
+		loading.remove( task );
+		if( blocks.get( key ) != task ) return;		// cleared while it was decoded
+		byteSize += size;
+		iter = blocks.values().iterator();
+		while( (byteSize > maxBytes) && iter.hasNext() ) {
+			t = iter.next();
+			if( loading.contains( t )) continue;	// still being decoded or not yet counted by another reader
+			iter.remove();
+			try {
+				byteSize -= t.get().getByteSize();
+				evictions++;
+			}
+			catch( Exception e1 ) { /* failed loads hold no bytes */ }
+		}
+	}
+
+	/*
+	 *  Creates the identity of a file's current content.
+	 */
+	static Object createFileKey( File f ) throws IOException {
+		return new FileKey( f.getCanonicalPath(), f.lastModified(), f.length() );
+	}
+
+	// ---------------- internal classes ----------------
+
+	private static final class FileKey {
+		private final String	path;
+		private final long		modified;
+		private final long		size;
+
+		protected FileKey( String path, long modified, long size ) {
+			this.path		= path;
+			this.modified	= modified;
+			this.size		= size;
+		}
+
+		public boolean equals( Object o ) {
+			if( !(o instanceof FileKey) ) return false;
+			final FileKey k = (FileKey) o;
+			return( path.equals( k.path ) && (modified == k.modified) && (size == k.size) );
+		}
+
+		public int hashCode() {
+			return( path.hashCode() ^ (int) modified ^ (int) size );
+		}
+	}
+
+	private static final class Key {
+		private final Object	file;
+		private final long		block;
+
+		protected Key( Object file, long block ) {
+			this.file	= file;
+			this.block	= block;
+		}
+
+		public boolean equals( Object o ) {
+			if( !(o instanceof Key) ) return false;
+			final Key k = (Key) o;
+			return( (block == k.block) && file.equals( k.file ));
+		}
+
+		public int hashCode() {
+			return( file.hashCode() * 31 + (int) (block ^ (block >>> 32)) );
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ *  ReadAhead.java
+ *
+ */
+
+package surf.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ *  Sequential read-ahead over an <code>AsynchronousFileChannel</code>.
+ *  A ring of <code>numBuffers</code> direct buffers is kept in flight:
+ *  while the caller consumes one buffer, the reads for the following
+ *  ones are already issued, so disk I/O overlaps with decoding. Reads
+ *  are aligned to multiples of the buffer size in the file.
+ *  <p>
+ *  Seeking within the current buffer is free, any other seek waits for
+ *  the outstanding reads and restarts the ring at the new position.
+ *
+ *  @see	SURFFile#setReadAhead( int, int )
+ */
+class ReadAhead {
+
+	private static final int	ALIGN	= 4096;
+
+	private final AsynchronousFileChannel	ach;
+	private final ByteBuffer[]				bufs;
+	private final long[]					bufPos;
+	private final Future<Integer>[]			pending;
+	private final int						bufSize;
+
+	private int								current;
+	private long							position;
+
+	@SuppressWarnings("unchecked")
+	ReadAhead( File f, int numBuffers, int bufferSize ) throws IOException {
+		bufSize	= Math.max( ALIGN, (bufferSize + ALIGN - 1) / ALIGN * ALIGN );
+		ach		= AsynchronousFileChannel.open( f.toPath(), StandardOpenOption.READ );
+		bufs	= new ByteBuffer[ numBuffers ];
+		bufPos	= new long[ numBuffers ];
+		pending	= (Future<Integer>[]) new Future<?>[ numBuffers ];
+		for( int i = 0; i < numBuffers; i++ ) {
+			bufs[ i ] = ByteBuffer.allocateDirect( bufSize );
+		}
+		restart( 0L );
+	}
+
+	/**
+	 *  Moves the read position to a byte offset in the file.
+	 */
+	void seek( long pos ) throws IOException {
+		if( (pos >= bufPos[ current ]) && (pos < bufPos[ current ] + bufSize) ) {
+			position = pos;
+		} else {
+			restart( pos );
+		}
+	}
+
+	/**
+	 *  Fills the remaining bytes of <code>dst</code>, unless
+	 *  the end of the file is reached.
+	 *
+	 *  @return	the number of bytes read, or -1 at the end of the file
+	 */
+	int read( ByteBuffer dst ) throws IOException {
+		int			count	= 0;
+		int			filled, off, n;
+		ByteBuffer	b;
+
+		while( dst.hasRemaining() ) {
+			filled	= await( current );
+			off		= (int) (position - bufPos[ current ]);
+			if( off >= filled ) {
+				if( filled < bufSize ) break;				// end of file
+				issue( current, bufPos[ current ] + (long) bufs.length * bufSize );
+				current = (current + 1) % bufs.length;
+				continue;
+			}
+			n		= Math.min( filled - off, dst.remaining() );
+			b		= bufs[ current ].duplicate();
+			b.limit( off + n ).position( off );
+			dst.put( b );
+			position += n;
+			count	 += n;
+		}
+		return( (count == 0) && dst.hasRemaining() ? -1 : count );
+	}
+
+	void close() throws IOException {
+		try {
+			for( int i = 0; i < bufs.length; i++ ) await( i );
+		}
+		finally {
+			ach.close();
+		}
+	}
+
+	private void restart( long pos ) throws IOException {
+		final long base = pos - pos % bufSize;
+
+		for( int i = 0; i < bufs.length; i++ ) {
+			if( pending[ i ] != null ) await( i );			// never reuse a buffer with a read in flight
+		}
+		for( int i = 0; i < bufs.length; i++ ) {
+			issue( i, base + (long) i * bufSize );
+		}
+		current		= 0;
+		position	= pos;
+	}
+
+	private void issue( int i, long pos ) {
+		bufs[ i ].clear();
+		bufPos[ i ]		= pos;
+		pending[ i ]	= ach.read( bufs[ i ], pos );
+	}
+
+	// waits for buffer i and returns the number of valid bytes in it
+	private int await( int i ) throws IOException {
+		final ByteBuffer	b	= bufs[ i ];
+		int					n;
+
+		if( pending[ i ] != null ) {
+			try {
+				n = pending[ i ].get().intValue();
+				// asynchronous reads may be short; complete them so the ring stays contiguous
+				while( (n >= 0) && b.hasRemaining() ) {
+					n = ach.read( b, bufPos[ i ] + b.position() ).get().intValue();
+				}
+			}
+			catch( InterruptedException e1 ) {
+				Thread.currentThread().interrupt();
+				throw IOUtil.map( e1 );
+			}
+			catch( ExecutionException e1 ) {
+				if( e1.getCause() instanceof IOException ) throw (IOException) e1.getCause();
+				throw IOUtil.map( e1 );
+			}
+			finally {
+				pending[ i ] = null;
+			}
+		}
+		return b.position();
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ *  SURFCatalog.java
+ *
+ */
+
+package surf.file;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *  Builds an index of the SURF files below a directory. The directory
+ *  tree is walked once to collect the files, which are then probed in
+ *  parallel with <code>SURFFile.probe</code>, reading little more than
+ *  the first few kilobytes of each file. Files which are not SURF files
+ *  or cannot be read are reported as failures instead of aborting the
+ *  catalog.
+ *  <p>
+ *  The index is written as UTF-8 text with one tab separated line per
+ *  file, preceded by a line naming the columns: the path relative to the
+ *  root, channels, rate, bits per sample, sample format, frames, initial
+ *  timestamp, timezone, SURF sample rate and the channel calibration
+ *  constants separated by commas.
+ *
+ *  @see	SURFFile#probe( Path )
+ */
+public class SURFCatalog {
+
+	private static final int		TASK_SIZE	= 64;	// files probed per task
+	private static final Charset	UTF8		= Charset.forName( "UTF-8" );
+
+	private final Path				root;
+	private final String			suffix;
+	private int						numThreads	= Runtime.getRuntime().availableProcessors() * 2;	// probing mostly waits for the disk
+
+	private final List<Path>		paths		= new ArrayList<Path>();
+	private final List<SURFFileDescr>	entries	= new ArrayList<SURFFileDescr>();
+	private final List<String>		failures	= new ArrayList<String>();
+
+	/**
+	 *  @param	root	the directory to index, including its subdirectories
+	 */
+	public SURFCatalog( Path root ) {
+		this.root	= root;
+		suffix		= "." + SURFFileDescr.getFormatSuffix( SURFFileDescr.TYPE_WAVE );
+	}
+
+	/**
+	 *  Sets the number of threads probing files. Defaults to
+	 *  twice the number of available processors.
+	 */
+	public void setNumThreads( int numThreads ) {
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 *  Walks the directory tree and probes all files with the
+	 *  SURF suffix. Replaces the result of a previous build.
+	 *
+	 *  @return	the descriptions of the SURF files, sorted by path
+	 *
+	 *  @throws IOException if the directory tree cannot be walked
+	 */
+	public List<SURFFileDescr> build() throws IOException {
+		final List<Future<String[]>>	tasks	= new ArrayList<Future<String[]>>();
+		final SURFFileDescr[]			result;
+		final ExecutorService			pool;
+		String[]						errors;
+
+		paths.clear();
+		entries.clear();
+		failures.clear();
+		Files.walkFileTree( root, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) {
+				if( attrs.isRegularFile() && file.getFileName().toString().toLowerCase().endsWith( suffix )) {
+					paths.add( file );
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFileFailed( Path file, IOException e ) {
+				failures.add( root.relativize( file ) + ": " + e.getMessage() );
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort( paths );
+
+		result	= new SURFFileDescr[ paths.size() ];
+		pool	= Executors.newFixedThreadPool( numThreads );
+		try {
+			for( int i = 0; i < paths.size(); i += TASK_SIZE ) {
+				final int start = i, stop = Math.min( paths.size(), i + TASK_SIZE );
+				tasks.add( pool.submit( new Callable<String[]>() {
+					public String[] call() {
+						return probe( start, stop, result );
+					}
+				}));
+			}
+			for( int i = 0; i < tasks.size(); i++ ) {
+				errors = tasks.get( i ).get();
+				for( int j = 0; j < errors.length; j++ ) {
+					if( errors[ j ] != null ) failures.add( errors[ j ]);
+				}
+			}
+		}
+		catch( InterruptedException e1 ) {
+			Thread.currentThread().interrupt();
+			throw IOUtil.map( e1 );
+		}
+		catch( ExecutionException e1 ) {
+			throw IOUtil.map( e1 );
+		}
+		finally {
+			pool.shutdownNow();
+		}
+
+		for( int i = 0; i < result.length; i++ ) {
+			if( result[ i ] != null ) entries.add( result[ i ]);
+		}
+		return Collections.unmodifiableList( entries );
+	}
+
+	/**
+	 *  Returns the files of the last build which could not be
+	 *  read, each with the reason
+	 */
+	public List<String> getFailures() {
+		return Collections.unmodifiableList( failures );
+	}
+
+	/**
+	 *  Writes the index of the last build.
+	 *
+	 *  @throws IOException if the index cannot be written
+	 */
+	public void write( Path index ) throws IOException {
+		final BufferedWriter	w	= Files.newBufferedWriter( index, UTF8 );
+		final StringBuilder		sb	= new StringBuilder();
+		SURFFileDescr			descr;
+
+		try {
+			w.write( "path\tchannels\trate\tbits\tformat\tframes\tinitial_timestamp\ttimezone\tsurf_rate\tcalibration\n" );
+			for( int i = 0; i < entries.size(); i++ ) {
+				descr = entries.get( i );
+				sb.setLength( 0 );
+				sb.append( root.relativize( descr.file.toPath() )).append( '\t' );
+				sb.append( descr.channels ).append( '\t' );
+				sb.append( descr.rate ).append( '\t' );
+				sb.append( descr.bitsPerSample ).append( '\t' );
+				sb.append( descr.sampleFormat == SURFFileDescr.FORMAT_FLOAT ? "float" : "int" ).append( '\t' );
+				sb.append( descr.length ).append( '\t' );
+				sb.append( descr.SURF_initial_timestamp ).append( '\t' );
+				sb.append( descr.SURF_timezone ).append( '\t' );
+				sb.append( descr.SURF_sample_rate ).append( '\t' );
+				if( descr.SURF_channel_calibration != null ) {
+					for( int ch = 0; ch < descr.SURF_channel_calibration.length; ch++ ) {
+						if( ch > 0 ) sb.append( ',' );
+						sb.append( descr.SURF_channel_calibration[ ch ]);
+					}
+				}
+				sb.append( '\n' );
+				w.write( sb.toString() );
+			}
+		}
+		finally {
+			w.close();
+		}
+	}
+
+	// probes paths[ start ... stop ), returns the failures
+	private String[] probe( int start, int stop, SURFFileDescr[] result ) {
+		final String[] errors = new String[ stop - start ];
+
+		for( int i = start; i < stop; i++ ) {
+			try {
+				result[ i ] = SURFFile.probe( paths.get( i ));
+			}
+			catch( IOException e1 ) {
+				errors[ i - start ] = root.relativize( paths.get( i )) + ": " + e1.getMessage();
+			}
+		}
+		return errors;
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ *  SURFDataset.java
+ *
+ */
+
+package surf.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *  A catalog of SURF files which together form one
+ *  logical dataset. Datasets such as BLUED are shipped as
+ *  many files, one per phase and day
+ *  (e.g. <code>BLUED_PhaseA_DayOne_surf.wav</code>,
+ *  <code>BLUED_PhaseB_DayOne_surf.wav</code>).
+ *  Each file is assigned to a <I>stream</I> (a phase),
+ *  and its position on the global timeline is derived from
+ *  its <code>SURF_initial_timestamp</code>, sampling rate
+ *  and length.
+ *  <p>
+ *  All files must share the same sampling rate, and all
+ *  files of one stream the same number of channels. The
+ *  streams are joined side by side, so the dataset has as many
+ *  channels as all streams together, in the order in which the
+ *  streams were first added.
+ *  <p>
+ *  Use <code>open</code> to obtain an <code>InterleavedStreamFile</code>
+ *  which reads across file (day) boundaries.
+ *
+ *  @see	SURFDatasetFile
+ */
+public class SURFDataset {
+
+	private final Map<String, List<Entry>>	streams		= new LinkedHashMap<String, List<Entry>>();
+	private double							rate		= 0.0;
+	private long							startMillis	= Long.MAX_VALUE;
+	private long							stopMillis	= Long.MIN_VALUE;
+
+	/**
+	 *  Creates an empty catalog.
+	 */
+	public SURFDataset() { /* empty */ }
+
+	/**
+	 *  Adds a file to the catalog. Only the header (and config chunk)
+	 *  of the file is read, the file is closed before this method returns.
+	 *
+	 *  @param  stream	name of the stream (e.g. the phase) this file belongs to
+	 *  @param  f		the SURF file
+	 *
+	 *  @throws IOException if the file cannot be read, has no valid
+	 *						initial timestamp, or its rate or channel count
+	 *						do not match the files already in the catalog
+	 */
+	public void add( String stream, File f ) throws IOException {
+		final SURFFile		sf = SURFFile.openAsRead( f );
+		final SURFFileDescr	afd;
+		final Entry			e;
+		try {
+			afd	= sf.getDescr();
+			e	= new Entry( stream, f, afd.getInitialTimeMillis(), afd.getSampleRate(),
+							 afd.channels, afd.length, afd.SURF_channel_calibration );
+		}
+		catch( ParseException e1 ) {
+			throw IOUtil.map( e1 );
+		}
+		finally {
+			sf.cleanUp();
+		}
+		add( e );
+	}
+
+	/**
+	 *  Adds all files of a directory whose names match a pattern.
+	 *  The first capturing group of the pattern denotes the stream,
+	 *  e.g. <code>".*Phase([A-Z]).*_surf\\.wav"</code> for the BLUED files.
+	 *
+	 *  @param  dir		directory to scan (not recursively)
+	 *  @param  pattern	regular expression matched against the file names
+	 *
+	 *  @return the number of files added
+	 *
+	 *  @throws IOException if one of the matching files cannot be added
+	 */
+	public int addAll( File dir, String pattern ) throws IOException {
+		final Pattern	p		= Pattern.compile( pattern );
+		final File[]	files	= dir.listFiles();
+		int				count	= 0;
+		Matcher			m;
+
+		if( files == null ) throw new IOException( dir.getAbsolutePath() + " : not a directory" );
+		Arrays.sort( files );
+		for( int i = 0; i < files.length; i++ ) {
+			m = p.matcher( files[ i ].getName() );
+			if( !files[ i ].isFile() || !m.matches() ) continue;
+			add( m.groupCount() > 0 ? m.group( 1 ) : "", files[ i ]);
+			count++;
+		}
+		return count;
+	}
+
+	private void add( Entry e ) throws IOException {
+		List<Entry> list = streams.get( e.stream );
+
+		if( (rate != 0.0) && (Math.abs( rate - e.rate ) > 1.0e-6) ) {
+			throw new IOException( e.file.getAbsolutePath() + " : sampling rate " + e.rate +
+								   " does not match dataset rate " + rate );
+		}
+		if( list == null ) {
+			list = new ArrayList<Entry>();
+			streams.put( e.stream, list );
+		} else if( list.get( 0 ).channels != e.channels ) {
+			throw new IOException( e.file.getAbsolutePath() + " : " + e.channels +
+								   " channels, stream " + e.stream + " has " + list.get( 0 ).channels );
+		}
+		rate		= e.rate;
+		list.add( e );
+		Collections.sort( list, START_COMPARATOR );
+		startMillis	= Math.min( startMillis, e.startMillis );
+		stopMillis	= Math.max( stopMillis, e.getStopMillis() );
+	}
+
+	/**
+	 *  Returns the names of the streams in channel order.
+	 */
+	public List<String> getStreams() {
+		return new ArrayList<String>( streams.keySet() );
+	}
+
+	/**
+	 *  Returns the files of one stream, chronologically.
+	 */
+	public List<File> getFiles( String stream ) {
+		final List<Entry>	list	= streams.get( stream );
+		final List<File>	files	= new ArrayList<File>();
+		if( list != null ) {
+			for( int i = 0; i < list.size(); i++ ) files.add( list.get( i ).file );
+		}
+		return files;
+	}
+
+	/**
+	 *  Returns the common sampling rate of all files in hertz
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 *  Returns the time of the first frame of the dataset
+	 *  in milliseconds since the epoch
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 *  Returns the total number of channels of all streams.
+	 */
+	public int getChannelNum() {
+		int n = 0;
+		for( List<Entry> list : streams.values() ) n += list.get( 0 ).channels;
+		return n;
+	}
+
+	/**
+	 *  Returns the length of the global timeline in sample frames,
+	 *  from the first frame of the earliest file to the last frame
+	 *  of the latest file, including gaps.
+	 */
+	public long getFrameNum() {
+		if( streams.isEmpty() ) return 0L;
+		return toFrame( stopMillis );
+	}
+
+	/**
+	 *  Returns the calibration constants of all channels,
+	 *  in the same order as the dataset's channels.
+	 */
+	public float[] getChannelCalibration() {
+		final float[]	cc	= new float[ getChannelNum() ];
+		int				ch	= 0;
+		for( List<Entry> list : streams.values() ) {
+			final Entry e = list.get( 0 );
+			for( int i = 0; i < e.channels; i++, ch++ ) {
+				cc[ ch ] = (e.calibration != null) && (i < e.calibration.length) ? e.calibration[ i ] : 1f;
+			}
+		}
+		return cc;
+	}
+
+	/**
+	 *  Opens a reader for the whole dataset.
+	 *
+	 *  @param  maxOpenFiles	the maximum number of files which are held
+	 *							open at the same time (at least one per stream,
+	 *							two per stream when prefetching)
+	 *  @param  prefetch		whether the next file of each stream should
+	 *							be opened in the background before the
+	 *							reader reaches it
+	 */
+	public SURFDatasetFile open( int maxOpenFiles, boolean prefetch ) {
+		final List<String>	names		= getStreams();
+		final Entry[][]		entries		= new Entry[ names.size() ][];
+		final long[][]		starts		= new long[ names.size() ][];
+		final int[]			chanOffs	= new int[ names.size() ];
+		int					ch			= 0;
+
+		for( int s = 0; s < names.size(); s++ ) {
+			final List<Entry> list = streams.get( names.get( s ));
+			entries[ s ]	= list.toArray( new Entry[ list.size() ]);
+			starts[ s ]		= new long[ list.size() ];
+			for( int i = 0; i < list.size(); i++ ) {
+				starts[ s ][ i ] = toFrame( list.get( i ).startMillis );
+			}
+			chanOffs[ s ]	= ch;
+			ch			   += list.get( 0 ).channels;
+		}
+		return new SURFDatasetFile( entries, starts, chanOffs, ch, getFrameNum(), maxOpenFiles, prefetch );
+	}
+
+	private long toFrame( long millis ) {
+		return Math.round( (millis - startMillis) * rate / 1000.0 );
+	}
+
+	private static final Comparator<Entry> START_COMPARATOR = new Comparator<Entry>() {
+		public int compare( Entry e1, Entry e2 ) {
+			if( e1.startMillis < e2.startMillis ) return -1;
+			if( e1.startMillis > e2.startMillis ) return 1;
+			return 0;
+		}
+	};
+
+	// ---------------- internal classes ----------------
+
+	static class Entry {
+		final String	stream;
+		final File		file;
+		final long		startMillis;
+		final double	rate;
+		final int		channels;
+		final long		length;
+		final float[]	calibration;
+
+		Entry( String stream, File file, long startMillis, double rate, int channels,
+			   long length, float[] calibration ) {
+			this.stream			= stream;
+			this.file			= file;
+			this.startMillis	= startMillis;
+			this.rate			= rate;
+			this.channels		= channels;
+			this.length			= length;
+			this.calibration	= calibration;
+		}
+
+		long getStopMillis() {
+			return startMillis + (long) (length * 1000.0 / rate + 0.5);
+		}
+	}
+}
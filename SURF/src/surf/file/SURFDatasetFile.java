@@ -0,0 +1,279 @@
+/*
+ *  SURFDatasetFile.java
+ *
+ */
+
+package surf.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *  A read-only <code>InterleavedStreamFile</code> spanning all
+ *  files of a <code>SURFDataset</code>. Frame positions refer to
+ *  the global timeline of the dataset; reads cross file (day)
+ *  boundaries transparently and frames which are not covered by
+ *  any file of a stream are read as zero.
+ *  <p>
+ *  At most <code>maxOpenFiles</code> files are held open at the
+ *  same time, the least recently used one is closed first. If
+ *  prefetching is enabled, the next file of each stream is opened
+ *  (and its first block read) on a background thread while the
+ *  current file is being read.
+ *  <p>
+ *  Like <code>SURFFile</code>, instances are not thread-safe.
+ *
+ *  @see	SURFDataset#open( int, boolean )
+ */
+public class SURFDatasetFile
+implements InterleavedStreamFile {
+
+	private final SURFDataset.Entry[][]		entries;
+	private final long[][]					starts;
+	private final int[]						chanOffs;
+	private final float[][][]				views;
+	private final int						channels;
+	private final long						length;
+	private final int						maxOpenFiles;
+
+	private final Map<SURFDataset.Entry, SURFFile>			openFiles;
+	private final Map<SURFDataset.Entry, Future<SURFFile>>	pending;
+	private final ExecutorService							prefetcher;
+
+	private long							framePosition	= 0L;
+
+	SURFDatasetFile( SURFDataset.Entry[][] entries, long[][] starts, int[] chanOffs, int channels,
+					 long length, int maxOpenFiles, boolean prefetch ) {
+		this.entries		= entries;
+		this.starts			= starts;
+		this.chanOffs		= chanOffs;
+		this.channels		= channels;
+		this.length			= length;
+		this.maxOpenFiles	= Math.max( 1, maxOpenFiles );
+		this.openFiles		= new LinkedHashMap<SURFDataset.Entry, SURFFile>( 16, 0.75f, true );
+		this.pending		= new HashMap<SURFDataset.Entry, Future<SURFFile>>();
+		this.prefetcher		= prefetch ? Executors.newSingleThreadExecutor( new ThreadFactory() {
+			public Thread newThread( Runnable r ) {
+				final Thread t = new Thread( r, "SURFDataset prefetch" );
+				t.setDaemon( true );
+				return t;
+			}
+		}) : null;
+
+		views = new float[ entries.length ][][];
+		for( int s = 0; s < entries.length; s++ ) {
+			views[ s ] = new float[ entries[ s ][ 0 ].channels ][];
+		}
+	}
+
+	/**
+	 *	Reads sample frames from the current position of the
+	 *	global timeline. The channels of all streams are placed
+	 *	side by side in <code>data</code>. As with <code>SURFFile</code>,
+	 *	<code>null</code> arrays in <code>data</code> are skipped.
+	 *
+	 *  @see	SURFFile#readFrames( float[][], int, int )
+	 */
+	public void readFrames( float[][] data, int offset, int len ) throws IOException {
+		float[][] sub;
+
+		for( int s = 0; s < entries.length; s++ ) {
+			sub = views[ s ];
+			for( int ch = 0; ch < sub.length; ch++ ) {
+				sub[ ch ] = data[ chanOffs[ s ] + ch ];
+			}
+			readStream( s, sub, offset, len );
+			Arrays.fill( sub, null );
+		}
+		framePosition += len;
+	}
+
+	private void readStream( int s, float[][] sub, int offset, int len ) throws IOException {
+		final SURFDataset.Entry[]	ents	= entries[ s ];
+		final long[]				sts		= starts[ s ];
+		long						pos		= framePosition;
+		long						stop;
+		int							idx, chunkLength;
+		SURFFile					sf;
+
+		while( len > 0 ) {
+			idx		= Arrays.binarySearch( sts, pos );
+			if( idx < 0 ) idx = -(idx + 2);			// last entry starting before pos
+			stop	= idx + 1 < sts.length ? sts[ idx + 1 ] : Long.MAX_VALUE;
+
+			if( (idx >= 0) && (pos < sts[ idx ] + ents[ idx ].length) ) {
+				chunkLength	= (int) Math.min( len, Math.min( stop, sts[ idx ] + ents[ idx ].length ) - pos );
+				sf			= acquire( ents[ idx ]);
+				if( sf.getFramePosition() != pos - sts[ idx ]) sf.seekFrame( pos - sts[ idx ]);
+				sf.readFrames( sub, offset, chunkLength );
+				if( (prefetcher != null) && (idx + 1 < ents.length) ) prefetch( ents[ idx + 1 ]);
+			} else {								// gap between files
+				chunkLength	= (int) Math.min( len, stop - pos );
+				for( int ch = 0; ch < sub.length; ch++ ) {
+					if( sub[ ch ] != null ) Arrays.fill( sub[ ch ], offset, offset + chunkLength, 0f );
+				}
+			}
+			pos	   += chunkLength;
+			offset += chunkLength;
+			len	   -= chunkLength;
+		}
+	}
+
+	private SURFFile acquire( SURFDataset.Entry e ) throws IOException {
+		SURFFile				sf	= openFiles.get( e );
+		final Future<SURFFile>	f;
+
+		if( sf != null ) return sf;
+
+		f = pending.remove( e );
+		if( f != null ) {
+			try {
+				sf = f.get();
+			}
+			catch( InterruptedException e1 ) {
+				Thread.currentThread().interrupt();
+				throw IOUtil.map( e1 );
+			}
+			catch( ExecutionException e1 ) {
+				if( e1.getCause() instanceof IOException ) throw (IOException) e1.getCause();
+				throw IOUtil.map( e1 );
+			}
+		} else {
+			sf = SURFFile.openAsRead( e.file );
+		}
+		openFiles.put( e, sf );
+		evict();
+		return sf;
+	}
+
+	private void prefetch( final SURFDataset.Entry e ) {
+		if( openFiles.containsKey( e ) || pending.containsKey( e )) return;
+
+		pending.put( e, prefetcher.submit( new Callable<SURFFile>() {
+			public SURFFile call() throws IOException {
+				final SURFFile	sf	= SURFFile.openAsRead( e.file );
+				final int		len	= (int) Math.min( sf.getFrameNum(), 4096 );
+				try {
+					sf.readFrames( new float[ sf.getChannelNum() ][ len ], 0, len );	// warm up the first block
+					sf.seekFrame( 0L );
+				}
+				catch( IOException e1 ) {
+					sf.cleanUp();
+					throw e1;
+				}
+				return sf;
+			}
+		}));
+	}
+
+	private void evict() {
+		final Iterator<SURFFile> iter = openFiles.values().iterator();
+		while( (openFiles.size() + pending.size() > maxOpenFiles) && (openFiles.size() > 1) ) {
+			iter.next().cleanUp();		// eldest = least recently used
+			iter.remove();
+		}
+	}
+
+	/**
+	 *  Always fails, datasets are read-only.
+	 */
+	public void writeFrames( float[][] data, int offset, int len ) throws IOException {
+		throw new IOException( "SURFDatasetFile is read-only" );
+	}
+
+	public void copyFrames( InterleavedStreamFile target, long len ) throws IOException {
+		int			chunkLength;
+		int			tempBufSize	= (int) Math.min( len, 8192 );
+		float[][]	tempBuf		= new float[ channels ][ tempBufSize ];
+
+		while( len > 0 ) {
+			chunkLength	= (int) Math.min( len, tempBufSize );
+			this.readFrames( tempBuf, 0, chunkLength );
+			target.writeFrames( tempBuf, 0, chunkLength );
+			len -= chunkLength;
+		}
+	}
+
+	/**
+	 *  Moves the position on the global timeline.
+	 */
+	public void seekFrame( long position ) throws IOException {
+		framePosition = position;
+	}
+
+	public long getFramePosition() throws IOException {
+		return framePosition;
+	}
+
+	/**
+	 *  Returns the length of the global timeline in frames.
+	 */
+	public long getFrameNum() throws IOException {
+		return length;
+	}
+
+	/**
+	 *  Always fails, datasets are read-only.
+	 */
+	public void setFrameNum( long n ) throws IOException {
+		throw new IOException( "SURFDatasetFile is read-only" );
+	}
+
+	/**
+	 *  Always fails, datasets are read-only.
+	 */
+	public void truncate() throws IOException {
+		throw new IOException( "SURFDatasetFile is read-only" );
+	}
+
+	public int getChannelNum() {
+		return channels;
+	}
+
+	public void flush() throws IOException { /* empty */ }
+
+	/**
+	 *  Returns <code>null</code>, since a dataset is not backed by
+	 *  a single file.
+	 */
+	public File getFile() {
+		return null;
+	}
+
+	/**
+	 *  Closes all open files of the dataset and stops prefetching.
+	 */
+	public void close() throws IOException {
+		IOException ex = null;
+
+		if( prefetcher != null ) prefetcher.shutdown();
+		for( Iterator<Future<SURFFile>> iter = pending.values().iterator(); iter.hasNext(); ) {
+			try {
+				iter.next().get().cleanUp();
+			}
+			catch( Exception e1 ) { /* ignored */ }
+		}
+		pending.clear();
+		for( Iterator<SURFFile> iter = openFiles.values().iterator(); iter.hasNext(); ) {
+			try {
+				iter.next().close();
+			}
+			catch( IOException e1 ) {
+				ex = e1;
+			}
+		}
+		openFiles.clear();
+		if( ex != null ) throw ex;
+	}
+}
@@ -26,6 +26,8 @@
 package surf.file;
 
 //import java.io.DataInput;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -37,13 +39,22 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 
 //import de.sciss.app.AbstractApplication;
 
@@ -101,6 +112,7 @@ public class SURFFile
 implements InterleavedStreamFile {
 	private static final int MODE_READONLY   = 0;
 	private static final int MODE_READWRITE  = 1;
+	private static final int MODE_UPDATE     = 2;
 
 	protected final RandomAccessFile	raf;
 	protected final FileChannel			fch;
@@ -114,6 +126,24 @@ implements InterleavedStreamFile {
 	protected int						bytesPerFrame;
 	protected int						frameBufCapacity;
 	private BufferHandler				bh;
+	private float[][]					scratchBuf		= null;		// lazily created for block reads
+	private float[][]					calibrationBuf	= null;		// lazily created for generic calibrated reads
+	private float[][]					calibrationView;
+	private double[]					calibrationGain	= null;
+	private ReadAhead					readAhead		= null;
+	private FrameBlockCache				blockCache		= null;
+	private Object						blockKey		= null;
+	private boolean						blockLoaded;
+	private AsyncEncoder				encoder			= null;
+	private BlockChecksums				checksums		= null;
+	private int							checksumFrames;
+	private boolean						checksumsDirty;
+	private EnergyIndex					energy			= null;
+	private boolean						energyDirty;
+	private double[]					energyTable		= null;		// lazily read for energy queries
+	private long						fileLength;					// logical length, the file may be preallocated beyond
+	private volatile long				clippedSamples	= 0L;		// written by the encoder thread
+	private int							headerReserve	= 0;
 	protected int						channels;
 	private long						framePosition;
 	
@@ -166,14 +196,54 @@ implements InterleavedStreamFile {
 	 *						format is unsupported
 	 */
 	public static SURFFile openAsWrite( SURFFileDescr afd )
+	throws IOException {
+		return openAsWrite( afd, 0L, 0 );
+	}
+	
+	/**
+	 *  Opens an audio file for writing, like <code>openAsWrite( SURFFileDescr )</code>,
+	 *	but prepares the file for a long-running recording. The data region is
+	 *	allocated up front for the expected number of frames, so the file system
+	 *	can place it in few contiguous extents instead of growing it piecewise
+	 *	with every buffer written. Since Java offers no way to reserve disk space
+	 *	without writing it, the region is filled with zeros, which takes about as
+	 *	long as writing that amount of data.
+	 *	<p>
+	 *	The logical length of the file is tracked separately from the allocated
+	 *	one: the header only ever covers the frames actually written, and
+	 *	<code>close</code> and <code>truncate</code> give back the unused tail.
+	 *	A file whose writer was interrupted is read up to the length of the last
+	 *	header update, ignoring the zeros behind it.
+	 *	<p>
+	 *	Additionally, free space can be reserved in the header. It is stored as
+	 *	a <code>JUNK</code> chunk in front of the sample data, which
+	 *	<code>updateAnnotations</code> fills when labels or comments are added later,
+	 *	instead of appending them behind the sample data.
+	 *
+	 *  @param  afd				format and resolution of the new audio file.
+	 *							the header is immediately written to the hard-disc
+	 *	@param	expectedFrames	number of frames to allocate, e.g. the expected duration
+	 *							in seconds times the sample rate, or zero to grow the
+	 *							file as frames are written. The file may still grow
+	 *							beyond this size
+	 *	@param	headerReserve	number of bytes to reserve for later annotations, or zero
+	 *
+	 *  @throws IOException if the file could not be created or the
+	 *						format is unsupported
+	 *
+	 *	@see	#updateAnnotations()
+	 */
+	public static SURFFile openAsWrite( SURFFileDescr afd, long expectedFrames, int headerReserve )
 	throws IOException {
 		if( afd.file.exists() ) afd.file.delete();
 		final SURFFile sf	= new SURFFile( afd.file, MODE_READWRITE );
 		sf.afd				= afd;
 		afd.length			= 0;
+		sf.headerReserve	= Math.max( 0, headerReserve );
 		sf.afh				= sf.createHeader();
 		sf.afh.writeHeader( sf.afd );
 		sf.init();
+		if( expectedFrames > 0 ) sf.preallocate( expectedFrames );
 		sf.seekFrame( 0 );
 		sf.updateStep		= (long) afd.rate * 20;
 		sf.updateLen		= sf.updateStep;
@@ -181,6 +251,41 @@ implements InterleavedStreamFile {
 		return sf;
 	}
 	
+	/**
+	 *  Opens an existing file for updating its annotations. The header
+	 *	and all annotations are read, so the labels, regions, notes,
+	 *	comments, metadata and info of the descriptor can be modified and
+	 *	stored with <code>updateAnnotations</code>. The sample data can be
+	 *	read but must not be written.
+	 *
+	 *  @param		f   the path name of the file
+	 *  @return		a new <code>SURFFile</code> object
+	 *
+	 *  @throws IOException if the file was not found, could not be read
+	 *						or has an unknown or unsupported format
+	 *
+	 *	@see	#updateAnnotations()
+	 */
+	public static SURFFile openAsUpdate( File f )
+	throws IOException {
+		final SURFFile sf	= new SURFFile( f, MODE_UPDATE );
+		try {
+			sf.afd				= new SURFFileDescr();
+			sf.afd.file			= f;
+			sf.afd.type			= sf.retrieveType();
+			sf.afh				= sf.createHeader();
+			sf.afh.readHeader( sf.afd );
+			sf.init();
+			sf.seekFrame( 0 );
+			sf.readMarkers();
+		}
+		catch( IOException e1 ) {
+			sf.cleanUp();
+			throw e1;
+		}
+		return sf;
+	}
+	
 	/**
 	 *  Determines the type of audio file.
 	 *
@@ -199,9 +304,40 @@ implements InterleavedStreamFile {
 		return type;
 	}
 	
+	/**
+	 *  Reads the format and the SURF configuration of a file without
+	 *	opening it for reading. The beginning of the file, which normally
+	 *	holds the format and configuration chunks, is fetched with a single
+	 *	read; further reads only happen if large annotation chunks precede
+	 *	the sample data, and then only fetch the chunk headers. This is
+	 *	meant for indexing many files, see <code>SURFCatalog</code>.
+	 *
+	 *  @param		path   the path name of the file
+	 *  @return		a description whose <code>file</code>, <code>type</code>,
+	 *				<code>channels</code>, <code>rate</code>, <code>bitsPerSample</code>,
+	 *				<code>sampleFormat</code>, <code>length</code>, initial timestamp,
+	 *				timezone, SURF sample rate and channel calibration are
+	 *				filled in. Annotations are not read.
+	 *
+	 *  @throws IOException if the file could not be read
+	 *						or has an unknown or unsupported format
+	 *
+	 *	@see	SURFCatalog
+	 */
+	public static SURFFileDescr probe( Path path )
+	throws IOException {
+		final FileChannel ch = FileChannel.open( path, StandardOpenOption.READ );
+		try {
+			return new HeaderProbe( ch ).read( path.toFile() );
+		}
+		finally {
+			ch.close();
+		}
+	}
+	
 	private SURFFile( File f, int mode )
 	throws IOException {
-		raf			= new RandomAccessFile( f, mode == MODE_READWRITE ? "rw" : "r" );
+		raf			= new RandomAccessFile( f, mode == MODE_READONLY ? "r" : "rw" );
 		fch			= raf.getChannel();
 		this.mode   = mode;
 	}
@@ -286,6 +422,15 @@ implements InterleavedStreamFile {
 			}
 		}
 		if( bh == null) throw new IOException( getResourceString( "errAudioFileEncoding" ));
+		if( afd.isQuantized() ) {
+			if( (afd.sampleFormat != SURFFileDescr.FORMAT_INT) || (afd.bitsPerSample < 16) ||
+				(afd.SURF_channel_scale.length != channels) || (afd.SURF_channel_offset == null) ||
+				(afd.SURF_channel_offset.length != channels) ) {
+				
+				throw new IOException( getResourceString( "errAudioFileEncoding" ));
+			}
+			bh = new QuantizedBufferHandler( bh );
+		}
 	}
 
 	private AudioFileHeader createHeader() throws IOException {
@@ -340,10 +485,421 @@ implements InterleavedStreamFile {
 	 *						seek past the file's end.
 	 */
 	public void seekFrame( long frame ) throws IOException {
+		if( encoder != null ) encoder.drain();
 		long physical	= afh.getSampleDataOffset() + frame * bytesPerFrame;
 		raf.seek( physical );
+		if( readAhead != null ) readAhead.seek( physical );
 		framePosition = frame;
 	}
+
+	/**
+	 *	Switches a file opened for reading to sequential scan mode.
+	 *	Sample data is then read through an asynchronous channel
+	 *	which keeps <code>numBuffers</code> large, aligned reads in
+	 *	flight: while the frames of one buffer are being decoded, the
+	 *	next ones are already being fetched from disk. Use two buffers
+	 *	for double buffering, three for triple buffering. Seeking
+	 *	outside the current buffer restarts the read-ahead, so this
+	 *	mode only pays off for long sequential scans.
+	 *
+	 *	@param	numBuffers	number of buffers in flight, or zero to
+	 *						return to plain synchronous reads
+	 *	@param	bufferSize	size of each buffer in bytes, rounded up
+	 *						to a multiple of 4 KB (e.g. 1 MB)
+	 *
+	 *	@throws	IOException	if the asynchronous channel cannot be opened,
+	 *						or the file was opened for writing
+	 */
+	public void setReadAhead( int numBuffers, int bufferSize ) throws IOException {
+		if( mode != MODE_READONLY ) throw new IOException( "read-ahead requires a file opened for reading" );
+		if( readAhead != null ) {
+			readAhead.close();
+			readAhead = null;
+		}
+		if( numBuffers > 0 ) {
+			readAhead = new ReadAhead( afd.file, numBuffers, bufferSize );
+			readAhead.seek( afh.getSampleDataOffset() + framePosition * bytesPerFrame );
+		}
+	}
+
+	/**
+	 *	Attaches a shared cache of decoded blocks to a file opened for
+	 *	reading. Subsequent calls to <code>readFrames( float[][], int, int )</code>
+	 *	are served from the cache, which is keyed by the file's identity,
+	 *	so all readers of the same file attached to the same cache share
+	 *	the decoded data: a block is decoded once, by the first reader
+	 *	which misses it, and copied out of the cache by all others.
+	 *	This pays off when many readers revisit the same regions of a file,
+	 *	e.g. overlapping analysis windows.
+	 *
+	 *	@param	cache	the cache to use, such as <code>FrameBlockCache.getDefault()</code>,
+	 *					or <code>null</code> to decode every read directly
+	 *
+	 *	@throws	IOException	if the file was opened for writing
+	 *
+	 *	@see	FrameBlockCache
+	 */
+	public void setBlockCache( FrameBlockCache cache ) throws IOException {
+		if( mode != MODE_READONLY ) throw new IOException( "block cache requires a file opened for reading" );
+		blockKey	= cache == null ? null : FrameBlockCache.createFileKey( afd.file );
+		blockCache	= cache;
+	}
+
+	/**
+	 *	Switches a file opened for writing to asynchronous mode.
+	 *	<code>writeFrames( float[][], int, int )</code> then only copies
+	 *	the frames into one of <code>numBlocks</code> reusable blocks and
+	 *	returns; a background thread encodes full blocks and writes them
+	 *	to disk, also updating the header from time to time. When all
+	 *	blocks are waiting to be written, <code>writeFrames</code> blocks
+	 *	until the encoder has caught up.
+	 *	<p>
+	 *	An error of the background thread is thrown by the next call to
+	 *	<code>writeFrames</code>, <code>flush</code>, <code>seekFrame</code>
+	 *	or <code>close</code>. Seeking, flushing, truncating and the integer
+	 *	and raw write methods wait until all pending blocks are written.
+	 *
+	 *	@param	numBlocks	number of blocks in the queue (at least two,
+	 *						so one can be filled while another is written),
+	 *						or zero to return to synchronous writes
+	 *	@param	blockFrames	number of frames per block
+	 *
+	 *	@throws	IOException	if the file was opened for reading, or
+	 *						pending blocks could not be written
+	 */
+	public void setAsyncWrite( int numBlocks, int blockFrames ) throws IOException {
+		if( mode != MODE_READWRITE ) throw new IOException( "asynchronous writes require a file opened for writing" );
+		if( encoder != null ) {
+			final AsyncEncoder e = encoder;
+			encoder = null;
+			e.shutdown();
+		}
+		if( numBlocks > 0 ) {
+			encoder = new AsyncEncoder( Math.max( 2, numBlocks ), Math.max( 1, blockFrames ));
+		}
+	}
+
+	/**
+	 *	Stores the current annotations of the descriptor (labels, regions,
+	 *	notes, comments, metadata and info) without rewriting the sample
+	 *	data. The new annotation chunks are placed in reserved (JUNK) space
+	 *	behind the current ones if it is large enough, otherwise they are
+	 *	appended to the file. Either way they are written completely before
+	 *	a single header field makes them visible, so an interrupted update
+	 *	leaves the previous annotations intact. The previous annotation
+	 *	chunks are then turned into JUNK chunks.
+	 *
+	 *	@throws	IOException	if the file was not opened with <code>openAsUpdate</code>,
+	 *						was not closed properly after writing, or a write error occurs
+	 *
+	 *	@see	#openAsUpdate( File )
+	 */
+	public void updateAnnotations() throws IOException {
+		if( mode != MODE_UPDATE ) throw new IOException( "annotations can only be updated in files opened for update" );
+		afh.updateAnnotations( afd );
+	}
+
+	/**
+	 *	Makes a file opened for writing store a table of CRC-32C
+	 *	checksums, one per block of <code>blockFrames</code> frames, in
+	 *	a chunk behind the sample data. The checksums are computed
+	 *	incrementally as frames are written and the table is stored
+	 *	when the file is closed. If frames are overwritten (after
+	 *	<code>seekFrame</code>) or already exist, the table is computed
+	 *	from the file contents on <code>close</code> instead.
+	 *	Use <code>SURFFileVerifier</code> to check a file against its table.
+	 *
+	 *	@param	blockFrames	number of frames per checksum block
+	 *						(e.g. 1 MB worth of frames), or zero to not
+	 *						store checksums
+	 *
+	 *	@throws	IOException	if the file was opened for reading
+	 *
+	 *	@see	SURFFileVerifier
+	 */
+	public void setChecksums( int blockFrames ) throws IOException {
+		if( mode != MODE_READWRITE ) throw new IOException( "checksums require a file opened for writing" );
+		if( encoder != null ) encoder.drain();
+		if( blockFrames > 0 ) {
+			checksums		= new BlockChecksums( (long) blockFrames * bytesPerFrame );
+			checksumFrames	= blockFrames;
+			checksumsDirty	= afd.length > 0;
+		} else {
+			checksums		= null;
+		}
+	}
+
+	/**
+	 *	Makes a file opened for writing store the running sums of the
+	 *	samples of each channel at the end of every block of
+	 *	<code>blockFrames</code> frames, in a chunk behind the sample data.
+	 *	With this index, <code>getEnergy</code> sums a range of frames by
+	 *	reading two entries and at most half a block at either end of the
+	 *	range, instead of all of its frames. The sums of 32 bit float files
+	 *	are computed incrementally as frames are appended, those of other
+	 *	formats, and of files whose frames were overwritten, from the file
+	 *	contents on <code>close</code>. Existing files are indexed through
+	 *	<code>updateEnergyIndex</code>.
+	 *
+	 *	@param	blockFrames	number of frames per block (e.g. one hour worth of
+	 *						frames), or zero to not store the index
+	 *
+	 *	@throws	IOException	if the file was opened for reading
+	 *
+	 *	@see	#getEnergy( Span )
+	 */
+	public void setEnergyIndex( int blockFrames ) throws IOException {
+		if( mode != MODE_READWRITE ) throw new IOException( "energy index requires a file opened for writing" );
+		if( encoder != null ) encoder.drain();
+		if( blockFrames > 0 ) {
+			energy		= new EnergyIndex( channels, blockFrames );
+			energyDirty	= (afd.length > 0) || (afd.sampleFormat != SURFFileDescr.FORMAT_FLOAT) || (afd.bitsPerSample != 32);
+		} else {
+			energy		= null;
+		}
+	}
+
+	/**
+	 *	Computes the energy index of a file opened for update from its
+	 *	sample data, in one pass, and stores it behind the existing chunks,
+	 *	replacing a previous index.
+	 *
+	 *	@param	blockFrames	number of frames per block
+	 *
+	 *	@throws	IOException	if the file was not opened for update or cannot be read or written
+	 *
+	 *	@see	#setEnergyIndex( int )
+	 */
+	public void updateEnergyIndex( int blockFrames ) throws IOException {
+		final EnergyIndex e;
+
+		if( mode != MODE_UPDATE ) throw new IOException( "energy index can only be updated in files opened for update" );
+		if( blockFrames <= 0 ) throw new IllegalArgumentException( "blockFrames " + blockFrames );
+		e			= computeEnergy( blockFrames );
+		afh.appendEnergy( blockFrames, channels, e.getTable() );
+		energyTable	= null;
+	}
+
+	/**
+	 *	Returns whether the file has an energy index
+	 *
+	 *	@see	#setEnergyIndex( int )
+	 */
+	public boolean hasEnergyIndex() throws IOException {
+		return( getEnergyTable() != null );
+	}
+
+	/**
+	 *	Integrates each channel over a range of frames: the calibrated samples
+	 *	are summed and multiplied by the sampling period in hours, divided by
+	 *	1000. For channels in watts this gives kilowatt hours, for channels in
+	 *	var kilovar hours. If the file has an energy index, only the frames
+	 *	between the ends of the range and the nearest block boundaries are
+	 *	read, otherwise all frames of the range. The file position is not changed.
+	 *
+	 *	@param	span	the frames to integrate, clipped to the file
+	 *
+	 *	@return	the energy of each channel
+	 *
+	 *	@throws	IOException	if a read error occurs
+	 *
+	 *	@see	#setEnergyIndex( int )
+	 */
+	public double[] getEnergy( Span span ) throws IOException {
+		final double[]	result	= new double[ channels ];
+		final double[]	sums	= new double[ channels ];
+		final long		start	= Math.max( 0L, span.start );
+		final long		stop	= Math.min( afd.length, span.stop );
+		final long		oldPos	= framePosition;
+		final double	scale	= 1.0 / (afd.getSampleRate() * 3600.0 * 1000.0);
+
+		if( stop > start ) {
+			try {
+				if( getEnergyTable() == null ) {
+					sumFrames( start, stop, 1.0, result );
+				} else {
+					prefixSums( stop, result );
+					prefixSums( start, sums );
+					for( int ch = 0; ch < channels; ch++ ) result[ ch ] -= sums[ ch ];
+				}
+			}
+			finally {
+				seekFrame( oldPos );
+			}
+		}
+		for( int ch = 0; ch < channels; ch++ ) result[ ch ] *= afd.getChannelCalibration( ch ) * scale;
+		return result;
+	}
+
+	/**
+	 *	Integrates each channel over the frames recorded within a time window,
+	 *	using the initial timestamp and sample rate of the file.
+	 *
+	 *	@param	startMillis	the start of the window, in milliseconds since 1970
+	 *	@param	stopMillis	the end of the window, exclusive
+	 *
+	 *	@return	the energy of each channel, e.g. in kilowatt hours
+	 *
+	 *	@throws	IOException	if a read error occurs or the initial timestamp cannot be parsed
+	 *
+	 *	@see	#getEnergy( Span )
+	 *	@see	SURFFileDescr#getFrameAtTime( long )
+	 */
+	public double[] getEnergy( long startMillis, long stopMillis ) throws IOException {
+		try {
+			return getEnergy( new Span( afd.getFrameAtTime( startMillis ), afd.getFrameAtTime( stopMillis )));
+		}
+		catch( ParseException e1 ) {
+			throw IOUtil.map( e1 );
+		}
+	}
+
+	// the sums of the stored samples over frames 0 ... pos, from the nearest block boundary
+	private void prefixSums( long pos, double[] sums ) throws IOException {
+		final int		blockFrames	= afh.getEnergyBlockFrames();
+		final int		numBlocks	= energyTable.length / channels;
+		final long		k			= Math.min( numBlocks, pos / blockFrames );		// complete blocks before pos
+		final long		boundary	= k * blockFrames;
+
+		if( (pos - boundary > blockFrames >> 1) && (k < numBlocks) ) {		// nearer to the next boundary
+			System.arraycopy( energyTable, (int) k * channels, sums, 0, channels );
+			sumFrames( pos, boundary + blockFrames, -1.0, sums );
+		} else {
+			if( k > 0 ) {
+				System.arraycopy( energyTable, (int) (k - 1) * channels, sums, 0, channels );
+			} else {
+				Arrays.fill( sums, 0.0 );
+			}
+			sumFrames( boundary, pos, 1.0, sums );
+		}
+	}
+
+	// adds the stored samples of frames start ... stop, times sign, to sums
+	private void sumFrames( long start, long stop, double sign, double[] sums ) throws IOException {
+		final float[][]	buf	= new float[ channels ][ (int) Math.min( Math.max( 1L, stop - start ), 8192 )];
+		int				chunkLength;
+		double			sum;
+
+		seekFrame( start );
+		for( long pos = start; pos < stop; pos += chunkLength ) {
+			chunkLength	= (int) Math.min( stop - pos, buf[ 0 ].length );
+			readFrames( buf, 0, chunkLength );
+			for( int ch = 0; ch < channels; ch++ ) {
+				sum = 0.0;
+				for( int i = 0; i < chunkLength; i++ ) sum += buf[ ch ][ i ];
+				sums[ ch ] += sign * sum;
+			}
+		}
+	}
+
+	private double[] getEnergyTable() throws IOException {
+		if( energyTable == null ) energyTable = afh.readEnergy( channels );
+		return energyTable;
+	}
+
+	// reads all frames once to sum them up
+	private EnergyIndex computeEnergy( int blockFrames ) throws IOException {
+		final EnergyIndex	e		= new EnergyIndex( channels, blockFrames );
+		final float[][]		buf		= new float[ channels ][ 8192 ];
+		final long			oldPos	= framePosition;
+		int					chunkLength;
+
+		try {
+			seekFrame( 0 );
+			for( long pos = 0L; pos < afd.length; pos += chunkLength ) {
+				chunkLength	= (int) Math.min( afd.length - pos, buf[ 0 ].length );
+				readFrames( buf, 0, chunkLength );
+				e.update( buf, 0, chunkLength );
+			}
+		}
+		finally {
+			seekFrame( oldPos );
+		}
+		return e;
+	}
+
+	private void writeEnergy() throws IOException {
+		if( energyDirty || (energy.getLength() != afd.length) ) {
+			energy = computeEnergy( energy.getBlockFrames() );
+		}
+		afh.writeEnergy( afh.getSampleDataOffset() + afd.length * bytesPerFrame,
+						 energy.getBlockFrames(), channels, energy.getTable() );
+		fileLength = raf.length();
+	}
+
+	// all sample data reads go through here, so they can be served by the read-ahead
+	private int readBytes( ByteBuffer b ) throws IOException {
+		return( readAhead != null ? readAhead.read( b ) : fch.read( b ));
+	}
+
+	// all sample data writes go through here, so appended frames can be checksummed
+	private void writeBytes( ByteBuffer b ) throws IOException {
+		if( (checksums != null) && !checksumsDirty ) {
+			if( fch.position() - afh.getSampleDataOffset() == checksums.getLength() ) {
+				checksums.update( b.duplicate() );
+			} else {
+				checksumsDirty = true;		// not an append, recompute on close
+			}
+		}
+		if( (energy != null) && !energyDirty ) {
+			if( fch.position() - afh.getSampleDataOffset() == energy.getLength() * bytesPerFrame ) {
+				energy.updateFloat( b, afh.getByteOrder() );
+			} else {
+				energyDirty = true;
+			}
+		}
+		while( b.hasRemaining() ) fch.write( b );
+		if( fch.position() > fileLength ) fileLength = fch.position();
+	}
+
+	// fills the data region up to the given number of frames with zeros, without moving the file pointer
+	private void preallocate( long frames ) throws IOException {
+		final long			end	= afh.getSampleDataOffset() + frames * bytesPerFrame;
+		final ByteBuffer	b	= ByteBuffer.allocateDirect( 1 << 20 );
+		
+		for( long pos = raf.length(); pos < end; pos += b.position() ) {
+			b.clear();
+			if( end - pos < b.capacity() ) b.limit( (int) (end - pos) );
+			while( b.hasRemaining() ) fch.write( b, pos + b.position() );
+		}
+	}
+
+	private void writeChecksums() throws IOException {
+		final long	dataLen	= afd.length * bytesPerFrame;
+		final long	dataOff	= afh.getSampleDataOffset();
+		ByteBuffer	b;
+		long		pos;
+
+		if( checksumsDirty || (checksums.getLength() != dataLen) ) {
+			checksums	= new BlockChecksums( (long) checksumFrames * bytesPerFrame );
+			b			= ByteBuffer.allocateDirect( 1 << 20 );
+			for( pos = 0L; pos < dataLen; pos += b.position() ) {
+				b.clear();
+				if( dataLen - pos < b.capacity() ) b.limit( (int) (dataLen - pos) );
+				while( b.hasRemaining() ) {
+					if( fch.read( b, dataOff + pos + b.position() ) < 0 ) throw new EOFException();
+				}
+				b.flip();
+				checksums.update( b );
+			}
+		}
+		afh.writeChecksums( dataOff + dataLen, checksumFrames, checksums.getTable() );
+		fileLength = raf.length();
+	}
+
+	// ---- verifier access ----
+
+	long getSampleDataOffset() {
+		return afh.getSampleDataOffset();
+	}
+
+	int[] readChecksumTable() throws IOException {
+		return afh.readChecksums();
+	}
+
+	int getChecksumBlockFrames() {
+		return afh.getChecksumBlockFrames();
+	}
 	
 	/**
 	 *	Flushes pending buffer content, and 
@@ -355,6 +911,7 @@ implements InterleavedStreamFile {
 	 *	as accurate as possible.
 	 */
 	public void flush() throws IOException {
+		if( encoder != null ) encoder.drain();
 		updateTime	= System.currentTimeMillis() + 10000;
 		afd.length	= framePosition;
 		afh.updateHeader( afd );
@@ -392,10 +949,154 @@ implements InterleavedStreamFile {
 	 *  @throws IOException if a read error or end-of-file occurs.
 	 */
 	public void readFrames( float[][] data, int offset, int length ) throws IOException {
-		bh.readFrames( data, offset, length );
+		if( blockCache != null ) {
+			readCached( data, offset, length );
+		} else {
+			bh.readFrames( data, offset, length );
+			framePosition += length;
+		}
+	}
+
+	private void readCached( float[][] data, int offset, int length ) throws IOException {
+		final int	blockFrames	= blockCache.getBlockFrames();
+		long		pos			= framePosition;
+		long		block;
+		int			off, chunkLength;
+		FrameBlock	fb;
+
+		blockLoaded = false;
+		while( length > 0 ) {
+			block		= pos / blockFrames;
+			fb			= blockCache.get( blockKey, block, createBlockLoader( block, blockFrames ));
+			off			= (int) (pos - block * blockFrames);
+			chunkLength	= Math.min( length, fb.getFrameNum() - off );
+			if( chunkLength <= 0 ) throw new EOFException();
+			for( int ch = 0; ch < channels; ch++ ) {
+				if( data[ ch ] != null ) fb.get( ch, off, data[ ch ], offset, chunkLength );
+			}
+			pos		+= chunkLength;
+			offset	+= chunkLength;
+			length	-= chunkLength;
+		}
+		if( blockLoaded ) {
+			seekFrame( pos );		// decoding a block has moved the file pointer
+		} else {
+			framePosition = pos;
+		}
+	}
+
+	private Callable<FrameBlock> createBlockLoader( final long block, final int blockFrames ) {
+		return new Callable<FrameBlock>() {
+			public FrameBlock call() throws IOException {
+				final long			start	= block * blockFrames;
+				final int			len		= (int) Math.min( blockFrames, afd.length - start );
+				final FrameBlock	fb;
+
+				if( len <= 0 ) throw new EOFException();
+				fb			= new FrameBlock( channels, len, FrameBlock.LAYOUT_PLANAR );
+				readFrames( fb, start, len );
+				blockLoaded	= true;
+				return fb;
+			}
+		};
+	}
+
+	/**
+	 *	Reads sample frames into an off-heap block. The file is positioned
+	 *	at <code>startFrame</code> before reading and is left positioned
+	 *	after the last frame read. The block's range is updated accordingly.
+	 *	<p>
+	 *	Interleaved blocks of 32 bit float files whose byte order
+	 *	matches the platform are filled directly from the file channel,
+	 *	all other combinations are decoded in chunks through a reusable
+	 *	scratch buffer.
+	 *
+	 *  @param  dst			the block to fill, starting at its first frame
+	 *  @param  startFrame	the first frame to read
+	 *  @param  frames		number of continuous frames to read, at most
+	 *						the block's capacity
+	 *
+	 *  @throws IOException if a read error or end-of-file occurs
+	 *
+	 *  @see	FrameBlock
+	 */
+	public void readFrames( FrameBlock dst, long startFrame, int frames ) throws IOException {
+		int chunkLength;
+
+		if( dst.getChannelNum() != channels ) {
+			throw new IllegalArgumentException( dst.getChannelNum() + " != " + channels + " channels" );
+		}
+		dst.setRange( startFrame, frames );
+		seekFrame( startFrame );
+
+		if( (dst.getLayout() == FrameBlock.LAYOUT_INTERLEAVED) &&
+			(afd.sampleFormat == SURFFileDescr.FORMAT_FLOAT) && (afd.bitsPerSample == 32) &&
+			(afh.getByteOrder() == ByteOrder.nativeOrder()) ) {
+			
+			readFramesRaw( dst.getBuffer(), frames );
+			return;
+		}
+
+		if( scratchBuf == null ) scratchBuf = new float[ channels ][ frameBufCapacity ];
+		for( int off = 0; off < frames; off += chunkLength ) {
+			chunkLength = Math.min( frameBufCapacity, frames - off );
+			bh.readFrames( scratchBuf, 0, chunkLength );
+			framePosition += chunkLength;
+			dst.put( scratchBuf, 0, off, chunkLength );
+		}
+	}
+
+	/**
+	 *	Reads sample frames from the current position in physical units,
+	 *	e.g. watts for a channel of real power. Each sample is multiplied
+	 *	by the calibration constant of its channel (<code>SURF_channel_calibration</code>,
+	 *	where a missing or zero constant counts as one), after the scale
+	 *	and offset of quantized files. The calibration is applied while
+	 *	decoding, so the frames are produced in a single pass over the
+	 *	data read from disk.
+	 *	<p>
+	 *	This bypasses a block cache set with <code>setBlockCache</code>.
+	 *
+	 *  @param  data	buffer to hold the frames, de-interleaved as in
+	 *					<code>readFrames( float[][], int, int )</code>. null
+	 *					arrays denote channels which are skipped.
+	 *  @param  offset  offset in the buffer in sample frames
+	 *  @param  length  number of continuous frames to read.
+	 *
+	 *  @throws IOException if a read error or end-of-file occurs.
+	 *
+	 *  @see	#readFrames( float[][], int, int )
+	 */
+	public void readFramesCalibrated( float[][] data, int offset, int length ) throws IOException {
+		if( blockCache != null ) seekFrame( framePosition );	// cached reads may have left the file pointer behind
+		bh.readFrames( data, offset, length, getCalibrationGain() );
+		framePosition += length;
+	}
+
+	/**
+	 *	Reads sample frames from the current position in physical units
+	 *	as double precision numbers, e.g. to sum up energy over long
+	 *	periods without accumulating rounding errors. The samples are
+	 *	converted exactly like in <code>readFramesCalibrated( float[][], int, int )</code>,
+	 *	but without rounding the products to 32 bit floating point.
+	 *
+	 *  @see	#readFramesCalibrated( float[][], int, int )
+	 */
+	public void readFramesCalibrated( double[][] data, int offset, int length ) throws IOException {
+		if( blockCache != null ) seekFrame( framePosition );
+		bh.readFrames( data, offset, length, getCalibrationGain() );
 		framePosition += length;
 	}
 
+	// the calibration may be set after opening, so it is looked up for each read
+	private double[] getCalibrationGain() {
+		if( calibrationGain == null ) calibrationGain = new double[ channels ];
+		for( int ch = 0; ch < channels; ch++ ) {
+			calibrationGain[ ch ] = afd.getChannelCalibration( ch );
+		}
+		return calibrationGain;
+	}
+
 	/**
 	 *	Writes sample frames to the file starting at the current position.
 	 *  If you write past the previous end of the file, the <code>length</code>
@@ -416,39 +1117,195 @@ implements InterleavedStreamFile {
 	 *  @throws IOException if a write error occurs.
 	 */
 	public void writeFrames( float[][] data, int offset, int length ) throws IOException {
-		bh.writeFrames( data, offset, length );
-		framePosition += length;
-
-		if( framePosition > afd.length ) {
-			if( (framePosition > updateLen) || (System.currentTimeMillis() > updateTime) ) {
-				flush();
-			} else {
-				afd.length = framePosition;
-			}
+		if( encoder != null ) {
+			encoder.write( data, offset, length );
+		} else {
+			bh.writeFrames( data, offset, length );
 		}
+		framesWritten( length );
 	}
-	
+
 	/**
-	 *	Returns the number of frames
-	 *	in the file.
+	 *	Reads sample frames from the current position without converting
+	 *	them to floating point. The values are the integers as stored
+	 *	in the file, e.g. -32768 ... 32767 for 16 bit files.
+	 *	This is supported for 8 and 16 bit integer files.
 	 *
-	 *	@return	the number of sample frames
-	 *			in the file. includes pending
-	 *			buffer content
+	 *  @param  data	buffer to hold the frames read from hard-disc,
+	 *					de-interleaved as in <code>readFrames( float[][], int, int )</code>
+	 *  @param  offset  offset in the buffer in sample frames
+	 *  @param  length  number of continuous frames to read.
 	 *
-	 *	@throws	IOException	this is never thrown
-	 *			but declared as of the <code>InterleavedStreamFile</code>
-	 *			interface
+	 *  @throws IOException if a read error or end-of-file occurs, or
+	 *						the samples do not fit into 16 bits.
+	 *
+	 *  @see	#readFrames( float[][], int, int )
 	 */
-	public long getFrameNum() throws IOException {
-		return afd.length;
+	public void readFramesShort( short[][] data, int offset, int length ) throws IOException {
+		bh.readFrames( data, offset, length );
+		framePosition += length;
 	}
 
-	public void setFrameNum( long frame ) throws IOException {
-		final long physical	= afh.getSampleDataOffset() + frame * bytesPerFrame;
-
-		raf.setLength( physical );
-		if( framePosition > frame ) framePosition = frame;
+	/**
+	 *	Writes integer sample frames to the file starting at the current
+	 *	position, without floating point conversion.
+	 *	This is supported for 8 and 16 bit integer files.
+	 *
+	 *  @see	#writeFrames( float[][], int, int )
+	 */
+	public void writeFramesShort( short[][] data, int offset, int length ) throws IOException {
+		if( encoder != null ) encoder.drain();
+		bh.writeFrames( data, offset, length );
+		framesWritten( length );
+	}
+
+	/**
+	 *	Reads sample frames from the current position without converting
+	 *	them to floating point. The values are the integers as stored
+	 *	in the file, e.g. -8388608 ... 8388607 for 24 bit files.
+	 *	This is supported for all integer files (8, 16, 24 and 32 bit).
+	 *
+	 *  @param  data	buffer to hold the frames read from hard-disc,
+	 *					de-interleaved as in <code>readFrames( float[][], int, int )</code>
+	 *  @param  offset  offset in the buffer in sample frames
+	 *  @param  length  number of continuous frames to read.
+	 *
+	 *  @throws IOException if a read error or end-of-file occurs, or
+	 *						the file contains floating point samples.
+	 *
+	 *  @see	#readFrames( float[][], int, int )
+	 */
+	public void readFramesInt( int[][] data, int offset, int length ) throws IOException {
+		bh.readFrames( data, offset, length );
+		framePosition += length;
+	}
+
+	/**
+	 *	Writes integer sample frames to the file starting at the current
+	 *	position, without floating point conversion. Values outside the
+	 *	range of the file's bit depth are wrapped, not clipped.
+	 *	This is supported for all integer files (8, 16, 24 and 32 bit).
+	 *
+	 *  @see	#writeFrames( float[][], int, int )
+	 */
+	public void writeFramesInt( int[][] data, int offset, int length ) throws IOException {
+		if( encoder != null ) encoder.drain();
+		bh.writeFrames( data, offset, length );
+		framesWritten( length );
+	}
+
+	/**
+	 *	Reads sample frames from the current position as they are
+	 *	stored on disk: interleaved, in the file's byte order
+	 *	(see <code>getByteOrder</code>) and sample format.
+	 *
+	 *  @param  dst		buffer receiving the frames, starting at its current
+	 *					position. it must have at least <code>length *
+	 *					getBytesPerFrame()</code> bytes remaining.
+	 *  @param  length  number of continuous frames to read.
+	 *
+	 *  @throws IOException if a read error or end-of-file occurs
+	 */
+	public void readFramesRaw( ByteBuffer dst, int length ) throws IOException {
+		final int oldLimit = dst.limit();
+		dst.limit( dst.position() + length * bytesPerFrame );
+		try {
+			while( dst.hasRemaining() ) {
+				if( readBytes( dst ) < 0 ) throw new EOFException();
+			}
+		}
+		finally {
+			dst.limit( oldLimit );
+		}
+		framePosition += length;
+	}
+
+	/**
+	 *	Writes sample frames which are already encoded in the file's
+	 *	byte order and sample format, interleaved. All remaining bytes
+	 *	of the buffer are written.
+	 *
+	 *  @param  src		buffer holding a whole number of frames between
+	 *					its position and limit
+	 *
+	 *  @throws IOException if a write error occurs or the buffer does not
+	 *						hold a whole number of frames
+	 */
+	public void writeFramesRaw( ByteBuffer src ) throws IOException {
+		final int length = src.remaining() / bytesPerFrame;
+		if( length * bytesPerFrame != src.remaining() ) {
+			throw new IOException( getResourceString( "errAudioFileEncoding" ));
+		}
+		if( encoder != null ) encoder.drain();
+		writeBytes( src );
+		framesWritten( length );
+	}
+
+	private void framesWritten( long length ) throws IOException {
+		framePosition += length;
+
+		if( framePosition > afd.length ) {
+			if( encoder != null ) {		// the encoder thread updates the header itself
+				afd.length = framePosition;
+			} else if( (framePosition > updateLen) || (System.currentTimeMillis() > updateTime) ) {
+				flush();
+			} else {
+				afd.length = framePosition;
+			}
+		}
+	}
+	
+	/**
+	 *	Returns the number of samples which were clipped so far because
+	 *	they lay outside the range of a quantized file. The quantization
+	 *	error of all other samples is bounded by
+	 *	<code>SURFFileDescr.getQuantizationError</code>.
+	 *
+	 *	@see	SURFFileDescr#setQuantizationRange( int, double, double )
+	 */
+	public long getClippedSamples() {
+		return clippedSamples;
+	}
+
+	/**
+	 *	Returns the byte order of the sample data, as needed
+	 *	to interpret the buffers of <code>readFramesRaw</code>
+	 */
+	public ByteOrder getByteOrder() {
+		return afh.getByteOrder();
+	}
+
+	/**
+	 *	Returns the size of one interleaved sample frame
+	 *	on disk in bytes
+	 */
+	public int getBytesPerFrame() {
+		return bytesPerFrame;
+	}
+	
+	/**
+	 *	Returns the number of frames
+	 *	in the file.
+	 *
+	 *	@return	the number of sample frames
+	 *			in the file. includes pending
+	 *			buffer content
+	 *
+	 *	@throws	IOException	this is never thrown
+	 *			but declared as of the <code>InterleavedStreamFile</code>
+	 *			interface
+	 */
+	public long getFrameNum() throws IOException {
+		return afd.length;
+	}
+
+	public void setFrameNum( long frame ) throws IOException {
+		final long physical	= afh.getSampleDataOffset() + frame * bytesPerFrame;
+
+		if( encoder != null ) encoder.drain();
+		raf.setLength( physical );
+		fileLength	= physical;
+		if( framePosition > frame ) framePosition = frame;
 		afd.length	= frame;
 	}
 
@@ -470,12 +1327,16 @@ implements InterleavedStreamFile {
 	 *	beyond the current file position, which implicates
 	 *	that you have set the position using <code>seekFrame</code>
 	 *	to a location before the end of the file.
+	 *	Space preallocated by <code>openAsWrite</code> is
+	 *	released as well.
 	 *	The header information is immediately updated.
 	 *
 	 *	@throws	IOException	if truncation fails
 	 */
 	public void truncate() throws IOException {
+		if( encoder != null ) encoder.drain();
 		fch.truncate( fch.position() );
+		fileLength	= fch.position();
 		if( framePosition != afd.length ) {
 			afd.length	= framePosition;
 			updateTime	= System.currentTimeMillis() + 10000;
@@ -511,6 +1372,272 @@ implements InterleavedStreamFile {
 		}
 	}
 
+	/**
+	 *	Writes a range of frames of a file to a new file, e.g. one day of
+	 *	a month-long recording. The labels, notes and regions within the
+	 *	range are kept, moved to their positions in the new file, and
+	 *	regions reaching beyond the range are clipped. Labels, notes and
+	 *	empty regions at the stop of the range, such as a label marking the
+	 *	end of the file, are kept at the end of the new file. The initial
+	 *	timestamp is advanced to the first frame of the range.
+	 *	<p>
+	 *	The sample data is copied by the operating system, without being
+	 *	decoded, through <code>FileChannel.transferTo</code>.
+	 *
+	 *	@param	src		the file to read
+	 *	@param	span	the frames to keep, clipped to the length of <code>src</code>
+	 *	@param	dst		the file to create, which must differ from <code>src</code>
+	 *
+	 *	@return	the description of the new file
+	 *
+	 *	@throws	IOException	if a file cannot be read or written
+	 */
+	public static SURFFileDescr extract( File src, Span span, File dst ) throws IOException {
+		final List<Segment> segs = new ArrayList<Segment>( 1 );
+
+		segs.add( new Segment( src, span ));
+		return assemble( segs, dst );
+	}
+
+	/**
+	 *	Writes several files one after the other to a new file, e.g. the
+	 *	hourly files of a logger. The files must have the same number of
+	 *	channels and sample rate. The annotations of each file are moved
+	 *	behind the frames of the files before it; annotations at the end
+	 *	of a file stay with that file, at the position where the next file
+	 *	begins. The new file takes
+	 *	the initial timestamp, format, comments and metadata of the first
+	 *	file. Gaps in time between the files are not represented.
+	 *	<p>
+	 *	The sample data of files which are encoded like the first one,
+	 *	including calibration and quantization, is copied without being
+	 *	decoded. Other files are converted, preserving the calibrated values.
+	 *
+	 *	@param	srcs	the files to join, in order
+	 *	@param	dst		the file to create, which must differ from all sources
+	 *
+	 *	@return	the description of the new file
+	 *
+	 *	@throws	IOException	if a file cannot be read or written, or the
+	 *						files do not match
+	 */
+	public static SURFFileDescr concat( List<File> srcs, File dst ) throws IOException {
+		final List<Segment> segs = new ArrayList<Segment>( srcs.size() );
+
+		for( int i = 0; i < srcs.size(); i++ ) segs.add( new Segment( srcs.get( i ), null ));
+		return assemble( segs, dst );
+	}
+
+	/**
+	 *	Replaces a range of frames of a file by the frames of another file,
+	 *	and writes the result to a new file. The result consists of the frames
+	 *	of <code>src</code> before <code>cut</code>, all frames of <code>insert</code>
+	 *	and the frames of <code>src</code> behind <code>cut</code>, with their
+	 *	annotations handled as by <code>concat</code>. An empty <code>cut</code>
+	 *	inserts a file, a missing <code>insert</code> removes the range.
+	 *	Annotations within <code>cut</code> are dropped, except for those
+	 *	at its start, which are kept in front of the inserted frames when
+	 *	the cut is not empty, and behind them when it is.
+	 *
+	 *	@param	src		the file to edit
+	 *	@param	cut		the frames of <code>src</code> to remove
+	 *	@param	insert	the file to insert in their place, or <code>null</code>
+	 *	@param	dst		the file to create, which must differ from both sources
+	 *
+	 *	@return	the description of the new file
+	 *
+	 *	@throws	IOException	if a file cannot be read or written, or the
+	 *						files do not match
+	 *
+	 *	@see	#concat( List, File )
+	 */
+	public static SURFFileDescr splice( File src, Span cut, File insert, File dst ) throws IOException {
+		final List<Segment> segs = new ArrayList<Segment>( 3 );
+
+		segs.add( new Segment( src, new Span( 0L, cut.start )));
+		if( insert != null ) segs.add( new Segment( insert, null ));
+		segs.add( new Segment( src, new Span( cut.stop, Long.MAX_VALUE )));
+		return assemble( segs, dst );
+	}
+
+	/*
+	 *	Writes the segments one after the other to dst. The headers are read
+	 *	first, because the annotations of the new file precede its sample data.
+	 *	An annotation belongs to the segment whose span contains its position,
+	 *	or whose span stops at its position, unless a later segment of the same
+	 *	file starts there; so markers at the end of a file or of an extracted
+	 *	range are kept, but never twice.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SURFFileDescr assemble( List<Segment> segs, File dst ) throws IOException {
+		final File				dstCanon	= dst.getCanonicalFile();
+		final Span[]			spans		= new Span[ segs.size() ];
+		final boolean[]			raw			= new boolean[ segs.size() ];
+		final float[][]			gain		= new float[ segs.size() ][];
+		final List<Marker>		labels		= new ArrayList<Marker>();
+		final List<Marker>		notes		= new ArrayList<Marker>();
+		final List<Region>		regions		= new ArrayList<Region>();
+		final SURFFileDescr		descr;
+		SURFFileDescr			first		= null;
+		SURFFileDescr			d;
+		SURFFile				sf;
+		SURFFile				out			= null;
+		Span					span;
+		boolean					withStop;
+		long					offset		= 0L;
+		long					pos;
+
+		for( int i = 0; i < segs.size(); i++ ) {
+			if( segs.get( i ).file.getCanonicalFile().equals( dstCanon )) {
+				throw new IOException( "Cannot overwrite source " + dst.getAbsolutePath() );
+			}
+			sf = openAsRead( segs.get( i ).file );
+			try {
+				sf.readMarkers();
+				if( i == 0 ) sf.readMetadata();
+				d		= sf.getDescr();
+				span	= new Span( 0L, d.length );
+				if( segs.get( i ).span != null ) span = span.intersection( segs.get( i ).span );
+				if( span.start > span.stop ) {
+					pos		= Math.min( span.start, d.length );
+					span	= new Span( pos, pos );
+				}
+				spans[ i ] = span;
+				withStop = true;
+				for( int j = i + 1; withStop && (j < segs.size()); j++ ) {
+					if( segs.get( j ).file.getCanonicalFile().equals( segs.get( i ).file.getCanonicalFile() )) {
+						pos			= segs.get( j ).span == null ? 0L : Math.min( Math.max( 0L, segs.get( j ).span.start ), d.length );
+						withStop	= pos != span.stop;
+					}
+				}
+
+				if( first == null ) {
+					first = d;
+				} else if( (d.channels != first.channels) || (d.getSampleRate() != first.getSampleRate()) ) {
+					throw new IOException( getResourceString( "errAudioFileEncoding" ) + " " + segs.get( i ).file.getName() );
+				}
+				raw[ i ]	= (d.type == first.type) && (d.sampleFormat == first.sampleFormat) &&
+							  (d.bitsPerSample == first.bitsPerSample) &&
+							  Arrays.equals( d.SURF_channel_calibration, first.SURF_channel_calibration ) &&
+							  Arrays.equals( d.SURF_channel_scale, first.SURF_channel_scale ) &&
+							  Arrays.equals( d.SURF_channel_offset, first.SURF_channel_offset );
+				if( !raw[ i ]) {
+					gain[ i ] = new float[ d.channels ];
+					for( int ch = 0; ch < d.channels; ch++ ) {
+						gain[ i ][ ch ] = (float) ((double) d.getChannelCalibration( ch ) / first.getChannelCalibration( ch ));
+					}
+				}
+
+				shiftMarkers( (List<Marker>) d.getProperty( SURFFileDescr.KEY_LABELS ), span, withStop, offset, labels );
+				shiftMarkers( (List<Marker>) d.getProperty( SURFFileDescr.KEY_NOTES ), span, withStop, offset, notes );
+				if( d.getProperty( SURFFileDescr.KEY_REGIONS ) != null ) {
+					for( Region r : (List<Region>) d.getProperty( SURFFileDescr.KEY_REGIONS )) {
+						if( r.span.isEmpty() ? isInSegment( r.span.start, span, withStop ) : r.span.overlaps( span )) {
+							regions.add( new Region( r.span.intersection( span ).shift( offset - span.start ), r.name ));
+						}
+					}
+				}
+			}
+			finally {
+				sf.cleanUp();
+			}
+			offset += span.getLength();
+		}
+
+		descr			= new SURFFileDescr( first );
+		descr.file		= dst;
+		descr.setProperty( SURFFileDescr.KEY_LABELS, labels );
+		descr.setProperty( SURFFileDescr.KEY_NOTES, notes );
+		descr.setProperty( SURFFileDescr.KEY_REGIONS, regions );
+		if( spans[ 0 ].start > 0L ) {
+			try {
+				final SimpleDateFormat df = new SimpleDateFormat( SURFFileDescr.TIMESTAMP_PATTERN );
+				if( (first.SURF_timezone != null) && (first.SURF_timezone.length() > 0) ) {
+					df.setTimeZone( TimeZone.getTimeZone( first.SURF_timezone ));
+				}
+				descr.SURF_initial_timestamp = df.format( new Date( first.getFrameTimeMillis( spans[ 0 ].start )));
+			}
+			catch( ParseException e1 ) { /* no valid timestamp to advance */ }
+		}
+
+		try {
+			out = openAsWrite( descr );
+			for( int i = 0; i < segs.size(); i++ ) {
+				if( spans[ i ].isEmpty() ) continue;
+				sf = openAsRead( segs.get( i ).file );
+				try {
+					if( raw[ i ]) {
+						out.transferFrames( sf, spans[ i ].start, spans[ i ].getLength() );
+					} else {
+						sf.seekFrame( spans[ i ].start );
+						sf.convertFrames( out, spans[ i ].getLength(), gain[ i ]);
+					}
+				}
+				finally {
+					sf.cleanUp();
+				}
+			}
+			out.close();
+			out = null;
+		}
+		finally {
+			if( out != null ) {
+				out.cleanUp();
+				dst.delete();
+			}
+		}
+		return descr;
+	}
+
+	private static void shiftMarkers( List<Marker> src, Span span, boolean withStop, long offset, List<Marker> dst ) {
+		if( src == null ) return;
+		for( int i = 0; i < src.size(); i++ ) {
+			if( isInSegment( src.get( i ).pos, span, withStop )) {
+				dst.add( new Marker( src.get( i ).pos - span.start + offset, src.get( i ).name ));
+			}
+		}
+	}
+
+	private static boolean isInSegment( long pos, Span span, boolean withStop ) {
+		return( span.contains( pos ) || (withStop && (pos == span.stop)) );
+	}
+
+	// appends frames of src, which has this file's encoding, without decoding them
+	private void transferFrames( SURFFile src, long start, long frames ) throws IOException {
+		long	pos		= src.afh.getSampleDataOffset() + start * bytesPerFrame;
+		long	remain	= frames * bytesPerFrame;
+		long	n;
+
+		if( encoder != null ) encoder.drain();
+		if( checksums != null ) checksumsDirty = true;
+		if( energy != null ) energyDirty = true;
+		while( remain > 0L ) {
+			n = src.fch.transferTo( pos, remain, fch );		// writes at and advances our position
+			if( n <= 0L ) throw new EOFException();
+			pos		+= n;
+			remain	-= n;
+		}
+		if( fch.position() > fileLength ) fileLength = fch.position();
+		framesWritten( frames );
+	}
+
+	// copies frames to target, multiplying each channel by a gain
+	private void convertFrames( SURFFile target, long length, float[] gain ) throws IOException {
+		final float[][]	buf	= new float[ channels ][ (int) Math.min( length, 8192 )];
+		int				chunkLength;
+
+		while( length > 0 ) {
+			chunkLength	= (int) Math.min( length, buf[ 0 ].length );
+			readFrames( buf, 0, chunkLength );
+			for( int ch = 0; ch < channels; ch++ ) {
+				if( gain[ ch ] == 1f ) continue;
+				for( int i = 0; i < chunkLength; i++ ) buf[ ch ][ i ] *= gain[ ch ];
+			}
+			target.writeFrames( buf, 0, chunkLength );
+			length -= chunkLength;
+		}
+	}
+
 	/**
 	 *  Flushes and closes the file
 	 *
@@ -518,11 +1645,27 @@ implements InterleavedStreamFile {
 	 *						or closing the file.
 	 */
 	public void close() throws IOException {
-		if( mode == MODE_READWRITE ) {
-			fch.force( true );
-			afh.updateHeader( afd );
+		try {
+			if( encoder != null ) {
+				final AsyncEncoder e = encoder;
+				encoder = null;
+				e.shutdown();
+			}
+			if( readAhead != null ) {
+				readAhead.close();
+				readAhead = null;
+			}
+			if( mode == MODE_READWRITE ) {
+				if( checksums != null ) writeChecksums();
+				if( energy != null ) writeEnergy();
+				if( raf.length() > fileLength ) raf.setLength( fileLength );	// unused preallocated space
+				fch.force( true );
+				afh.updateHeader( afd );
+			}
+		}
+		finally {
+			raf.close();
 		}
-		raf.close();
 	}
 
 	/**
@@ -578,176 +1721,1101 @@ implements InterleavedStreamFile {
 		return IOUtil.getResourceString( key );
 	}
 	
-	// -------- BufferHandler Classes --------
-	
-	private abstract class BufferHandler {
-		protected BufferHandler() { /* empty */ }
-		protected abstract void writeFrames( float[][] frames, int off, int len ) throws IOException;
-		protected abstract void readFrames( float[][] frames, int off, int len ) throws IOException;
+	// -------- HeaderProbe Class --------
+
+	/*
+	 *	Parses the chunks in front of the sample data from a buffer
+	 *	which is refilled only when a chunk lies beyond it.
+	 */
+	private static class HeaderProbe {
+		private static final int	PROBE_SIZE		= 8192;
+		private static final int	MAX_CONFIG_SIZE	= 1 << 16;
+
+		private final FileChannel	ch;
+		private final long			fileLen;
+		private ByteBuffer			b		= ByteBuffer.allocate( PROBE_SIZE );
+		private long				bufOff	= 0L;	// file offset of the buffer contents
+
+		protected HeaderProbe( FileChannel ch ) throws IOException {
+			this.ch		= ch;
+			fileLen		= ch.size();
+			b.limit( 0 );
+		}
+
+		protected SURFFileDescr read( File f ) throws IOException {
+			final SURFFileDescr	descr		= new SURFFileDescr();
+			int					essentials	= 2, bpf = 0, magic, i, fmt, off;
+			long				pos, end, len, riffLen;
+
+			descr.file = f;
+			if( fileLen < 12 ) throw new IOException( getResourceString( "errAudioFileType" ));
+			off = ensure( 0L, 12 );
+			if( (b.getInt( off ) != WAVEHeader.RIFF_MAGIC) || (b.getInt( off + 8 ) != WAVEHeader.WAVE_MAGIC) ) {
+				throw new IOException( getResourceString( "errAudioFileType" ));
+			}
+			descr.type	= SURFFileDescr.TYPE_WAVE;
+			riffLen		= littleInt( off + 4 ) & 0xFFFFFFFFL;
+			end			= (riffLen > 0) && (riffLen + 8 < fileLen) ? riffLen + 8 : fileLen;
+
+			for( pos = 12L; (essentials > 0) && (pos + 8 <= end); pos += 8 + ((len + 1) & ~1L) ) {
+				off		= ensure( pos, 8 );
+				magic	= b.getInt( off );
+				len		= littleInt( off + 4 ) & 0xFFFFFFFFL;
+
+				switch( magic ) {
+				case WAVEHeader.FMT_MAGIC:
+					essentials--;
+					if( len < 16 ) throw new IOException( getResourceString( "errAudioFileIncomplete" ));
+					off					= ensure( pos + 8, (int) Math.min( len, 26 ));
+					fmt					= littleUShort( off );
+					descr.channels		= littleUShort( off + 2 );
+					i					= littleInt( off + 4 );
+					descr.rate			= i;
+					bpf					= littleUShort( off + 12 );
+					descr.bitsPerSample	= littleUShort( off + 14 );
+					if( ((descr.bitsPerSample & 0x07) != 0) ||
+						((descr.bitsPerSample >> 3) * descr.channels != bpf) ||
+						((descr.bitsPerSample >> 3) * descr.channels * i != littleInt( off + 8 )) ) {
+						throw new IOException( getResourceString( "errAudioFileEncoding" ));
+					}
+					if( fmt == WAVEHeader.FORMAT_EXT ) {
+						if( len < 26 ) throw new IOException( getResourceString( "errAudioFileIncomplete" ));
+						fmt = littleUShort( off + 24 );		// GUID first two bytes
+					}
+					switch( fmt ) {
+					case WAVEHeader.FORMAT_PCM:
+						descr.sampleFormat = SURFFileDescr.FORMAT_INT;
+						break;
+					case WAVEHeader.FORMAT_FLOAT:
+						descr.sampleFormat = SURFFileDescr.FORMAT_FLOAT;
+						break;
+					default:
+						throw new IOException( getResourceString( "errAudioFileEncoding" ));
+					}
+					break;
+
+				case WAVEHeader.DATA_MAGIC:
+					essentials--;
+					if( bpf == 0 ) throw new IOException( getResourceString( "errAudioFileIncomplete" ));
+					descr.length = Math.min( len, fileLen - pos - 8 ) / bpf;
+					break;
+
+				case WAVEHeader.LIST_MAGIC:
+				case WAVEHeader.LIST_MAGIC2:
+					if( len < 4 ) break;
+					off = ensure( pos + 8, 4 );
+					if( (b.getInt( off ) == WAVEHeader.CNFG_MAGIC) && (len <= MAX_CONFIG_SIZE) ) {
+						off = ensure( pos + 12, (int) (len - 4) );
+						readConfig( descr, off, (int) (len - 4) );
+					}
+					break;
+
+				default:
+					break;
+				}
+			}
+			if( essentials > 0 ) throw new IOException( getResourceString( "errAudioFileIncomplete" ));
+			return descr;
+		}
+
+		// same layout as read by WAVEHeader.readConfig
+		private void readConfig( SURFFileDescr descr, int off, int len ) throws IOException {
+			final float[]	cc		= new float[ descr.channels ];
+			final float[]	scale	= new float[ descr.channels ];
+			final float[]	offset	= new float[ descr.channels ];
+			final int		stop	= off + len;
+			int				ccCount	= 0, scCount = 0, ofCount = 0, magic, subLen;
+
+			while( off + 8 <= stop ) {
+				magic	= b.getInt( off );
+				subLen	= littleInt( off + 4 );
+				off	   += 8;
+				if( (subLen < 0) || (off + subLen > stop) ) break;
+				switch( magic ) {
+				case WAVEHeader.TMST_MAGIC:
+					if( subLen > 0 ) descr.SURF_initial_timestamp = new String( b.array(), off, subLen - 1 );
+					break;
+				case WAVEHeader.TMZN_MAGIC:
+					if( subLen > 0 ) descr.SURF_timezone = new String( b.array(), off, subLen - 1 );
+					break;
+				case WAVEHeader.SPRT_MAGIC:
+					if( subLen >= 4 ) descr.SURF_sample_rate = b.getFloat( off );
+					break;
+				case WAVEHeader.CHCC_MAGIC:
+					if( (subLen >= 4) && (ccCount < cc.length) ) cc[ ccCount++ ] = b.getFloat( off );
+					break;
+				case WAVEHeader.CHSC_MAGIC:
+					if( (subLen >= 4) && (scCount < scale.length) ) scale[ scCount++ ] = b.getFloat( off );
+					break;
+				case WAVEHeader.CHOF_MAGIC:
+					if( (subLen >= 4) && (ofCount < offset.length) ) offset[ ofCount++ ] = b.getFloat( off );
+					break;
+				default:
+					break;
+				}
+				off += (subLen + 1) & ~1;
+			}
+			descr.SURF_channel_calibration = cc;
+			if( scCount > 0 ) {
+				if( scCount < scale.length ) throw new IOException( getResourceString( "errAudioFileIncomplete" ));
+				descr.SURF_channel_scale	= scale;
+				descr.SURF_channel_offset	= offset;
+			}
+		}
+
+		// makes the given bytes available in the buffer, returns the index of the first one
+		private int ensure( long pos, int len ) throws IOException {
+			if( (pos >= bufOff) && (pos + len <= bufOff + b.limit()) ) return (int) (pos - bufOff);
+			if( pos + len > fileLen ) throw new IOException( getResourceString( "errAudioFileIncomplete" ));
+			if( len > b.capacity() ) b = ByteBuffer.allocate( len );
+			b.clear();
+			b.limit( (int) Math.min( b.capacity(), fileLen - pos ));
+			while( b.hasRemaining() ) {
+				if( ch.read( b, pos + b.position() ) < 0 ) throw new EOFException();
+			}
+			bufOff = pos;
+			return 0;
+		}
+
+		private int littleInt( int off ) {
+			return Integer.reverseBytes( b.getInt( off ));
+		}
+
+		private int littleUShort( int off ) {
+			return( Short.reverseBytes( b.getShort( off )) & 0xFFFF );
+		}
 	}
-	
-	private class ByteBufferHandler extends BufferHandler {
-		private final byte[]	arrayBuf;
 
-		protected ByteBufferHandler() {
-			arrayBuf	= new byte[ byteBuf.capacity() ];
+	// -------- ChunkBuffer Class --------
+
+	/*
+	 *	Assembles RIFF chunks in memory, so they can be written with a
+	 *	single call, or be placed completely before they become visible.
+	 */
+	private static class ChunkBuffer extends ByteArrayOutputStream {
+		protected ChunkBuffer() {
+			super( 4096 );
 		}
 
-		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
-			int		i, j, m, ch, chunkLength;
-			float[]	b;
+		protected void writeInt( int i ) {
+			write( i >> 24 );
+			write( i >> 16 );
+			write( i >> 8 );
+			write( i );
+		}
+
+		protected void writeShort( int i ) {
+			write( i >> 8 );
+			write( i );
+		}
+
+		protected void writeLong( long n ) {
+			writeInt( (int) (n >> 32) );
+			writeInt( (int) n );
+		}
+
+		protected void writeLittleInt( int i ) {
+			write( i );
+			write( i >> 8 );
+			write( i >> 16 );
+			write( i >> 24 );
+		}
+
+		// overwrites four bytes already written, e.g. a chunk length
+		protected void setLittleInt( int pos, int i ) {
+			buf[ pos ]		= (byte) i;
+			buf[ pos + 1 ]	= (byte) (i >> 8);
+			buf[ pos + 2 ]	= (byte) (i >> 16);
+			buf[ pos + 3 ]	= (byte) (i >> 24);
+		}
+
+		protected byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	// -------- AsyncEncoder Class --------
+
+	/*
+	 *	Hands blocks of frames from the writing thread to a background
+	 *	thread which encodes and writes them through the BufferHandler.
+	 *	The number of blocks is fixed, so a producer which outpaces the
+	 *	disk waits in <code>write</code> for a free block.
+	 */
+	private class AsyncEncoder
+	implements Runnable {
+		private final BlockingQueue<Block>	free;
+		private final BlockingQueue<Block>	full;
+		private final Thread				thread;
+		private final int					blockFrames;
+		private final Block					stop		= new Block( 0, 0 );
+		private final Object				sync		= new Object();
+
+		private Block						current		= null;		// block being filled by the producer
+		private int							numPending	= 0;
+		private volatile IOException		error		= null;
+
+		protected AsyncEncoder( int numBlocks, int blockFrames ) {
+			this.blockFrames	= blockFrames;
+			free				= new ArrayBlockingQueue<Block>( numBlocks );
+			full				= new ArrayBlockingQueue<Block>( numBlocks + 1 );
+			for( int i = 0; i < numBlocks; i++ ) {
+				free.add( new Block( channels, blockFrames ));
+			}
+			thread = new Thread( this, "SURFFile encoder" );
+			thread.setDaemon( true );
+			thread.start();
+		}
+
+		protected void write( float[][] data, int offset, int length ) throws IOException {
+			int chunkLength;
+
+			checkError();
+			while( length > 0 ) {
+				if( current == null ) {
+					try {
+						current = free.take();		// back pressure : waits while all blocks are queued
+					}
+					catch( InterruptedException e1 ) {
+						Thread.currentThread().interrupt();
+						throw IOUtil.map( e1 );
+					}
+					current.length = 0;
+				}
+				chunkLength = Math.min( length, blockFrames - current.length );
+				for( int ch = 0; ch < channels; ch++ ) {
+					System.arraycopy( data[ ch ], offset, current.frames[ ch ], current.length, chunkLength );
+				}
+				current.length	+= chunkLength;
+				offset			+= chunkLength;
+				length			-= chunkLength;
+				if( current.length == blockFrames ) submit();
+			}
+		}
+
+		// waits until all frames handed to write() are on disk
+		protected void drain() throws IOException {
+			if( current != null ) submit();
+			synchronized( sync ) {
+				while( numPending > 0 ) {
+					try {
+						sync.wait();
+					}
+					catch( InterruptedException e1 ) {
+						Thread.currentThread().interrupt();
+						throw IOUtil.map( e1 );
+					}
+				}
+			}
+			checkError();
+		}
+
+		protected void shutdown() throws IOException {
+			try {
+				drain();
+			}
+			finally {
+				full.add( stop );
+				try {
+					thread.join();
+				}
+				catch( InterruptedException e1 ) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private void submit() {
+			synchronized( sync ) {
+				numPending++;
+			}
+			full.add( current );
+			current = null;
+		}
+
+		private void checkError() throws IOException {
+			if( error != null ) throw error;
+		}
+
+		public void run() {
+			Block b;
+
+			try {
+				while( (b = full.take()) != stop ) {
+					if( error == null ) {
+						try {
+							bh.writeFrames( b.frames, 0, b.length );
+							if( System.currentTimeMillis() > updateTime ) {
+								updateTime = System.currentTimeMillis() + 10000;
+								afh.updateHeader( afd );
+							}
+						}
+						catch( IOException e1 ) {
+							error = e1;
+						}
+						catch( RuntimeException e1 ) {
+							error = IOUtil.map( e1 );
+						}
+					}
+					free.add( b );
+					synchronized( sync ) {
+						numPending--;
+						sync.notifyAll();
+					}
+				}
+			}
+			catch( InterruptedException e1 ) { /* terminated */ }
+		}
+	}
+
+	private static class Block {
+		protected final float[][]	frames;
+		protected int				length	= 0;
+
+		protected Block( int channels, int capacity ) {
+			frames = new float[ channels ][ capacity ];
+		}
+	}
+
+	// a range of frames of a file, or all of them if span is null
+	private static class Segment {
+		protected final File	file;
+		protected final Span	span;
+
+		protected Segment( File file, Span span ) {
+			this.file	= file;
+			this.span	= span;
+		}
+	}
+
+	// -------- BufferHandler Classes --------
+	
+	private abstract class BufferHandler {
+		protected BufferHandler() { /* empty */ }
+		protected abstract void writeFrames( float[][] frames, int off, int len ) throws IOException;
+		protected abstract void readFrames( float[][] frames, int off, int len ) throws IOException;
+
+		// integer variants are only supported by the integer handlers whose storage fits
+		protected void writeFrames( short[][] frames, int off, int len ) throws IOException {
+			throw new IOException( getResourceString( "errAudioFileEncoding" ));
+		}
+
+		protected void readFrames( short[][] frames, int off, int len ) throws IOException {
+			throw new IOException( getResourceString( "errAudioFileEncoding" ));
+		}
+
+		protected void writeFrames( int[][] frames, int off, int len ) throws IOException {
+			throw new IOException( getResourceString( "errAudioFileEncoding" ));
+		}
+
+		protected void readFrames( int[][] frames, int off, int len ) throws IOException {
+			throw new IOException( getResourceString( "errAudioFileEncoding" ));
+		}
+
+		/*
+		 *	Calibrated reads, multiplying each channel by gain[ ch ]. This generic
+		 *	version decodes chunks into a scratch buffer; the handlers of the
+		 *	common formats override it to apply the gain in their decoding loop.
+		 */
+		protected void readFrames( float[][] frames, int offset, int length, double[] gain ) throws IOException {
+			final float[][]	buf = getCalibrationBuf( frames );
+			int				i, j, ch, chunkLength;
+			float[]			b, c;
+			double			g;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				readFrames( buf, 0, chunkLength );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					c = buf[ ch ];
+					g = gain[ ch ];
+					for( i = 0, j = offset; i < chunkLength; i++, j++ ) {
+						b[ j ] = (float) (c[ i ] * g);
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( double[][] frames, int offset, int length, double[] gain ) throws IOException {
+			final float[][]	buf = getCalibrationBuf( frames );
+			int				i, j, ch, chunkLength;
+			double[]		b;
+			float[]			c;
+			double			g;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				readFrames( buf, 0, chunkLength );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					c = buf[ ch ];
+					g = gain[ ch ];
+					for( i = 0, j = offset; i < chunkLength; i++, j++ ) {
+						b[ j ] = c[ i ] * g;
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+	}
+
+	// scratch buffer of the generic calibrated reads, skipping the channels the caller skips
+	private float[][] getCalibrationBuf( Object[] frames ) {
+		if( calibrationBuf == null ) {
+			calibrationBuf	= new float[ channels ][];
+			calibrationView	= new float[ channels ][];
+		}
+		for( int ch = 0; ch < channels; ch++ ) {
+			if( (frames[ ch ] != null) && (calibrationBuf[ ch ] == null) ) calibrationBuf[ ch ] = new float[ frameBufCapacity ];
+			calibrationView[ ch ] = frames[ ch ] == null ? null : calibrationBuf[ ch ];
+		}
+		return calibrationView;
+	}
+	
+	/*
+	 *	Quantized storage: floating point frames are converted to and
+	 *	from the integers of the wrapped handler through the scale and
+	 *	offset of each channel. Integer frames pass unchanged.
+	 */
+	private class QuantizedBufferHandler extends BufferHandler {
+		private final BufferHandler	ibh;
+		private final double[]		scale;
+		private final double[]		offset;
+		private final double		qMin, qMax;
+		private final int[][]		arrayBuf;
+		private final int[][]		viewBuf;		// arrayBuf with the channels skipped by a read
+	
+		protected QuantizedBufferHandler( BufferHandler ibh ) {
+			this.ibh	= ibh;
+			scale		= new double[ channels ];
+			offset		= new double[ channels ];
+			for( int ch = 0; ch < channels; ch++ ) {
+				scale[ ch ]		= afd.SURF_channel_scale[ ch ];
+				offset[ ch ]	= afd.SURF_channel_offset[ ch ];
+			}
+			qMin		= afd.getQuantizationMin();
+			qMax		= afd.getQuantizationMax();
+			arrayBuf	= new int[ channels ][ frameBufCapacity ];
+			viewBuf		= new int[ channels ][];
+		}
+
+		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, ch, chunkLength;
+			float[]	b;
+			int[]	q;
+			double	x, inv, off;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				for( ch = 0; ch < channels; ch++ ) {
+					b	= frames[ ch ];
+					q	= arrayBuf[ ch ];
+					inv	= 1.0 / scale[ ch ];
+					off	= this.offset[ ch ];
+					for( i = 0, j = offset; i < chunkLength; i++, j++ ) {
+						x = Math.rint( ((b == null ? 0f : b[ j ]) - off) * inv );
+						if( x < qMin ) {
+							x = qMin;
+							clippedSamples++;
+						} else if( x > qMax ) {
+							x = qMax;
+							clippedSamples++;
+						}
+						q[ i ] = (int) x;
+					}
+				}
+				ibh.writeFrames( arrayBuf, 0, chunkLength );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, ch, chunkLength;
+			float[]	b;
+			int[]	q;
+			double	sc, off;
+
+			for( ch = 0; ch < channels; ch++ ) {
+				viewBuf[ ch ] = frames[ ch ] == null ? null : arrayBuf[ ch ];
+			}
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				ibh.readFrames( viewBuf, 0, chunkLength );
+				for( ch = 0; ch < channels; ch++ ) {
+					b	= frames[ ch ];
+					if( b == null ) continue;
+					q	= arrayBuf[ ch ];
+					sc	= scale[ ch ];
+					off	= this.offset[ ch ];
+					for( i = 0, j = offset; i < chunkLength; i++, j++ ) {
+						b[ j ] = (float) (off + q[ i ] * sc);
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( float[][] frames, int offset, int length, double[] gain ) throws IOException {
+			int		i, j, ch, chunkLength;
+			float[]	b;
+			int[]	q;
+			double	sc, off;
+
+			for( ch = 0; ch < channels; ch++ ) {
+				viewBuf[ ch ] = frames[ ch ] == null ? null : arrayBuf[ ch ];
+			}
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				ibh.readFrames( viewBuf, 0, chunkLength );
+				for( ch = 0; ch < channels; ch++ ) {
+					b	= frames[ ch ];
+					if( b == null ) continue;
+					q	= arrayBuf[ ch ];
+					sc	= scale[ ch ] * gain[ ch ];
+					off	= this.offset[ ch ] * gain[ ch ];
+					for( i = 0, j = offset; i < chunkLength; i++, j++ ) {
+						b[ j ] = (float) (off + q[ i ] * sc);
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( double[][] frames, int offset, int length, double[] gain ) throws IOException {
+			int			i, j, ch, chunkLength;
+			double[]	b;
+			int[]		q;
+			double		sc, off;
+
+			for( ch = 0; ch < channels; ch++ ) {
+				viewBuf[ ch ] = frames[ ch ] == null ? null : arrayBuf[ ch ];
+			}
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				ibh.readFrames( viewBuf, 0, chunkLength );
+				for( ch = 0; ch < channels; ch++ ) {
+					b	= frames[ ch ];
+					if( b == null ) continue;
+					q	= arrayBuf[ ch ];
+					sc	= scale[ ch ] * gain[ ch ];
+					off	= this.offset[ ch ] * gain[ ch ];
+					for( i = 0, j = offset; i < chunkLength; i++, j++ ) {
+						b[ j ] = off + q[ i ] * sc;
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void writeFrames( short[][] frames, int off, int len ) throws IOException {
+			ibh.writeFrames( frames, off, len );
+		}
+
+		protected void readFrames( short[][] frames, int off, int len ) throws IOException {
+			ibh.readFrames( frames, off, len );
+		}
+
+		protected void writeFrames( int[][] frames, int off, int len ) throws IOException {
+			ibh.writeFrames( frames, off, len );
+		}
+
+		protected void readFrames( int[][] frames, int off, int len ) throws IOException {
+			ibh.readFrames( frames, off, len );
+		}
+	}
+
+	private class ByteBufferHandler extends BufferHandler {
+		private final byte[]	arrayBuf;
+
+		protected ByteBufferHandler() {
+			arrayBuf	= new byte[ byteBuf.capacity() ];
+		}
+
+		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			float[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						arrayBuf[ i ] = (byte) (b[ j ] * 0x7F);
+					}
+				}
+				byteBuf.clear();
+				byteBuf.put( arrayBuf, 0, m );
+				byteBuf.flip();
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			float[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				byteBuf.rewind().limit( m );
+				readBytes( byteBuf );
+				byteBuf.flip();
+				byteBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						b[ j ]	= (float) arrayBuf[ i ] / 0x7F;
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void writeFrames( short[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			short[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						arrayBuf[ i ] = (byte) b[ j ];
+					}
+				}
+				byteBuf.clear();
+				byteBuf.put( arrayBuf, 0, m );
+				byteBuf.flip();
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( short[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			short[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				byteBuf.rewind().limit( m );
+				readBytes( byteBuf );
+				byteBuf.flip();
+				byteBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						b[ j ]	= arrayBuf[ i ];
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void writeFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			int[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						arrayBuf[ i ] = (byte) b[ j ];
+					}
+				}
+				byteBuf.clear();
+				byteBuf.put( arrayBuf, 0, m );
+				byteBuf.flip();
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			int[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				byteBuf.rewind().limit( m );
+				readBytes( byteBuf );
+				byteBuf.flip();
+				byteBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						b[ j ]	= arrayBuf[ i ];
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+	}
+
+	// float to byte = f*0x7F+0x80 (-1 ... +1 becomes 0x01 to 0xFF)
+	// which is how libsndfile behaves
+	private class UByteBufferHandler extends BufferHandler {
+		private final byte[]	arrayBuf;
+
+		protected UByteBufferHandler()
+		{
+			arrayBuf	= new byte[ byteBuf.capacity() ];
+		}
+
+		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			float[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						arrayBuf[ i ] = (byte) (b[ j ] * 0x7F + 0x80);
+					}
+				}
+				byteBuf.clear();
+				byteBuf.put( arrayBuf, 0, m );
+				byteBuf.flip();
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			float[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				byteBuf.rewind().limit( m );
+				readBytes( byteBuf );
+				byteBuf.flip();
+				byteBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						if( arrayBuf[ i ] < 0 ) { // hmmm, java can't handle unsigned bytes
+							b[ j ]	= (float) (0x80 + arrayBuf[ i ]) / 0x7F;
+						} else {
+							b[ j ]	= (float) (arrayBuf[ i ] - 0x80) / 0x7F;
+						}
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void writeFrames( short[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			short[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						arrayBuf[ i ] = (byte) (b[ j ] + 0x80);
+					}
+				}
+				byteBuf.clear();
+				byteBuf.put( arrayBuf, 0, m );
+				byteBuf.flip();
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( short[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			short[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				byteBuf.rewind().limit( m );
+				readBytes( byteBuf );
+				byteBuf.flip();
+				byteBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						b[ j ]	= (short) ((arrayBuf[ i ] & 0xFF) - 0x80);
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void writeFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			int[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						arrayBuf[ i ] = (byte) (b[ j ] + 0x80);
+					}
+				}
+				byteBuf.clear();
+				byteBuf.put( arrayBuf, 0, m );
+				byteBuf.flip();
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			int[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				byteBuf.rewind().limit( m );
+				readBytes( byteBuf );
+				byteBuf.flip();
+				byteBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						b[ j ]	= (arrayBuf[ i ] & 0xFF) - 0x80;
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+	}
+
+	private class ShortBufferHandler extends BufferHandler {
+		private final ShortBuffer	viewBuf;
+		private final short[]		arrayBuf;
+	
+		protected ShortBufferHandler() {
+			byteBuf.clear();
+			viewBuf		= byteBuf.asShortBuffer();
+			arrayBuf	= new short[ viewBuf.capacity() ];
+		}
+
+		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			float[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * channels;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						arrayBuf[ i ] = (short) (b[ j ] * 0x7FFF);
+					}
+				}
+				viewBuf.clear();
+				viewBuf.put( arrayBuf, 0, m );
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			float[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * channels;
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				readBytes( byteBuf );
+				viewBuf.clear();
+				viewBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						b[ j ]	= (float) arrayBuf[ i ] / 0x7FFF;
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void writeFrames( short[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			short[]	b;
 
 			while( length > 0 ) {
 				chunkLength = Math.min( frameBufCapacity, length );
-				m			= chunkLength * bytesPerFrame;
+				m			= chunkLength * channels;
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						arrayBuf[ i ] = (byte) (b[ j ] * 0x7F);
+						arrayBuf[ i ] = b[ j ];
 					}
 				}
-				byteBuf.clear();
-				byteBuf.put( arrayBuf, 0, m );
-				byteBuf.flip();
-				fch.write( byteBuf );
+				viewBuf.clear();
+				viewBuf.put( arrayBuf, 0, m );
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				writeBytes( byteBuf );
 				length -= chunkLength;
 				offset += chunkLength;
 			}
 		}
 
-		protected void readFrames( float[][] frames, int offset, int length ) throws IOException {
+		protected void readFrames( short[][] frames, int offset, int length ) throws IOException {
 			int		i, j, m, ch, chunkLength;
-			float[]	b;
+			short[]	b;
 		
 			while( length > 0 ) {
 				chunkLength = Math.min( frameBufCapacity, length );
-				m			= chunkLength * bytesPerFrame;
-				byteBuf.rewind().limit( m );
-				fch.read( byteBuf );
-				byteBuf.flip();
-				byteBuf.get( arrayBuf, 0, m );
+				m			= chunkLength * channels;
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				readBytes( byteBuf );
+				viewBuf.clear();
+				viewBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
 					if( b == null ) continue;
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						b[ j ]	= (float) arrayBuf[ i ] / 0x7F;
+						b[ j ]	= arrayBuf[ i ];
 					}
 				}
 				length -= chunkLength;
 				offset += chunkLength;
 			}
 		}
-	}
-
-	// float to byte = f*0x7F+0x80 (-1 ... +1 becomes 0x01 to 0xFF)
-	// which is how libsndfile behaves
-	private class UByteBufferHandler extends BufferHandler {
-		private final byte[]	arrayBuf;
-
-		protected UByteBufferHandler()
-		{
-			arrayBuf	= new byte[ byteBuf.capacity() ];
-		}
 
-		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
+		protected void writeFrames( int[][] frames, int offset, int length ) throws IOException {
 			int		i, j, m, ch, chunkLength;
-			float[]	b;
+			int[]	b;
 
 			while( length > 0 ) {
 				chunkLength = Math.min( frameBufCapacity, length );
-				m			= chunkLength * bytesPerFrame;
+				m			= chunkLength * channels;
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						arrayBuf[ i ] = (byte) (b[ j ] * 0x7F + 0x80);
+						arrayBuf[ i ] = (short) b[ j ];
 					}
 				}
-				byteBuf.clear();
-				byteBuf.put( arrayBuf, 0, m );
-				byteBuf.flip();
-				fch.write( byteBuf );
+				viewBuf.clear();
+				viewBuf.put( arrayBuf, 0, m );
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				writeBytes( byteBuf );
 				length -= chunkLength;
 				offset += chunkLength;
 			}
 		}
 
-		protected void readFrames( float[][] frames, int offset, int length ) throws IOException {
+		protected void readFrames( int[][] frames, int offset, int length ) throws IOException {
 			int		i, j, m, ch, chunkLength;
-			float[]	b;
+			int[]	b;
 		
 			while( length > 0 ) {
 				chunkLength = Math.min( frameBufCapacity, length );
-				m			= chunkLength * bytesPerFrame;
-				byteBuf.rewind().limit( m );
-				fch.read( byteBuf );
-				byteBuf.flip();
-				byteBuf.get( arrayBuf, 0, m );
+				m			= chunkLength * channels;
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				readBytes( byteBuf );
+				viewBuf.clear();
+				viewBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
 					if( b == null ) continue;
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						if( arrayBuf[ i ] < 0 ) { // hmmm, java can't handle unsigned bytes
-							b[ j ]	= (float) (0x80 + arrayBuf[ i ]) / 0x7F;
-						} else {
-							b[ j ]	= (float) (arrayBuf[ i ] - 0x80) / 0x7F;
-						}
+						b[ j ]	= arrayBuf[ i ];
 					}
 				}
 				length -= chunkLength;
 				offset += chunkLength;
 			}
 		}
-	}
-
-	private class ShortBufferHandler extends BufferHandler {
-		private final ShortBuffer	viewBuf;
-		private final short[]		arrayBuf;
-	
-		protected ShortBufferHandler() {
-			byteBuf.clear();
-			viewBuf		= byteBuf.asShortBuffer();
-			arrayBuf	= new short[ viewBuf.capacity() ];
-		}
 
-		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
+		protected void readFrames( float[][] frames, int offset, int length, double[] gain ) throws IOException {
 			int		i, j, m, ch, chunkLength;
 			float[]	b;
-
+			double	g;
+		
 			while( length > 0 ) {
 				chunkLength = Math.min( frameBufCapacity, length );
 				m			= chunkLength * channels;
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				readBytes( byteBuf );
+				viewBuf.clear();
+				viewBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
 					if( b == null ) continue;
+					g = gain[ ch ] / 0x7FFF;
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						arrayBuf[ i ] = (short) (b[ j ] * 0x7FFF);
+						b[ j ]	= (float) (arrayBuf[ i ] * g);
 					}
 				}
-				viewBuf.clear();
-				viewBuf.put( arrayBuf, 0, m );
-				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
-				fch.write( byteBuf );
 				length -= chunkLength;
 				offset += chunkLength;
 			}
 		}
 
-		protected void readFrames( float[][] frames, int offset, int length ) throws IOException {
-			int		i, j, m, ch, chunkLength;
-			float[]	b;
+		protected void readFrames( double[][] frames, int offset, int length, double[] gain ) throws IOException {
+			int			i, j, m, ch, chunkLength;
+			double[]	b;
+			double		g;
 		
 			while( length > 0 ) {
 				chunkLength = Math.min( frameBufCapacity, length );
 				m			= chunkLength * channels;
 				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
-				fch.read( byteBuf );
+				readBytes( byteBuf );
 				viewBuf.clear();
 				viewBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
 					if( b == null ) continue;
+					g = gain[ ch ] / 0x7FFF;
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						b[ j ]	= (float) arrayBuf[ i ] / 0x7FFF;
+						b[ j ]	= arrayBuf[ i ] * g;
 					}
 				}
 				length -= chunkLength;
@@ -789,7 +2857,7 @@ implements InterleavedStreamFile {
 				byteBuf.clear();
 				byteBuf.put( arrayBuf, 0, m );
 				byteBuf.flip();
-				fch.write( byteBuf );
+				writeBytes( byteBuf );
 				length -= chunkLength;
 				offset += chunkLength;
 			}
@@ -803,7 +2871,7 @@ implements InterleavedStreamFile {
 				chunkLength = Math.min( frameBufCapacity, length );
 				m			= chunkLength * bytesPerFrame;
 				byteBuf.rewind().limit( m );
-				fch.read( byteBuf );
+				readBytes( byteBuf );
 				byteBuf.flip();
 				byteBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
@@ -819,6 +2887,56 @@ implements InterleavedStreamFile {
 				offset += chunkLength;
 			}
 		}
+
+		protected void writeFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, k, m, ch, chunkLength;
+			int[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch * 3, j = offset; i < m; i += chStep, j++ ) {
+						k				= b[ j ];
+						arrayBuf[ i++ ] = (byte) (k >> 16);
+						arrayBuf[ i++ ] = (byte) (k >> 8);
+						arrayBuf[ i++ ] = (byte)  k;
+					}
+				}
+				byteBuf.clear();
+				byteBuf.put( arrayBuf, 0, m );
+				byteBuf.flip();
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			int[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				byteBuf.rewind().limit( m );
+				readBytes( byteBuf );
+				byteBuf.flip();
+				byteBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch * 3, j = offset; i < m; i += chStep, j++ ) {
+						b[ j ]	= (arrayBuf[ i++ ] << 16 ) |
+								 ((arrayBuf[ i++ ] & 0xFF) << 8) |
+								  (arrayBuf[ i++ ] & 0xFF);
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
 	}
 
 	/*
@@ -855,7 +2973,7 @@ implements InterleavedStreamFile {
 				byteBuf.clear();
 				byteBuf.put( arrayBuf, 0, m );
 				byteBuf.flip();
-				fch.write( byteBuf );
+				writeBytes( byteBuf );
 				length -= chunkLength;
 				offset += chunkLength;
 			}
@@ -869,7 +2987,7 @@ implements InterleavedStreamFile {
 				chunkLength = Math.min( frameBufCapacity, length );
 				m			= chunkLength * bytesPerFrame;
 				byteBuf.rewind().limit( m );
-				fch.read( byteBuf );
+				readBytes( byteBuf );
 				byteBuf.flip();
 				byteBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
@@ -885,35 +3003,186 @@ implements InterleavedStreamFile {
 				offset += chunkLength;
 			}
 		}
+
+		protected void writeFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, k, m, ch, chunkLength;
+			int[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch * 3, j = offset; i < m; i += chStep, j++ ) {
+						k				= b[ j ];
+						arrayBuf[ i++ ] = (byte)  k;
+						arrayBuf[ i++ ] = (byte) (k >> 8);
+						arrayBuf[ i++ ] = (byte) (k >> 16);
+					}
+				}
+				byteBuf.clear();
+				byteBuf.put( arrayBuf, 0, m );
+				byteBuf.flip();
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			int[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * bytesPerFrame;
+				byteBuf.rewind().limit( m );
+				readBytes( byteBuf );
+				byteBuf.flip();
+				byteBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch * 3, j = offset; i < m; i += chStep, j++ ) {
+						b[ j ]	= (arrayBuf[ i++ ] & 0xFF) |
+								 ((arrayBuf[ i++ ] & 0xFF) << 8) |
+								  (arrayBuf[ i++ ] << 16 );
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
 	}
 
 	private class IntBufferHandler extends BufferHandler {
 		private final IntBuffer		viewBuf;
 		private final int[]			arrayBuf;
 	
-		protected IntBufferHandler() {
+		protected IntBufferHandler() {
+			byteBuf.clear();
+			viewBuf		= byteBuf.asIntBuffer();
+			arrayBuf	= new int[ viewBuf.capacity() ];
+		}
+
+		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			float[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * channels;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						arrayBuf[ i ] = (int) (b[ j ] * 0x7FFFFFFF);
+					}
+				}
+				viewBuf.clear();
+				viewBuf.put( arrayBuf, 0, m );
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( float[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			float[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * channels;
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				readBytes( byteBuf );
+				viewBuf.clear();
+				viewBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						b[ j ]	= (float) arrayBuf[ i ] / 0x7FFFFFFF;
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void writeFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			int[]	b;
+
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * channels;
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						arrayBuf[ i ] = b[ j ];
+					}
+				}
+				viewBuf.clear();
+				viewBuf.put( arrayBuf, 0, m );
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				writeBytes( byteBuf );
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+
+		protected void readFrames( int[][] frames, int offset, int length ) throws IOException {
+			int		i, j, m, ch, chunkLength;
+			int[]	b;
+		
+			while( length > 0 ) {
+				chunkLength = Math.min( frameBufCapacity, length );
+				m			= chunkLength * channels;
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				readBytes( byteBuf );
+				viewBuf.clear();
+				viewBuf.get( arrayBuf, 0, m );
+				for( ch = 0; ch < channels; ch++ ) {
+					b = frames[ ch ];
+					if( b == null ) continue;
+					for( i = ch, j = offset; i < m; i += channels, j++ ) {
+						b[ j ]	= arrayBuf[ i ];
+					}
+				}
+				length -= chunkLength;
+				offset += chunkLength;
+			}
+		}
+	}
+
+	private class FloatBufferHandler extends BufferHandler {
+		private final FloatBuffer	viewBuf;
+		private final float[]		arrayBuf;
+	
+		protected FloatBufferHandler() {
 			byteBuf.clear();
-			viewBuf		= byteBuf.asIntBuffer();
-			arrayBuf	= new int[ viewBuf.capacity() ];
+			viewBuf		= byteBuf.asFloatBuffer();
+			arrayBuf	= new float[ viewBuf.capacity() ];
 		}
 
 		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
 			int		i, j, m, ch, chunkLength;
 			float[]	b;
-
+		
 			while( length > 0 ) {
 				chunkLength = Math.min( frameBufCapacity, length );
 				m			= chunkLength * channels;
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						arrayBuf[ i ] = (int) (b[ j ] * 0x7FFFFFFF);
+						arrayBuf[ i ] = b[ j ];
 					}
 				}
 				viewBuf.clear();
 				viewBuf.put( arrayBuf, 0, m );
 				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
-				fch.write( byteBuf );
+				writeBytes( byteBuf );
 				length -= chunkLength;
 				offset += chunkLength;
 			}
@@ -927,70 +3196,64 @@ implements InterleavedStreamFile {
 				chunkLength = Math.min( frameBufCapacity, length );
 				m			= chunkLength * channels;
 				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
-				fch.read( byteBuf );
+				readBytes( byteBuf );
 				viewBuf.clear();
 				viewBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
 					if( b == null ) continue;
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						b[ j ]	= (float) arrayBuf[ i ] / 0x7FFFFFFF;
+						b[ j ]	= arrayBuf[ i ];
 					}
 				}
 				length -= chunkLength;
 				offset += chunkLength;
 			}
 		}
-	}
-
-	private class FloatBufferHandler extends BufferHandler {
-		private final FloatBuffer	viewBuf;
-		private final float[]		arrayBuf;
-	
-		protected FloatBufferHandler() {
-			byteBuf.clear();
-			viewBuf		= byteBuf.asFloatBuffer();
-			arrayBuf	= new float[ viewBuf.capacity() ];
-		}
 
-		protected void writeFrames( float[][] frames, int offset, int length ) throws IOException {
+		protected void readFrames( float[][] frames, int offset, int length, double[] gain ) throws IOException {
 			int		i, j, m, ch, chunkLength;
 			float[]	b;
+			double	g;
 		
 			while( length > 0 ) {
 				chunkLength = Math.min( frameBufCapacity, length );
 				m			= chunkLength * channels;
+				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
+				readBytes( byteBuf );
+				viewBuf.clear();
+				viewBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
+					if( b == null ) continue;
+					g = gain[ ch ];
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						arrayBuf[ i ] = b[ j ];
+						b[ j ]	= (float) (arrayBuf[ i ] * g);
 					}
 				}
-				viewBuf.clear();
-				viewBuf.put( arrayBuf, 0, m );
-				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
-				fch.write( byteBuf );
 				length -= chunkLength;
 				offset += chunkLength;
 			}
 		}
 
-		protected void readFrames( float[][] frames, int offset, int length ) throws IOException {
-			int		i, j, m, ch, chunkLength;
-			float[]	b;
+		protected void readFrames( double[][] frames, int offset, int length, double[] gain ) throws IOException {
+			int			i, j, m, ch, chunkLength;
+			double[]	b;
+			double		g;
 		
 			while( length > 0 ) {
 				chunkLength = Math.min( frameBufCapacity, length );
 				m			= chunkLength * channels;
 				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
-				fch.read( byteBuf );
+				readBytes( byteBuf );
 				viewBuf.clear();
 				viewBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
 					b = frames[ ch ];
 					if( b == null ) continue;
+					g = gain[ ch ];
 					for( i = ch, j = offset; i < m; i += channels, j++ ) {
-						b[ j ]	= arrayBuf[ i ];
+						b[ j ]	= arrayBuf[ i ] * g;
 					}
 				}
 				length -= chunkLength;
@@ -1025,7 +3288,7 @@ implements InterleavedStreamFile {
 				viewBuf.clear();
 				viewBuf.put( arrayBuf, 0, m );
 				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
-				fch.write( byteBuf );
+				writeBytes( byteBuf );
 				length -= chunkLength;
 				offset += chunkLength;
 			}
@@ -1039,7 +3302,7 @@ implements InterleavedStreamFile {
 				chunkLength = Math.min( frameBufCapacity, length );
 				m			= chunkLength * channels;
 				byteBuf.rewind().limit( chunkLength * bytesPerFrame );
-				fch.read( byteBuf );
+				readBytes( byteBuf );
 				viewBuf.clear();
 				viewBuf.get( arrayBuf, 0, m );
 				for( ch = 0; ch < channels; ch++ ) {
@@ -1076,6 +3339,33 @@ implements InterleavedStreamFile {
 		
 		// WAV and AIFF might overwrite this
 		protected void readMarkers() throws IOException { /* empty */ }
+
+		// block checksums behind the sample data, only supported by WAV
+		protected void writeChecksums( long dataEnd, int blockFrames, int[] table ) throws IOException {
+			throw new IOException( getResourceString( "errAudioFileType" ));
+		}
+
+		protected int[] readChecksums() throws IOException { return null; }
+
+		// rewriting annotations of an existing file, only supported by WAV
+		protected void updateAnnotations( SURFFileDescr descr ) throws IOException {
+			throw new IOException( getResourceString( "errAudioFileType" ));
+		}
+
+		protected int getChecksumBlockFrames() { return 0; }
+
+		// energy index behind the sample data, only supported by WAV
+		protected void writeEnergy( long dataEnd, int blockFrames, int channels, double[] table ) throws IOException {
+			throw new IOException( getResourceString( "errAudioFileType" ));
+		}
+
+		protected void appendEnergy( int blockFrames, int channels, double[] table ) throws IOException {
+			throw new IOException( getResourceString( "errAudioFileType" ));
+		}
+
+		protected double[] readEnergy( int channels ) throws IOException { return null; }
+
+		protected int getEnergyBlockFrames() { return 0; }
 		
 		protected final int readLittleUShort() throws IOException {
 			final int i = raf.readUnsignedShort();
@@ -1265,6 +3555,11 @@ implements InterleavedStreamFile {
 		private static final int TMZN_MAGIC		= 0x544D5A4E;		// 'TMZN' dataset timezone
 		private static final int SPRT_MAGIC		= 0x53505254;		// 'SPRT' sampling rate
 		private static final int CHCC_MAGIC		= 0x43484343;		// 'CHCC' channel calibration constant
+		private static final int CHSC_MAGIC		= 0x43485343;		// 'CHSC' channel quantization step
+		private static final int CHOF_MAGIC		= 0x43484F46;		// 'CHOF' channel quantization offset
+		private static final int CRCT_MAGIC		= 0x43524354;		// 'CRCT' CRC-32C table of the sample data
+		private static final int ENRG_MAGIC		= 0x454E5247;		// 'ENRG' running sums of the sample data
+		private static final int JUNK_MAGIC		= 0x4A554E4B;		// 'JUNK' reserved or discarded space
 		
 		private static final long riffLengthOffset = 4L;
 		
@@ -1279,25 +3574,40 @@ implements InterleavedStreamFile {
 		private long		cnfgMagicLen		= 0L;
 		private long 		infoMagicOff		= 0L;
 		private long		infoMagicLen		= 0L;
+		private long		crctMagicOff		= 0L;
+		private int			crctBlockFrames		= 0;
+		private long		enrgMagicOff		= 0L;
+		private long		enrgChunkEnd		= 0L;
+		private int			enrgBlockFrames		= 0;
+		private long		trailerLength		= 0L;		// pad byte and chunks behind the sample data
+		private long		riffEnd				= 0L;
+		private final List<long[]>	annotationChunks	= new ArrayList<long[]>();	// { offset, length } of cue, adtl, ANNO, INFO
+		private final List<long[]>	junkChunks			= new ArrayList<long[]>();	// { offset, length }
 		
 		protected WAVEHeader() { /* empty */ }
 		
 		protected void readHeader( SURFFileDescr descr ) throws IOException {
-			int		i, i1, i2, i3, chunkLen, essentials, magic, dataLen = 0, bpf = 0;
-			long	len;
+			int		i, i1, i2, i3, chunkLen, rawLen, essentials, magic, dataLen = 0, bpf = 0;
+			long	len, riffLen;
 
 			raf.readInt();		// RIFF
-			raf.readInt();
-			len	= raf.length() - 8;
+			riffLen	= readLittleInt() & 0xFFFFFFFFL;
+			len		= raf.length() - 8;
+			// chunks behind the sample data are only valid within the RIFF length,
+			// which lags behind the file length if a writer was interrupted
+			if( (riffLen > 0) && (riffLen < len) ) len = riffLen;
+			riffEnd	= len + 8;
 			raf.readInt();		// WAVE
 			len	   -= 4;
 			chunkLen = 0;
 			
-			for( essentials = 2; (len > 0) && (essentials > 0); ) {
+			for( essentials = 2; len >= 8; ) {
 				if( chunkLen != 0 ) raf.seek( raf.getFilePointer() + chunkLen );	// skip to next chunk
 			
 				magic		= raf.readInt();
-				chunkLen	= (readLittleInt() + 1) & 0xFFFFFFFE;
+				rawLen		= readLittleInt();
+				chunkLen	= (rawLen + 1) & 0xFFFFFFFE;
+				if( (essentials == 0) && ((chunkLen < 0) || (chunkLen > len - 8)) ) break;	// truncated trailing chunk
 				len		   -= chunkLen + 8;
 
 				switch( magic ) {
@@ -1316,7 +3626,7 @@ implements InterleavedStreamFile {
 											
 						throw new IOException( getResourceString( "errAudioFileEncoding" ));
 					}
-					unsignedPCM			= bpf == 1;
+					unsignedPCM			= descr.bitsPerSample == 8;	// WAVE 8 bit is always unsigned
 
 					chunkLen -= 16;
 
@@ -1348,17 +3658,25 @@ implements InterleavedStreamFile {
 				case DATA_MAGIC:
 					essentials--;
 					sampleDataOffset	= raf.getFilePointer();
-					dataLen				= chunkLen;
+					dataLen				= rawLen;		// without the pad byte
 					break;
 				
 				case CUE_MAGIC:
 					cueMagicOff			= raf.getFilePointer();
+					annotationChunks.add( new long[] { cueMagicOff - 8, chunkLen });
+					break;
+
+				case JUNK_MAGIC:
+					junkChunks.add( new long[] { raf.getFilePointer() - 8, chunkLen });
 					break;
 
 				case LIST_MAGIC:
 				case LIST_MAGIC2:
 					i	= raf.readInt();
 					chunkLen -= 4;
+					if( (i == ADTL_MAGIC) || (i == ANNO_MAGIC) || (i == INFO_MAGIC) ) {
+						annotationChunks.add( new long[] { raf.getFilePointer() - 12, chunkLen + 4 });
+					}
 					if( i == ADTL_MAGIC ) {
 						listMagicOff = raf.getFilePointer();
 						listMagicLen = chunkLen;
@@ -1366,12 +3684,10 @@ implements InterleavedStreamFile {
 					if(i == ANNO_MAGIC) {
 						annoMagicOff = raf.getFilePointer();
 						annoMagicLen = chunkLen;
-						System.out.println("anno: " + annoMagicLen);
 					} // if ( i == ANNO_MAGIC )
 					if(i == CNFG_MAGIC) {
 						cnfgMagicOff = raf.getFilePointer();
 						cnfgMagicLen = chunkLen;
-						System.out.println("cnfg: " + cnfgMagicLen);
 						// make this change the essentials to account for the config chunk
 					}
 					if( i == INFO_MAGIC ) {
@@ -1379,26 +3695,104 @@ implements InterleavedStreamFile {
 						infoMagicLen = chunkLen;
 					}
 					break;
+
+				case CRCT_MAGIC:
+					crctMagicOff		= raf.getFilePointer();
+					break;
+
+				case ENRG_MAGIC:
+					enrgMagicOff		= raf.getFilePointer();
+					enrgChunkEnd		= enrgMagicOff + chunkLen;
+					break;
 		
 				default:
 					break;
 				} // switch( magic )
-			} // for( essentials = 2; (len > 0) && (essentials > 0); )
+			} // for( essentials = 2; len >= 8; )
 			if( essentials > 0 ) throw new IOException( getResourceString( "errAudioFileIncomplete" ));
 			
 			descr.length	= dataLen / bpf;
+			if( cnfgMagicOff > 0L ) readConfig( descr );	// needed to decode quantized samples
+		}
+		
+		/*
+		 *	Reads the sub chunks of the config chunk
+		 */
+		private void readConfig( SURFFileDescr descr ) throws IOException {
+			final float[]	cc		= new float[ descr.channels ];
+			final float[]	scale	= new float[ descr.channels ];
+			final float[]	offset	= new float[ descr.channels ];
+			int				i, i1, i2;
+			int				ccCount	= 0, scCount = 0, ofCount = 0;
+			byte[]			strBuf	= null;
+			
+			raf.seek( cnfgMagicOff );
+			for( long chunkLen = cnfgMagicLen; chunkLen >= 8; ) {
+				i	= raf.readInt();		// sub chunk ID
+				i1	= readLittleInt();
+				i2	= (i1 + 1) & 0xFFFFFFFE;	// sub chunk length
+				chunkLen -= 8;
+				switch( i ) {
+				case TMST_MAGIC:
+					if( strBuf == null || strBuf.length < i1 ) {
+						strBuf  = new byte[ Math.max( 64, i1 )];
+					}
+					raf.readFully( strBuf, 0, i1 );	// null-terminated
+					descr.SURF_initial_timestamp = new String( strBuf, 0, i1 - 1 );
+					chunkLen -= i1;
+					i2		 -= i1;
+					break;
+				case TMZN_MAGIC:
+					if( strBuf == null || strBuf.length < i1 ) {
+						strBuf  = new byte[ Math.max( 64, i1 )];
+					}
+					raf.readFully( strBuf, 0, i1 );	// null-terminated
+					descr.SURF_timezone = new String( strBuf, 0, i1 - 1 );
+					chunkLen -= i1;
+					i2		 -= i1;
+					break;
+				case SPRT_MAGIC:
+					descr.SURF_sample_rate = raf.readFloat();
+					chunkLen -= i1;
+					i2		 -= i1;
+					break;
+				case CHCC_MAGIC:
+					if( ccCount == cc.length ) break;
+					cc[ ccCount++ ] = raf.readFloat();
+					chunkLen -= i1;
+					i2		 -= i1;
+					break;
+				case CHSC_MAGIC:
+					if( scCount == scale.length ) break;
+					scale[ scCount++ ] = raf.readFloat();
+					chunkLen -= i1;
+					i2		 -= i1;
+					break;
+				case CHOF_MAGIC:
+					if( ofCount == offset.length ) break;
+					offset[ ofCount++ ] = raf.readFloat();
+					chunkLen -= i1;
+					i2		 -= i1;
+					break;
+				default:
+					break;
+				}
+				if( i2 != 0 ) {
+					raf.seek( raf.getFilePointer() + i2 );
+					chunkLen -= i2;
+				}
+			}
+			descr.SURF_channel_calibration = cc;
+			if( scCount > 0 ) {
+				if( scCount < scale.length ) throw new IOException( getResourceString( "errAudioFileIncomplete" ));
+				descr.SURF_channel_scale	= scale;
+				descr.SURF_channel_offset	= offset;
+			}
 		}
 		
-		@SuppressWarnings("unchecked")
 		protected void writeHeader( SURFFileDescr descr ) throws IOException {
 			int					i, i1, i2, i3;
-			Region				region;
-			Marker				marker;
-			Annotation			annotation;
-			Info		SURF_info;
-			List<Marker>		labels, notes;
-			List<Region>		regions;
-			List<Annotation>	comments, metadata;
+			ChunkBuffer			out;
 			
 			long			pos, pos2;
 			//Object			o;
@@ -1410,6 +3804,7 @@ implements InterleavedStreamFile {
 				descr.rate = 1;
 
 			isFloat = descr.sampleFormat == SURFFileDescr.FORMAT_FLOAT;	// floating point requires FACT extension
+			unsignedPCM = descr.bitsPerSample == 8;
 			raf.writeInt( RIFF_MAGIC );
 			raf.writeInt( 0 );				// Laenge ohne RIFF-Header (Dateilaenge minus 8); unknown now
 			raf.writeInt( WAVE_MAGIC );
@@ -1446,12 +3841,12 @@ implements InterleavedStreamFile {
 			if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
 			
 			// write timezone
-			i3 = getSize( afd.SURF_timezone ) + 1;
-			raf.writeInt( TMZN_MAGIC );
-			writeLittleInt( i3 );
 			if(afd.SURF_timezone == "") {
 				afd.SURF_timezone = Calendar.getInstance().getTimeZone().getID();
 			}
+			i3 = getSize( afd.SURF_timezone ) + 1;
+			raf.writeInt( TMZN_MAGIC );
+			writeLittleInt( i3 );
 			raf.write( getBytes( afd.SURF_timezone ) );
 			if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
 			
@@ -1460,8 +3855,6 @@ implements InterleavedStreamFile {
 			raf.writeInt( SPRT_MAGIC );
 			writeLittleInt( i3 );
 			raf.writeFloat(afd.SURF_sample_rate);
-			System.out.println("i3 sampling rate: " + i3);
-			System.out.println(i3 & 1);
 				
 			// write channel calibration -> CHECK IF LENGTH = NUM CHANNELS!!!!
 			i3 = Float.SIZE / 8;
@@ -1471,10 +3864,23 @@ implements InterleavedStreamFile {
 				raf.writeFloat(afd.SURF_channel_calibration[c]);
 			}
 			
+			// write quantization of integer samples
+			if( afd.isQuantized() ) {
+				for( int c = 0; c < afd.channels; c++ ) {
+					raf.writeInt( CHSC_MAGIC );
+					writeLittleInt( i3 );
+					raf.writeFloat( afd.SURF_channel_scale[ c ]);
+				}
+				for( int c = 0; c < afd.channels; c++ ) {
+					raf.writeInt( CHOF_MAGIC );
+					writeLittleInt( i3 );
+					raf.writeFloat( afd.SURF_channel_offset[ c ]);
+				}
+			}
+			
 			// update this list size
 			pos2 = raf.getFilePointer();
 			i	 = (int) (pos2 - pos - 4);
-			System.out.println("i config: " + i);
 			if( (i & 1) == 1 ) {
 				raf.write( 0 );	// padding byte
 				pos2++;
@@ -1483,6 +3889,44 @@ implements InterleavedStreamFile {
 			writeLittleInt( i );
 			raf.seek( pos2 );
 			
+			// annotation chunks
+			out = new ChunkBuffer();
+			writeAnnotations( descr, out );
+			raf.write( out.getBuffer(), 0, out.size() );
+			
+			// space reserved for annotations added later
+			if( headerReserve > 0 ) {
+				i = (headerReserve + 1) & ~1;
+				raf.writeInt( JUNK_MAGIC );
+				writeLittleInt( i );
+				raf.write( new byte[ i ]);
+			}
+			
+			// data Chunk (Header)
+			raf.writeInt( DATA_MAGIC );
+			dataLengthOffset = raf.getFilePointer();
+			raf.writeInt( 0 );
+			sampleDataOffset = raf.getFilePointer();
+			fileLength		 = sampleDataOffset;
+			
+			updateHeader( descr );
+		}
+		
+		/*
+		 *	Writes the cue, adtl, ANNO and INFO chunks of the descriptor's
+		 *	labels, regions, notes, comments, metadata and info.
+		 */
+		@SuppressWarnings("unchecked")
+		private void writeAnnotations( SURFFileDescr descr, ChunkBuffer out ) throws IOException {
+			int					i, i1, i2, i3, pos;
+			Region				region;
+			Marker				marker;
+			Annotation			annotation;
+			Info				SURF_info;
+			List<Marker>		labels, notes;
+			List<Region>		regions;
+			List<Annotation>	comments, metadata;
+
 			// cue Chunk
 			labels  	= (List<Marker>) descr.getProperty( SURFFileDescr.KEY_LABELS ); 	// appliance activity  -> LABEL chunks
 			regions  	= (List<Region>) descr.getProperty( SURFFileDescr.KEY_REGIONS ); 	// user activities 	 -> LABELED TEXT chunks
@@ -1498,86 +3942,81 @@ implements InterleavedStreamFile {
 				if( regions == null ) regions 	= new ArrayList<Region>();
 				if( notes == null ) notes 		= new ArrayList<Marker>();
 				
-				raf.writeInt( CUE_MAGIC );
+				out.writeInt( CUE_MAGIC );
 				i2	= labels.size() + regions.size() + notes.size();
-				writeLittleInt( 24 * i2 + 4 );
-				writeLittleInt( i2 );
+				out.writeLittleInt( 24 * i2 + 4 );
+				out.writeLittleInt( i2 );
 				
 				for( i = 0, i1 = 1; i < labels.size(); i++, i1++ ) {
 					marker = (Marker) labels.get( i );
-					writeLittleInt( i1 );
-					writeLittleInt( i1 );
-					raf.writeInt( DATA_MAGIC );
-					raf.writeLong( 0 );	// ignore dwChunkStart, dwBlockStart
-					writeLittleInt( (int) marker.pos );
+					out.writeLittleInt( i1 );
+					out.writeLittleInt( i1 );
+					out.writeInt( DATA_MAGIC );
+					out.writeLong( 0 );	// ignore dwChunkStart, dwBlockStart
+					out.writeLittleInt( (int) marker.pos );
 				}
 				
 				for( i = 0; i < regions.size(); i++, i1++ ) {
 					region = (Region) regions.get( i );
-					writeLittleInt( i1 );
-					writeLittleInt( i1 );
-					raf.writeInt( DATA_MAGIC );
-					raf.writeLong( 0 );	// ignore dwChunkStart, dwBlockStart
-					writeLittleInt( (int) region.span.getStart() ); // WRITES ACCORDING TO THE POSITION IN THE SPAN
+					out.writeLittleInt( i1 );
+					out.writeLittleInt( i1 );
+					out.writeInt( DATA_MAGIC );
+					out.writeLong( 0 );	// ignore dwChunkStart, dwBlockStart
+					out.writeLittleInt( (int) region.span.getStart() ); // WRITES ACCORDING TO THE POSITION IN THE SPAN
 				}
 				
 				for( i = 0; i < notes.size(); i++, i1++ ) {
 					marker = (Marker) notes.get( i );
-					writeLittleInt( i1 );
-					writeLittleInt( i1 );
-					raf.writeInt( DATA_MAGIC );
-					raf.writeLong( 0 );	// ignore dwChunkStart, dwBlockStart
-					writeLittleInt( (int) marker.pos );
+					out.writeLittleInt( i1 );
+					out.writeLittleInt( i1 );
+					out.writeInt( DATA_MAGIC );
+					out.writeLong( 0 );	// ignore dwChunkStart, dwBlockStart
+					out.writeLittleInt( (int) marker.pos );
 				}
 				
-				raf.writeInt( LIST_MAGIC );
-				pos	= raf.getFilePointer();
-				raf.writeInt( 0 );
-				raf.writeInt( ADTL_MAGIC );
+				out.writeInt( LIST_MAGIC );
+				pos	= out.size();
+				out.writeInt( 0 );
+				out.writeInt( ADTL_MAGIC );
 				
 				for( i = 0, i1 = 1; i < labels.size(); i++, i1++ ) {
 					marker	= (Marker) labels.get( i );
 					i3 			= getSize( marker.name ) + 5;
-					raf.writeInt( LABL_MAGIC );
-					writeLittleInt( i3 );
-					writeLittleInt( i1 );
-					raf.write( getBytes( marker.name ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt( LABL_MAGIC );
+					out.writeLittleInt( i3 );
+					out.writeLittleInt( i1 );
+					out.write( getBytes( marker.name ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
-				for( i = 0; i < notes.size(); i++, i1++ ) {
+				// the identifiers must match the cue points, which list the regions before the notes
+				for( i = 0, i1 = labels.size() + regions.size() + 1; i < notes.size(); i++, i1++ ) {
 					marker	= (Marker) notes.get( i );
 					i3			= getSize( marker.name ) + 5;
-					raf.writeInt( NOTE_MAGIC );
-					writeLittleInt( i3 );
-					writeLittleInt( i1 );
-					raf.write( getBytes( marker.name) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt( NOTE_MAGIC );
+					out.writeLittleInt( i3 );
+					out.writeLittleInt( i1 );
+					out.write( getBytes( marker.name) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
-				for( i = 0; i < regions.size(); i++, i1++ ) {
+				for( i = 0, i1 = labels.size() + 1; i < regions.size(); i++, i1++ ) {
 					region	= (Region) regions.get( i );
-					raf.writeInt( LTXT_MAGIC );
+					out.writeInt( LTXT_MAGIC );
 					i3		= getSize( region.name ) + 21;
-					writeLittleInt( i3 );
-					writeLittleInt( i1 );
-					writeLittleInt( (int) region.span.stop );
-					raf.writeInt( RGN_MAGIC );
-					raf.writeLong( 0 );		// wCountry, wLanguage, wDialect, wCodePage
-					raf.write( getBytes( region.name ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeLittleInt( i3 );
+					out.writeLittleInt( i1 );
+					out.writeLittleInt( (int) region.span.stop );
+					out.writeInt( RGN_MAGIC );
+					out.writeLong( 0 );		// wCountry, wLanguage, wDialect, wCodePage
+					out.write( getBytes( region.name ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// update 'list' chunk size
-				pos2 = raf.getFilePointer();
-				i	 = (int) (pos2 - pos - 4);			
-				if( (i & 1) == 1 ) {
-					raf.write( 0 );	// padding byte
-					pos2++;
-				}
-				raf.seek( pos );
-				writeLittleInt( i );
-				raf.seek( pos2 );
+				i	 = out.size() - pos - 4;
+				if( (i & 1) == 1 ) out.write( 0 );	// padding byte
+				out.setLittleInt( pos, i );
 				
 			} // if marker or region list not empty
 			
@@ -1586,198 +4025,173 @@ implements InterleavedStreamFile {
 				if( metadata == null ) metadata = new ArrayList<Annotation>();
 				if( comments == null ) comments = new ArrayList<Annotation>();
 				
-				raf.writeInt(LIST_MAGIC);
-				pos	= raf.getFilePointer();
-				raf.writeInt(0);
-				raf.writeInt(ANNO_MAGIC);
+				out.writeInt(LIST_MAGIC);
+				pos	= out.size();
+				out.writeInt(0);
+				out.writeInt(ANNO_MAGIC);
 				
 				// add the metadata chunks				
 				for( i = 0, i1 = 1; i < metadata.size(); i++, i1++ ) {
 					annotation	= (Annotation) metadata.get( i );
 					i3 = getSize( annotation.content ) + 1;
-					raf.writeInt(META_MAGIC);
-					writeLittleInt( i3 );
-					System.out.println("metadata: " + i3);
-					System.out.println(i3 & 1);
-					raf.write( getBytes( annotation.content ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(META_MAGIC);
+					out.writeLittleInt( i3 );
+					out.write( getBytes( annotation.content ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				for( i = 0, i1 = 1; i < comments.size(); i++, i1++ ) {
 					annotation	= (Annotation) comments.get( i );
 					// i3		= annotation.content.length() + 1;
 					i3 = getSize( annotation.content ) + 1;
-					raf.writeInt(COMT_MAGIC);
-					writeLittleInt( i3 );
-					System.out.println("comment: " + i3);
-					System.out.println(i3 & 1);
-					raf.write( getBytes( annotation.content ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(COMT_MAGIC);
+					out.writeLittleInt( i3 );
+					out.write( getBytes( annotation.content ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// update this list size
-				pos2 = raf.getFilePointer();
-				i	 = (int) (pos2 - pos - 4);
-				if( (i & 1) == 1 ) {
-					raf.write( 0 );	// padding byte
-					pos2++;
-				}
-				raf.seek( pos );
-				writeLittleInt( i );
-				raf.seek( pos2 );				
+				i	 = out.size() - pos - 4;
+				if( (i & 1) == 1 ) out.write( 0 );	// padding byte
+				out.setLittleInt( pos, i );
 				
 			} // if metadata or comment list not empty
 			
 			
 			// INFO CHUNK - not mandatory
 			if( SURF_info != null) {
-				raf.writeInt(LIST_MAGIC);
-				pos	= raf.getFilePointer();
-				raf.writeInt(0);
-				raf.writeInt(INFO_MAGIC);
+				out.writeInt(LIST_MAGIC);
+				pos	= out.size();
+				out.writeInt(0);
+				out.writeInt(INFO_MAGIC);
 				
 				// write archival location
 				if(SURF_info.archival_location != "") {
 					i3 = getSize(SURF_info.archival_location) + 1;
-					raf.writeInt(IARL_MAGIC);
-					writeLittleInt(i3);
-					raf.write(getBytes(SURF_info.archival_location));
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(IARL_MAGIC);
+					out.writeLittleInt(i3);
+					out.write(getBytes(SURF_info.archival_location));
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write dataset creator
 				if(SURF_info.file_creator != "") {
 					i3 = getSize(SURF_info.file_creator) + 1;
-					raf.writeInt(IART_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.file_creator ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(IART_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.file_creator ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write commissioner
 				if(SURF_info.commissioner != "") {
 					i3 = getSize(SURF_info.commissioner) + 1;
-					raf.writeInt(ICMS_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.commissioner ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(ICMS_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.commissioner ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write comments
 				if(SURF_info.comments != "") {
 					i3 = getSize(SURF_info.comments) + 1;
-					raf.writeInt(ICMT_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.comments ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(ICMT_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.comments ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write copyright
 				if(SURF_info.copyright != "") {
 					i3 = getSize(SURF_info.copyright) + 1;
-					raf.writeInt(ICOP_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.copyright ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(ICOP_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.copyright ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write creation date
 				if(SURF_info.creation_date != "") {
 					i3 = getSize(SURF_info.creation_date) + 1;
-					raf.writeInt(ICRD_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.creation_date ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(ICRD_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.creation_date ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write keywords
 				if(SURF_info.keywords != "") {
 					i3 = getSize(SURF_info.keywords) + 1;
-					raf.writeInt(IKEY_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.keywords ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(IKEY_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.keywords ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write subject / name
 				if(SURF_info.name != "") {
 					i3 = getSize(SURF_info.name) + 1;
-					raf.writeInt(INAM_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.name ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(INAM_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.name ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write product
 				if(SURF_info.product != "") {
 					i3 = getSize(SURF_info.product) + 1;
-					raf.writeInt(IPRD_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.product ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(IPRD_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.product ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write subject
 				if(SURF_info.subject != "") {
 					i3 = getSize(SURF_info.subject) + 1;
-					raf.writeInt(ISBJ_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.subject ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(ISBJ_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.subject ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write software
 				if(SURF_info.software != "") {
 					i3 = getSize(SURF_info.software) + 1;
-					raf.writeInt(ISFT_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.software ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(ISFT_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.software ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write source
 				if(SURF_info.source != "") {
 					i3 = getSize(SURF_info.source) + 1;
-					raf.writeInt(ISRC_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.source ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(ISRC_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.source ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// write source form
 				if(SURF_info.source_form != "") {
 					i3 = getSize(SURF_info.source_form) + 1;
-					raf.writeInt(ISRF_MAGIC);
-					writeLittleInt(i3);
-					raf.write( getBytes( SURF_info.source_form ) );
-					if( (i3 & 1) == 0 ) raf.writeByte( 0 ); else raf.writeShort( 0 );
+					out.writeInt(ISRF_MAGIC);
+					out.writeLittleInt(i3);
+					out.write( getBytes( SURF_info.source_form ) );
+					if( (i3 & 1) == 0 ) out.write( 0 ); else out.writeShort( 0 );
 				}
 				
 				// update this list size
-				pos2 = raf.getFilePointer();
-				i	 = (int) (pos2 - pos - 4);
-				if( (i & 1) == 1 ) {
-					raf.write( 0 );	// padding byte
-					pos2++;
-				}
-				raf.seek( pos );
-				writeLittleInt( i );
-				raf.seek( pos2 );	
+				i	 = out.size() - pos - 4;
+				if( (i & 1) == 1 ) out.write( 0 );	// padding byte
+				out.setLittleInt( pos, i );
 			} // if info chunk not null
-			
-			
-			// data Chunk (Header)
-			raf.writeInt( DATA_MAGIC );
-			dataLengthOffset = raf.getFilePointer();
-			raf.writeInt( 0 );
-			sampleDataOffset = raf.getFilePointer();
-			
-			updateHeader( descr );
 		}
-		
+
 		protected void updateHeader( SURFFileDescr descr ) throws IOException {
 			long oldPos	= raf.getFilePointer();
-			long len	= raf.length();
+			long len	= fileLength;		// not the physical length, which includes preallocated space
 			if( len == lastUpdateLength ) return;
 			
 			if( len >= riffLengthOffset + 4 ) {
@@ -1786,7 +4200,7 @@ implements InterleavedStreamFile {
 			}
 			if( len >= dataLengthOffset + 4 ) {
 				raf.seek( dataLengthOffset );
-				writeLittleInt( (int) (len - (dataLengthOffset + 4)) );			// data Chunk len
+				writeLittleInt( (int) (len - trailerLength - (dataLengthOffset + 4)) );	// data Chunk len
 			}
 			raf.seek( oldPos );
 			lastUpdateLength = len;
@@ -1795,6 +4209,253 @@ implements InterleavedStreamFile {
 		protected long getSampleDataOffset() {
 			return sampleDataOffset;
 		}
+
+		protected void updateAnnotations( SURFFileDescr descr ) throws IOException {
+			final long			oldPos	= raf.getFilePointer();
+			final ChunkBuffer	out		= new ChunkBuffer();
+			final int			size;
+			long				lastOff	= 0L;
+			long				pos;
+			long[]				junk	= null;
+
+			if( raf.length() > riffEnd ) throw new IOException( "file was not closed properly" );
+			writeAnnotations( descr, out );
+			size = out.size();
+
+			for( int i = 0; i < annotationChunks.size(); i++ ) {
+				lastOff = Math.max( lastOff, annotationChunks.get( i )[ 0 ]);
+			}
+			// reserved space must lie behind the current annotations, so the new ones win while both exist
+			for( int i = 0; (i < junkChunks.size()) && (size > 0); i++ ) {
+				final long[] j = junkChunks.get( i );
+				if( (j[ 0 ] > lastOff) && ((j[ 1 ] + 8 == size) || (j[ 1 ] >= size)) ) {
+					junk = j;
+					break;
+				}
+			}
+
+			try {
+				if( size == 0 ) {
+					pos = 0L;
+				} else if( junk != null ) {
+					pos = junk[ 0 ];
+					raf.seek( pos + 8 );
+					raf.write( out.getBuffer(), 8, size - 8 );
+					junkChunks.remove( junk );
+					if( junk[ 1 ] + 8 > size ) {			// the rest remains reserved
+						raf.writeInt( JUNK_MAGIC );
+						writeLittleInt( (int) (junk[ 1 ] - size) );
+						junkChunks.add( new long[] { pos + size, junk[ 1 ] - size });
+					}
+					fch.force( false );
+					raf.seek( pos );
+					raf.write( out.getBuffer(), 0, 8 );		// commit : the first chunk header replaces the JUNK header
+				} else {
+					pos = riffEnd;
+					raf.seek( pos );
+					if( (pos & 1) != 0 ) {
+						raf.write( 0 );						// pad the last chunk
+						pos++;
+					}
+					raf.write( out.getBuffer(), 0, size );
+					fch.force( false );
+					raf.seek( riffLengthOffset );
+					writeLittleInt( (int) (pos + size - 8) );	// commit : the RIFF length now covers the new chunks
+					riffEnd = pos + size;
+				}
+				fch.force( false );
+
+				// discard the previous annotations
+				for( int i = 0; i < annotationChunks.size(); i++ ) {
+					final long[] c = annotationChunks.get( i );
+					raf.seek( c[ 0 ]);
+					raf.writeInt( JUNK_MAGIC );
+					junkChunks.add( c );
+				}
+				fch.force( false );
+				indexAnnotations( pos, out.getBuffer(), size );
+			}
+			finally {
+				raf.seek( oldPos );
+			}
+		}
+
+		// locates the annotation chunks just written at pos
+		private void indexAnnotations( long pos, byte[] b, int size ) {
+			final ByteBuffer	bb	= ByteBuffer.wrap( b, 0, size );
+			int					magic, type, len;
+			long				off;
+
+			annotationChunks.clear();
+			cueMagicOff	= 0L;
+			listMagicOff	= 0L;
+			annoMagicOff	= 0L;
+			infoMagicOff	= 0L;
+			while( bb.remaining() >= 8 ) {
+				off		= pos + bb.position();
+				magic	= bb.getInt();
+				len		= Integer.reverseBytes( bb.getInt() );
+				annotationChunks.add( new long[] { off, (len + 1) & 0xFFFFFFFE });
+				if( magic == CUE_MAGIC ) {
+					cueMagicOff = off + 8;
+				} else {
+					type = bb.getInt( bb.position() );
+					if( type == ADTL_MAGIC ) {
+						listMagicOff	= off + 12;
+						listMagicLen	= len - 4;
+					} else if( type == ANNO_MAGIC ) {
+						annoMagicOff	= off + 12;
+						annoMagicLen	= len - 4;
+					} else if( type == INFO_MAGIC ) {
+						infoMagicOff	= off + 12;
+						infoMagicLen	= len - 4;
+					}
+				}
+				bb.position( bb.position() + ((len + 1) & 0xFFFFFFFE) );
+			}
+		}
+
+		protected void writeChecksums( long dataEnd, int blockFrames, int[] table ) throws IOException {
+			final long			oldPos	= raf.getFilePointer();
+			final int			pad		= (int) (dataEnd & 1);
+			final ByteBuffer	b		= ByteBuffer.allocate( pad + 16 + (table.length << 2) );
+
+			if( pad == 1 ) b.put( (byte) 0 );				// the data chunk is padded to an even size
+			b.putInt( CRCT_MAGIC );
+			b.order( ByteOrder.LITTLE_ENDIAN );
+			b.putInt( 8 + (table.length << 2) );
+			b.putInt( blockFrames );
+			b.putInt( table.length );
+			for( int i = 0; i < table.length; i++ ) b.putInt( table[ i ]);
+
+			raf.seek( dataEnd );
+			raf.write( b.array(), 0, b.position() );
+			raf.setLength( raf.getFilePointer() );
+			trailerLength	= b.position();
+			crctMagicOff	= dataEnd + pad + 8;
+			crctBlockFrames	= blockFrames;
+			raf.seek( oldPos );
+		}
+
+		protected int[] readChecksums() throws IOException {
+			final long		oldPos	= raf.getFilePointer();
+			final int[]		table;
+			final byte[]	b;
+			final int		n;
+
+			if( crctMagicOff == 0L ) return null;
+			try {
+				raf.seek( crctMagicOff );
+				crctBlockFrames	= readLittleInt();
+				n				= readLittleInt();
+				if( (crctBlockFrames <= 0) || (n < 0) || (crctMagicOff + 8 + ((long) n << 2) > raf.length()) ) {
+					throw new IOException( getResourceString( "errAudioFileIncomplete" ));
+				}
+				b				= new byte[ n << 2 ];
+				raf.readFully( b );
+				table			= new int[ n ];
+				ByteBuffer.wrap( b ).order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer().get( table );
+				return table;
+			}
+			finally {
+				raf.seek( oldPos );
+			}
+		}
+
+		protected int getChecksumBlockFrames() {
+			return crctBlockFrames;
+		}
+
+		/*
+		 *	The ENRG chunk holds the block size, the number of channels and
+		 *	blocks, followed by the running sums of each block, channel by
+		 *	channel, as little endian doubles.
+		 */
+		private byte[] createEnergyChunk( int pad, int blockFrames, int channels, double[] table ) {
+			final ByteBuffer b = ByteBuffer.allocate( pad + 20 + (table.length << 3) );
+
+			if( pad == 1 ) b.put( (byte) 0 );
+			b.putInt( ENRG_MAGIC );
+			b.order( ByteOrder.LITTLE_ENDIAN );
+			b.putInt( 12 + (table.length << 3) );
+			b.putInt( blockFrames );
+			b.putInt( channels );
+			b.putInt( table.length / channels );
+			for( int i = 0; i < table.length; i++ ) b.putDouble( table[ i ]);
+			return b.array();
+		}
+
+		// behind the sample data and the checksums, if they have just been written
+		protected void writeEnergy( long dataEnd, int blockFrames, int channels, double[] table ) throws IOException {
+			final long		oldPos	= raf.getFilePointer();
+			final long		pos		= dataEnd + trailerLength;
+			final byte[]	b		= createEnergyChunk( (int) (pos & 1), blockFrames, channels, table );
+
+			raf.seek( pos );
+			raf.write( b );
+			raf.setLength( raf.getFilePointer() );
+			trailerLength  += b.length;
+			enrgMagicOff	= pos + (pos & 1) + 8;
+			enrgChunkEnd	= pos + b.length;
+			enrgBlockFrames	= 0;
+			raf.seek( oldPos );
+		}
+
+		// behind the last chunk, or in place of the previous index if that is the last chunk
+		protected void appendEnergy( int blockFrames, int channels, double[] table ) throws IOException {
+			final long		oldPos	= raf.getFilePointer();
+			final long		pos;
+			final byte[]	b;
+
+			if( raf.length() > riffEnd ) throw new IOException( "file was not closed properly" );
+			pos	= (enrgMagicOff > 0L) && (enrgChunkEnd == riffEnd) ? enrgMagicOff - 8 : riffEnd;
+			b	= createEnergyChunk( (int) (pos & 1), blockFrames, channels, table );
+			try {
+				raf.seek( pos );
+				raf.write( b );
+				raf.setLength( pos + b.length );
+				fch.force( false );
+				raf.seek( riffLengthOffset );
+				writeLittleInt( (int) (pos + b.length - 8) );	// commit : the RIFF length now covers the new chunk
+				fch.force( false );
+				riffEnd			= pos + b.length;
+				enrgMagicOff	= pos + (pos & 1) + 8;
+				enrgChunkEnd	= riffEnd;
+				enrgBlockFrames	= 0;
+			}
+			finally {
+				raf.seek( oldPos );
+			}
+		}
+
+		protected double[] readEnergy( int channels ) throws IOException {
+			final long		oldPos	= raf.getFilePointer();
+			final double[]	table;
+			final byte[]	b;
+			final int		n;
+
+			if( enrgMagicOff == 0L ) return null;
+			try {
+				raf.seek( enrgMagicOff );
+				enrgBlockFrames	= readLittleInt();
+				n				= readLittleInt() == channels ? readLittleInt() : -1;
+				if( (enrgBlockFrames <= 0) || (n < 0) || (enrgMagicOff + 12 + ((long) n * channels << 3) > raf.length()) ) {
+					throw new IOException( getResourceString( "errAudioFileIncomplete" ));
+				}
+				b				= new byte[ n * channels << 3 ];
+				raf.readFully( b );
+				table			= new double[ n * channels ];
+				ByteBuffer.wrap( b ).order( ByteOrder.LITTLE_ENDIAN ).asDoubleBuffer().get( table );
+				return table;
+			}
+			finally {
+				raf.seek( oldPos );
+			}
+		}
+
+		protected int getEnergyBlockFrames() {
+			return enrgBlockFrames;
+		}
 		
 		protected ByteOrder getByteOrder() {
 			return ByteOrder.LITTLE_ENDIAN;
@@ -1805,7 +4466,7 @@ implements InterleavedStreamFile {
 		}
 		
 		protected void readMarkers() throws IOException {
-			if( (listMagicOff == 0L) && (annoMagicOff == 0L)) return;
+			if( (listMagicOff == 0L) && (annoMagicOff == 0L) && (infoMagicOff == 0L) ) return;
 			
 			final Map<Integer, Integer>	mapCues			= new HashMap<Integer, Integer>();
 			final Map<Integer, Integer>	mapCueLengths	= new HashMap<Integer, Integer>();
@@ -1992,58 +4653,6 @@ implements InterleavedStreamFile {
 				if( !comments.isEmpty() ) afd.setProperty( SURFFileDescr.KEY_COMMENTS, comments );
 				if( !metadata.isEmpty() ) afd.setProperty( SURFFileDescr.KEY_METADATA, metadata );
 				
-				if(cnfgMagicOff > 0) {
-					float[] cc = new float[afd.channels];
-					int cc_count = 0;
-					raf.seek( cnfgMagicOff );
-					for( long chunkLen = cnfgMagicLen; chunkLen >= 8; ) {
-						i	= raf.readInt();		// sub chunk ID
-						i1	= readLittleInt();
-						i2	= (i1 + 1) & 0xFFFFFFFE;	// sub chunk length
-						chunkLen -= 8;
-						switch( i ) {
-						case TMST_MAGIC:
-							if( strBuf == null || strBuf.length < i1 ) {
-								strBuf  = new byte[ Math.max( 64, i1 )];
-							}
-							raf.readFully( strBuf, 0, i1 );	// null-terminated
-							afd.SURF_initial_timestamp = new String( strBuf, 0, i1 - 1 );
-							chunkLen -= i1;
-							i2		 -= i1;
-							break;
-						case TMZN_MAGIC:
-							if( strBuf == null || strBuf.length < i1 ) {
-								strBuf  = new byte[ Math.max( 64, i1 )];
-							}
-							raf.readFully( strBuf, 0, i1 );	// null-terminated
-							afd.SURF_timezone = new String( strBuf, 0, i1 - 1 );
-							chunkLen -= i1;
-							i2		 -= i1;
-							break;
-						case SPRT_MAGIC:
-							afd.SURF_sample_rate = raf.readFloat();
-							chunkLen -= i1;
-							i2		 -= i1;
-							break;
-						case CHCC_MAGIC:
-							System.out.println("read cc");
-							cc[cc_count] = raf.readFloat();
-							chunkLen -= i1;
-							i2		 -= i1;
-							System.out.println(cc[cc_count]);
-							cc_count ++;
-							break;
-						default:
-							break;
-						}
-						if( i2 != 0 ) {
-							raf.seek( raf.getFilePointer() + i2 );
-							chunkLen -= i2;
-						}
-					}
-					afd.SURF_channel_calibration = cc;
-				}
-				
 				if(infoMagicOff > 0) {
 					raf.seek( infoMagicOff );
 					SURF_info = new Info();
@@ -2052,8 +4661,6 @@ implements InterleavedStreamFile {
 						i1	= readLittleInt();
 						i2	= (i1 + 1) & 0xFFFFFFFE;	// sub chunk length
 						chunkLen -= 8;
-						System.out.println("FOURCC:" + i);
-						System.out.println("FourCC String: " + FourCCtoString(i));
 						switch( i ) {						
 						case IARL_MAGIC:
 							if( strBuf == null || strBuf.length < i1 ) {
@@ -2061,7 +4668,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.archival_location = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.archival_location);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2071,7 +4677,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.file_creator = new String( strBuf, 0, i1 - 1,"UTF-8" );
-							System.out.println(SURF_info.file_creator);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2081,7 +4686,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.commissioner = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.commissioner);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2091,7 +4695,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.comments = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.comments);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2101,7 +4704,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.copyright = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.copyright);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2111,7 +4713,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.creation_date = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.creation_date);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2121,7 +4722,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.keywords = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.keywords);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2131,7 +4731,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.name = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.name);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2141,7 +4740,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.product = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.product);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2151,7 +4749,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.subject = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.subject);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2161,7 +4758,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.software = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.software);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2171,7 +4767,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.source = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.source);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -2181,7 +4776,6 @@ implements InterleavedStreamFile {
 							}
 							raf.readFully( strBuf, 0, i1 );	// null-terminated
 							SURF_info.source_form = new String( strBuf, 0, i1 - 1 );
-							System.out.println(SURF_info.source_form);
 							chunkLen -= i1;
 							i2		 -= i1;
 							break;
@@ -29,13 +29,18 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 //import java.text.MessageFormat;
-import java.util.ArrayList;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 //import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 //import de.sciss.gui.StringItem;
 
@@ -119,9 +124,11 @@ public class SURFFileDescr {
 	 */
 	public int		sampleFormat;
 	/**
-	 *  sound file length in sample frames
+	 *  sound file length in sample frames. The field is volatile,
+	 *  so a writer publishes a new length atomically and readers
+	 *  on other threads see it without locking
 	 */
-	public long		length;			// in sampleframes
+	public volatile long	length;			// in sampleframes
 	/**
 	 *  timestamp of the first sample in the file.
 	 *  Format: YYYY-MM-DD hh:mm:ss:mmm
@@ -139,6 +146,31 @@ public class SURFFileDescr {
 	public float	SURF_sample_rate = 0f;
 	
 	public float[] 	SURF_channel_calibration;
+	/**
+	 *  quantization step of each channel, or <code>null</code> if the
+	 *  samples are stored as they are. In a quantized file, an integer
+	 *  <code>q</code> stored for channel <code>ch</code> represents the
+	 *  sample value <code>SURF_channel_offset[ ch ] + q * SURF_channel_scale[ ch ]</code>,
+	 *  which <code>SURFFile</code> converts transparently when reading and
+	 *  writing floating point frames. The channel calibration is applied on
+	 *  top of the sample value, as for unquantized files.
+	 *
+	 *  @see	#setQuantizationRange( int, double, double )
+	 *  @see	#setCalibratedQuantization( int, double )
+	 */
+	public float[]	SURF_channel_scale;
+	/**
+	 *  sample value of a stored zero in each channel of a quantized file
+	 *
+	 *  @see	#SURF_channel_scale
+	 */
+	public float[]	SURF_channel_offset;
+	
+	/**
+	 *  pattern of <code>SURF_initial_timestamp</code>, as understood
+	 *  by <code>SimpleDateFormat</code>
+	 */
+	public static final String TIMESTAMP_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
 	
 	/**
 	 *  property key : label list. value class = (java.util.)List whose elements are of class Marker
@@ -180,12 +212,14 @@ public class SURFFileDescr {
 
 	// -------- protected Variables --------
 
-	private final Map<String, Object> properties;
+	// never modified, replaced as a whole on every change
+	private volatile Map<String, Object> properties;
+	private final Object	propertyWriteLock	= new Object();
 	
 	@SuppressWarnings("rawtypes")
 	private static final Set[] supports;
 	
-	private List<PropertyChangeListener>	pcs	= null;
+	private final List<PropertyChangeListener>	pcs	= new CopyOnWriteArrayList<PropertyChangeListener>();
 	
 	private static final String[] FORMAT_SUFFICES	= { "wav", "raw" };
 
@@ -213,7 +247,7 @@ public class SURFFileDescr {
 	 *  whose fields are all undefined
 	 */
 	public SURFFileDescr() {
-		properties =   new HashMap<String, Object>();
+		properties =   Collections.emptyMap();
 	}
 	
 	/**
@@ -238,14 +272,14 @@ public class SURFFileDescr {
 		this.bitsPerSample  = orig.bitsPerSample;
 		this.sampleFormat   = orig.sampleFormat;
 		this.length			= orig.length;
-		synchronized( orig.properties ) {
-			this.properties		= new HashMap<String, Object>( orig.properties );
-		}
+		this.properties		= orig.properties;		// immutable, can be shared
 		// SURF specific properties
 		this.SURF_initial_timestamp 	= orig.SURF_initial_timestamp;
 		this.SURF_timezone				= orig.SURF_timezone;
 		this.SURF_sample_rate			= orig.SURF_sample_rate;
 		this.SURF_channel_calibration 	= orig.SURF_channel_calibration;
+		this.SURF_channel_scale			= orig.SURF_channel_scale;
+		this.SURF_channel_offset		= orig.SURF_channel_offset;
 	}
 	
 	/**
@@ -270,9 +304,7 @@ public class SURFFileDescr {
 	 *				kind of object is returned
 	 */
 	public Object getProperty( Object key ) {
-		synchronized( properties ) {
-			return( properties.get( key ));
-		}
+		return( properties.get( key ));
 	}
 
 	/**
@@ -290,9 +322,7 @@ public class SURFFileDescr {
 	 *  @see	#isPropertySupported( String )
 	 */
 	public void setProperty( String key, Object value ) {
-		synchronized( properties ) {
-			properties.put( key, value );
-		}
+		putProperty( key, value );
 	}
 
 	/**
@@ -304,36 +334,58 @@ public class SURFFileDescr {
 	 *
 	 *  @see	#addPropertyChangeListener( PropertyChangeListener )
 	 *
-	 *	@synchronization	must be called in the event thread
+	 *	@synchronization	must be called in the event thread. listeners
+	 *						are notified after the new value is visible
+	 *						to readers, without holding any lock
 	 */
 	public void setProperty( Object source, String key, Object value ) {
-		synchronized( properties ) {
-			final Object oldValue = properties.put( key, value );
-			if( (source != null) && (pcs != null) ) {
-				final PropertyChangeEvent e = new PropertyChangeEvent( source, key, oldValue, value );
-				// the rude way
-				for( int i = 0; i < pcs.size(); i++ ) {
-					pcs.get( i ).propertyChange( e );
-				}
+		final Object oldValue = putProperty( key, value );
+		if( (source != null) && !pcs.isEmpty() ) {
+			final PropertyChangeEvent e = new PropertyChangeEvent( source, key, oldValue, value );
+			for( PropertyChangeListener l : pcs ) {
+				l.propertyChange( e );
 			}
 		}
 	}
 	
 	public void addPropertyChangeListener( PropertyChangeListener l ) {
-		synchronized( properties ) {
-			if( pcs == null ) {
-				pcs = new ArrayList<PropertyChangeListener>();
-			}
-			pcs.add( l );
-		}
+		pcs.add( l );
 	}
 
 	public void removePropertyChangeListener( PropertyChangeListener l ) {
-		synchronized( properties ) {
-			if( pcs == null ) {
-				pcs.remove( l );
-			}
+		pcs.remove( l );
+	}
+
+	/*
+	 *	Copy-on-write: readers keep using the map they obtained while
+	 *	a writer publishes a modified copy. The lock only orders writers.
+	 */
+	private Object putProperty( String key, Object value ) {
+		final Map<String, Object>	map;
+		final Object				oldValue;
+
+		synchronized( propertyWriteLock ) {
+			map			= new HashMap<String, Object>( properties );
+			oldValue	= map.put( key, value );
+			properties	= Collections.unmodifiableMap( map );
 		}
+		return oldValue;
+	}
+
+	/**
+	 *  Returns an immutable copy of this description. The copy can
+	 *  be handed to other threads, which may then read all fields and
+	 *  properties without locking while this description keeps changing,
+	 *  e.g. while its file is being written.
+	 *  <p>
+	 *  Properties are shared with this description, not copied. Their
+	 *  values must therefore be treated as immutable: to change the labels
+	 *  of a file, set a new list instead of modifying the current one.
+	 *
+	 *  @return a snapshot of the current state
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot( this );
 	}
 
 	/**
@@ -406,5 +458,229 @@ public class SURFFileDescr {
 	{
 		return( samples / afd.rate * 1000 );
 	}
+
+	/**
+	 *  Returns the effective sampling rate of the file. This is
+	 *  <code>SURF_sample_rate</code> if it has been set (which allows
+	 *  rates below 1 Hz), otherwise the integer <code>rate</code>
+	 *  of the wave format chunk.
+	 *
+	 *  @return the sampling rate in hertz
+	 */
+	public double getSampleRate() {
+		return( SURF_sample_rate > 0f ? SURF_sample_rate : rate );
+	}
+
+	/**
+	 *  Returns whether the samples are stored as scaled integers
+	 *
+	 *  @see	#SURF_channel_scale
+	 */
+	public boolean isQuantized() {
+		return( SURF_channel_scale != null );
+	}
+
+	/**
+	 *  Makes a channel store its samples as integers which cover the
+	 *  given range of sample values with equal steps. Values outside
+	 *  the range are clipped when written. This requires
+	 *  <code>sampleFormat</code> <code>FORMAT_INT</code>, and
+	 *  <code>bitsPerSample</code> and <code>channels</code> to be set.
+	 *  Channels which are not set up keep a step of one and an offset
+	 *  of zero, i.e. they store whole numbers.
+	 *
+	 *  @param  ch		the channel index
+	 *  @param  min		the smallest sample value to represent
+	 *  @param  max		the largest sample value to represent
+	 *
+	 *  @throws IllegalStateException	if the format does not allow quantization
+	 *  @throws IllegalArgumentException	if the range is empty
+	 */
+	public void setQuantizationRange( int ch, double min, double max ) {
+		if( !(max > min) ) throw new IllegalArgumentException( "range " + min + " ... " + max );
+		prepareQuantization();
+		final double steps = (double) getQuantizationMax() - getQuantizationMin();
+		SURF_channel_scale[ ch ]	= (float) ((max - min) / steps);
+		SURF_channel_offset[ ch ]	= (float) (min - getQuantizationMin() * (double) SURF_channel_scale[ ch ]);
+	}
+
+	/**
+	 *  Makes a channel store its samples as multiples of a step which
+	 *  corresponds to <code>resolution</code> after calibration, e.g. one
+	 *  watt for a channel of real power. The stored integers are zero
+	 *  based, so the largest calibrated magnitude which can be stored is
+	 *  about <code>resolution</code> times 32767 for 16 bit files. The
+	 *  calibration constant of the channel must be set before.
+	 *
+	 *  @param  ch			the channel index
+	 *  @param  resolution	the quantization step in calibrated units
+	 *
+	 *  @throws IllegalStateException	if the format does not allow quantization
+	 *  @throws IllegalArgumentException	if the resolution is not positive
+	 */
+	public void setCalibratedQuantization( int ch, double resolution ) {
+		if( !(resolution > 0.0) ) throw new IllegalArgumentException( "resolution " + resolution );
+		prepareQuantization();
+		SURF_channel_scale[ ch ]	= (float) (resolution / getChannelCalibration( ch ));
+		SURF_channel_offset[ ch ]	= 0f;
+	}
+
+	/**
+	 *  Returns the largest difference between a sample value and its
+	 *  stored representation, that is half a quantization step, provided
+	 *  the value lies within the range of the channel. The rounding of
+	 *  the values read to 32 bit floating point comes on top, as for
+	 *  floating point files. The bound is in sample units; multiply it
+	 *  by the calibration constant to get the error of calibrated values.
+	 *
+	 *  @param  ch		the channel index
+	 *  @return the error bound, or zero if the file is not quantized
+	 */
+	public double getQuantizationError( int ch ) {
+		return( isQuantized() ? Math.abs( SURF_channel_scale[ ch ]) * 0.5 : 0.0 );
+	}
+
+	/**
+	 *  Returns the smallest integer which can be stored
+	 *  with the current <code>bitsPerSample</code>
+	 */
+	public long getQuantizationMin() {
+		return( -1L << (bitsPerSample - 1) );
+	}
+
+	/**
+	 *  Returns the largest integer which can be stored
+	 *  with the current <code>bitsPerSample</code>
+	 */
+	public long getQuantizationMax() {
+		return( (1L << (bitsPerSample - 1)) - 1 );
+	}
+
+	private void prepareQuantization() {
+		if( (sampleFormat != FORMAT_INT) || (bitsPerSample < 16) || (bitsPerSample > 32) || (channels <= 0) ) {
+			throw new IllegalStateException( "quantization requires 16, 24 or 32 bit integer samples" );
+		}
+		if( (SURF_channel_scale == null) || (SURF_channel_scale.length != channels) ) {
+			SURF_channel_scale	= new float[ channels ];
+			SURF_channel_offset	= new float[ channels ];
+			Arrays.fill( SURF_channel_scale, 1f );
+		}
+	}
+
+	/**
+	 *  Returns the calibration constant of a channel, i.e. the factor
+	 *  converting its stored samples to physical units. Channels without
+	 *  a constant, or with a constant of zero, are not scaled and return one.
+	 *
+	 *  @param	ch	the channel index
+	 */
+	public float getChannelCalibration( int ch ) {
+		return getChannelCalibration( SURF_channel_calibration, ch );
+	}
+
+	static float getChannelCalibration( float[] cal, int ch ) {
+		return( (cal != null) && (ch < cal.length) && (cal[ ch ] != 0f) ? cal[ ch ] : 1f );
+	}
+
+	/**
+	 *  Parses <code>SURF_initial_timestamp</code> in the
+	 *  time zone given by <code>SURF_timezone</code> (or the
+	 *  default time zone if none is set).
+	 *
+	 *  @return the time of the first sample frame in milliseconds
+	 *			since the epoch
+	 *
+	 *  @throws ParseException if the timestamp is missing or malformed
+	 */
+	public long getInitialTimeMillis() throws ParseException {
+		final SimpleDateFormat df = new SimpleDateFormat( TIMESTAMP_PATTERN );
+		if( (SURF_timezone != null) && (SURF_timezone.length() > 0) ) {
+			df.setTimeZone( TimeZone.getTimeZone( SURF_timezone ));
+		}
+		return df.parse( SURF_initial_timestamp ).getTime();
+	}
+
+	/**
+	 *  Converts a sample frame index to an absolute time,
+	 *  using the initial timestamp and the effective sampling rate.
+	 *
+	 *  @param  frame	sample frame offset from the beginning of the file
+	 *  @return the time of that frame in milliseconds since the epoch
+	 *
+	 *  @throws ParseException if the initial timestamp cannot be parsed
+	 */
+	public long getFrameTimeMillis( long frame ) throws ParseException {
+		return getInitialTimeMillis() + (long) (frame * 1000.0 / getSampleRate() + 0.5);
+	}
+
+	/**
+	 *  Converts an absolute time to a sample frame index,
+	 *  using the initial timestamp and the effective sampling rate.
+	 *  The result is not clipped to the file's length and may be
+	 *  negative for times before the first sample.
+	 *
+	 *  @param  millis	time in milliseconds since the epoch
+	 *  @return the index of the frame at (or just before) that time
+	 *
+	 *  @throws ParseException if the initial timestamp cannot be parsed
+	 */
+	public long getFrameAtTime( long millis ) throws ParseException {
+		return (long) Math.floor( (millis - getInitialTimeMillis()) * getSampleRate() / 1000.0 );
+	}
+
+	/**
+	 *  An immutable state of a <code>SURFFileDescr</code>,
+	 *  as returned by <code>snapshot</code>
+	 *
+	 *  @see	SURFFileDescr#snapshot()
+	 */
+	public static final class Snapshot {
+		public final File		file;
+		public final int		type;
+		public final int		channels;
+		public final double		rate;
+		public final int		bitsPerSample;
+		public final int		sampleFormat;
+		public final long		length;
+		public final String		SURF_initial_timestamp;
+		public final String		SURF_timezone;
+		public final float		SURF_sample_rate;
+
+		private final float[]				calibration;
+		private final Map<String, Object>	properties;
+
+		protected Snapshot( SURFFileDescr descr ) {
+			file					= descr.file;
+			type					= descr.type;
+			channels				= descr.channels;
+			rate					= descr.rate;
+			bitsPerSample			= descr.bitsPerSample;
+			sampleFormat			= descr.sampleFormat;
+			length					= descr.length;
+			SURF_initial_timestamp	= descr.SURF_initial_timestamp;
+			SURF_timezone			= descr.SURF_timezone;
+			SURF_sample_rate		= descr.SURF_sample_rate;
+			calibration				= descr.SURF_channel_calibration == null ? null : descr.SURF_channel_calibration.clone();
+			properties				= descr.properties;
+		}
+
+		/**
+		 *  @see	SURFFileDescr#getChannelCalibration( int )
+		 */
+		public float getChannelCalibration( int ch ) {
+			return SURFFileDescr.getChannelCalibration( calibration, ch );
+		}
+
+		public Object getProperty( Object key ) {
+			return( properties.get( key ));
+		}
+
+		/**
+		 *  @see	SURFFileDescr#getSampleRate()
+		 */
+		public double getSampleRate() {
+			return( SURF_sample_rate > 0f ? SURF_sample_rate : rate );
+		}
+	}
 }
 // class AudioFileDescr
\ No newline at end of file
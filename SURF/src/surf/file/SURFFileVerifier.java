@@ -0,0 +1,228 @@
+/*
+ *  SURFFileVerifier.java
+ *
+ */
+
+package surf.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *  Checks the sample data of a SURF file against the CRC-32C
+ *  table stored by <code>SURFFile.setChecksums</code>. A complete
+ *  scrub splits the blocks among several threads which read the
+ *  file through positional reads of one shared channel; a partial
+ *  check only reads the blocks overlapping a range of frames, e.g.
+ *  the region a reader is about to use.
+ *  <p>
+ *  The result of a check is the list of corrupt frame ranges,
+ *  with adjacent corrupt blocks joined. An empty list means the
+ *  checked data is intact.
+ *
+ *  @see	SURFFile#setChecksums( int )
+ */
+public class SURFFileVerifier {
+
+	private static final int	BUF_SIZE	= 1 << 20;
+
+	private final RandomAccessFile	raf;
+	private final FileChannel		fch;
+	private final int[]				table;
+	private final int				blockFrames;
+	private final int				bytesPerFrame;
+	private final long				sampleDataOffset;
+	private final long				length;
+
+	/**
+	 *  Opens a file for verification. Only the header and
+	 *  the checksum table are read.
+	 *
+	 *  @throws IOException if the file cannot be read
+	 */
+	public SURFFileVerifier( File f ) throws IOException {
+		final SURFFile sf = SURFFile.openAsRead( f );
+		try {
+			table				= sf.readChecksumTable();
+			blockFrames			= sf.getChecksumBlockFrames();
+			bytesPerFrame		= sf.getBytesPerFrame();
+			sampleDataOffset	= sf.getSampleDataOffset();
+			length				= sf.getFrameNum();
+		}
+		finally {
+			sf.cleanUp();
+		}
+		raf	= new RandomAccessFile( f, "r" );
+		fch	= raf.getChannel();
+	}
+
+	/**
+	 *  Returns whether the file contains a checksum table
+	 */
+	public boolean hasChecksums() {
+		return( table != null );
+	}
+
+	/**
+	 *  Returns the number of frames covered by one checksum,
+	 *  or zero if the file has no checksums
+	 */
+	public int getBlockFrames() {
+		return( table != null ? blockFrames : 0 );
+	}
+
+	/**
+	 *  Checks all sample data of the file, using one
+	 *  thread per available processor.
+	 *
+	 *  @return the corrupt frame ranges
+	 *
+	 *  @throws IOException if the file has no checksums or a read error occurs
+	 */
+	public List<Span> verify() throws IOException {
+		return verify( new Span( 0, length ), Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 *  Checks the blocks overlapping a range of frames on the
+	 *  calling thread. This is meant as a quick check of the data
+	 *  which is about to be read.
+	 *
+	 *  @param  span	the frames to check
+	 *
+	 *  @return the corrupt frame ranges, which may extend beyond <code>span</code>
+	 *			to the boundaries of the corrupt blocks
+	 *
+	 *  @throws IOException if the file has no checksums or a read error occurs
+	 */
+	public List<Span> verify( Span span ) throws IOException {
+		return verify( span, 1 );
+	}
+
+	/**
+	 *  Checks the blocks overlapping a range of frames.
+	 *
+	 *  @param  span		the frames to check
+	 *  @param  numThreads	the number of threads reading and checking
+	 *						blocks in parallel
+	 *
+	 *  @return the corrupt frame ranges
+	 *
+	 *  @throws IOException if the file has no checksums or a read error occurs
+	 */
+	public List<Span> verify( Span span, int numThreads ) throws IOException {
+		final int						startBlock, stopBlock, numTasks;
+		final List<Span>				result	= new ArrayList<Span>();
+		final ExecutorService			pool;
+		final List<Future<boolean[]>>	tasks;
+		int								b0, b1;
+		boolean[]						bad;
+
+		if( table == null ) throw new IOException( "no checksums" );
+		if( (long) table.length * blockFrames < length ) throw new IOException( IOUtil.getResourceString( "errAudioFileIncomplete" ));
+
+		startBlock	= (int) (Math.max( 0L, span.start ) / blockFrames);
+		stopBlock	= (int) Math.min( table.length, (Math.min( length, span.stop ) + blockFrames - 1) / blockFrames );
+		if( startBlock >= stopBlock ) return result;
+
+		if( numThreads <= 1 ) {
+			addCorrupt( result, startBlock, verifyBlocks( startBlock, stopBlock ));
+			return result;
+		}
+
+		numTasks	= Math.min( stopBlock - startBlock, numThreads * 4 );	// a few tasks per thread balance the load
+		pool		= Executors.newFixedThreadPool( numThreads );
+		tasks		= new ArrayList<Future<boolean[]>>( numTasks );
+		try {
+			for( int i = 0; i < numTasks; i++ ) {
+				b0 = startBlock + (int) ((long) (stopBlock - startBlock) * i / numTasks);
+				b1 = startBlock + (int) ((long) (stopBlock - startBlock) * (i + 1) / numTasks);
+				final int fb0 = b0, fb1 = b1;
+				tasks.add( pool.submit( new Callable<boolean[]>() {
+					public boolean[] call() throws IOException {
+						return verifyBlocks( fb0, fb1 );
+					}
+				}));
+			}
+			for( int i = 0; i < numTasks; i++ ) {
+				bad = tasks.get( i ).get();
+				b0	= startBlock + (int) ((long) (stopBlock - startBlock) * i / numTasks);
+				addCorrupt( result, b0, bad );
+			}
+		}
+		catch( InterruptedException e1 ) {
+			Thread.currentThread().interrupt();
+			throw IOUtil.map( e1 );
+		}
+		catch( ExecutionException e1 ) {
+			if( e1.getCause() instanceof IOException ) throw (IOException) e1.getCause();
+			throw IOUtil.map( e1 );
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return result;
+	}
+
+	/**
+	 *  Closes the file.
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	// returns for each block whether it is corrupt
+	private boolean[] verifyBlocks( int startBlock, int stopBlock ) throws IOException {
+		final boolean[]		bad		= new boolean[ stopBlock - startBlock ];
+		final ByteBuffer	buf		= ByteBuffer.allocateDirect( (int) Math.min( BUF_SIZE, (long) blockFrames * bytesPerFrame ));
+		final CRC32C		crc		= new CRC32C();
+		final long			dataLen	= length * bytesPerFrame;
+		long				pos, stop;
+
+		for( int block = startBlock; block < stopBlock; block++ ) {
+			crc.reset();
+			pos		= (long) block * blockFrames * bytesPerFrame;
+			stop	= Math.min( dataLen, pos + (long) blockFrames * bytesPerFrame );
+			while( pos < stop ) {
+				buf.clear();
+				if( stop - pos < buf.capacity() ) buf.limit( (int) (stop - pos) );
+				while( buf.hasRemaining() ) {
+					if( fch.read( buf, sampleDataOffset + pos + buf.position() ) < 0 ) throw new EOFException();
+				}
+				buf.flip();
+				pos += buf.remaining();
+				crc.update( buf );
+			}
+			bad[ block - startBlock ] = (int) crc.getValue() != table[ block ];
+		}
+		return bad;
+	}
+
+	private void addCorrupt( List<Span> result, int firstBlock, boolean[] bad ) {
+		long	start, stop;
+		Span	last;
+
+		for( int i = 0; i < bad.length; i++ ) {
+			if( !bad[ i ]) continue;
+			start	= (long) (firstBlock + i) * blockFrames;
+			stop	= Math.min( length, start + blockFrames );
+			last	= result.isEmpty() ? null : result.get( result.size() - 1 );
+			if( (last != null) && (last.stop == start) ) {
+				result.set( result.size() - 1, new Span( last.start, stop ));
+			} else {
+				result.add( new Span( start, stop ));
+			}
+		}
+	}
+}
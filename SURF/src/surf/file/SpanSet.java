@@ -0,0 +1,376 @@
+/*
+ *  SpanSet.java
+ *
+ */
+
+package surf.file;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ *  An immutable set of positions, represented as sorted, disjoint spans.
+ *  As with <code>Span</code>, starts are inclusive and stops exclusive.
+ *  Spans which overlap or touch are merged, so each position is covered
+ *  by at most one span, and no span is empty.
+ *  <p>
+ *  The spans are stored in two primitive arrays of starts and stops
+ *  instead of <code>Span</code> objects. The set operations are single
+ *  sweeps over the boundaries of both operands, taking linear time and
+ *  allocating nothing but the result, which makes them suitable for
+ *  sets of millions of spans, e.g. to measure how much of the detected
+ *  events lies within the user activity regions of a file:
+ *  <pre>
+ *	SpanSet.fromRegions( regions ).intersectionLength( SpanSet.fromSpans( events ))
+ *  </pre>
+ *
+ *  @see	Span
+ *  @see	Region
+ */
+public class SpanSet {
+
+	/**
+	 *  The set without any spans
+	 */
+	public static final SpanSet EMPTY		= new SpanSet( new long[ 0 ], new long[ 0 ]);
+
+	private static final int	OP_UNION		= 0;
+	private static final int	OP_INTERSECTION	= 1;
+	private static final int	OP_DIFFERENCE	= 2;
+
+	private final long[]		starts;
+	private final long[]		stops;
+
+	// arrays must be normalized and exactly sized
+	private SpanSet( long[] starts, long[] stops ) {
+		this.starts	= starts;
+		this.stops	= stops;
+	}
+
+	/**
+	 *  Creates a set covering the positions of arbitrary spans, which may be
+	 *  unsorted, overlapping or empty. The arrays are not modified.
+	 *
+	 *  @param	starts	the start of each span
+	 *  @param	stops	the stop of each span
+	 *  @param	n		the number of spans
+	 */
+	public static SpanSet of( long[] starts, long[] stops, int n ) {
+		final long[]	s	= new long[ n ];
+		final long[]	e	= new long[ n ];
+		int				m	= 0;
+
+		for( int i = 0; i < n; i++ ) {
+			if( starts[ i ] < stops[ i ]) {
+				s[ m ]	= starts[ i ];
+				e[ m ]	= stops[ i ];
+				m++;
+			}
+		}
+		return normalize( s, e, m );
+	}
+
+	/**
+	 *  Creates a set covering the positions of a collection of spans.
+	 */
+	public static SpanSet fromSpans( Collection<Span> spans ) {
+		final long[]	s	= new long[ spans.size() ];
+		final long[]	e	= new long[ spans.size() ];
+		int				m	= 0;
+
+		for( Span span : spans ) {
+			if( span.start < span.stop ) {
+				s[ m ]	= span.start;
+				e[ m ]	= span.stop;
+				m++;
+			}
+		}
+		return normalize( s, e, m );
+	}
+
+	/**
+	 *  Creates a set covering the spans of a list of regions.
+	 */
+	public static SpanSet fromRegions( List<Region> regions ) {
+		final long[]	s	= new long[ regions.size() ];
+		final long[]	e	= new long[ regions.size() ];
+		int				m	= 0;
+		Span			span;
+
+		for( int i = 0; i < regions.size(); i++ ) {
+			span = regions.get( i ).span;
+			if( span.start < span.stop ) {
+				s[ m ]	= span.start;
+				e[ m ]	= span.stop;
+				m++;
+			}
+		}
+		return normalize( s, e, m );
+	}
+
+	/*
+	 *	The union of intervals only depends on the multisets of their
+	 *	starts and stops, so both can be sorted independently as primitives,
+	 *	then swept while counting how many spans cover the current position.
+	 *	Sorts the arrays in place.
+	 */
+	private static SpanSet normalize( long[] s, long[] e, int n ) {
+		int	depth	= 0;
+		int	m		= 0;
+		int	j		= 0;
+
+		Arrays.sort( s, 0, n );
+		Arrays.sort( e, 0, n );
+		for( int i = 0; i < n; ) {
+			if( s[ i ] <= e[ j ]) {		// starts first, so touching spans merge
+				if( depth++ == 0 ) s[ m ] = s[ i ];
+				i++;
+			} else {
+				if( --depth == 0 ) e[ m++ ] = e[ j ];
+				j++;
+			}
+		}
+		if( n > 0 ) e[ m++ ] = e[ n - 1 ];		// all starts seen, the last stop closes the open span
+		return new SpanSet( Arrays.copyOf( s, m ), Arrays.copyOf( e, m ));
+	}
+
+	/**
+	 *  Returns the number of disjoint spans
+	 */
+	public int size() {
+		return starts.length;
+	}
+
+	public boolean isEmpty() {
+		return( starts.length == 0 );
+	}
+
+	public long getStart( int index ) {
+		return starts[ index ];
+	}
+
+	public long getStop( int index ) {
+		return stops[ index ];
+	}
+
+	public Span getSpan( int index ) {
+		return new Span( starts[ index ], stops[ index ]);
+	}
+
+	/**
+	 *  Returns the smallest span covering the whole set,
+	 *  or <code>null</code> if the set is empty
+	 */
+	public Span getBounds() {
+		return( starts.length == 0 ? null : new Span( starts[ 0 ], stops[ stops.length - 1 ]));
+	}
+
+	/**
+	 *  Returns the spans as a list of <code>Span</code> objects
+	 */
+	public List<Span> toList() {
+		final List<Span> l = new ArrayList<Span>( starts.length );
+		for( int i = 0; i < starts.length; i++ ) l.add( new Span( starts[ i ], stops[ i ]));
+		return l;
+	}
+
+	/**
+	 *  Returns the number of positions covered by the set
+	 */
+	public long getLength() {
+		long len = 0L;
+		for( int i = 0; i < starts.length; i++ ) len += stops[ i ] - starts[ i ];
+		return len;
+	}
+
+	/**
+	 *  Returns the index of the span containing a position,
+	 *  or <code>-1</code> if the position is not covered
+	 */
+	public int indexOf( long pos ) {
+		int idx = Arrays.binarySearch( starts, pos );
+
+		if( idx >= 0 ) return idx;
+		idx = -idx - 2;			// the last span starting before pos
+		return( (idx >= 0) && (pos < stops[ idx ]) ? idx : -1 );
+	}
+
+	public boolean contains( long pos ) {
+		return( indexOf( pos ) >= 0 );
+	}
+
+	/**
+	 *  Checks many positions at once. If the positions are sorted,
+	 *  they are matched in a single sweep, otherwise each one is
+	 *  looked up by binary search.
+	 *
+	 *  @param	pos		the positions
+	 *  @param	result	receives for each position whether it is covered
+	 *
+	 *  @return the number of covered positions
+	 */
+	public int contains( long[] pos, boolean[] result ) {
+		int		count	= 0;
+		boolean	sorted	= true;
+
+		for( int i = 1; sorted && (i < pos.length); i++ ) sorted = pos[ i - 1 ] <= pos[ i ];
+		if( sorted ) {
+			for( int i = 0, j = 0; i < pos.length; i++ ) {
+				while( (j < stops.length) && (stops[ j ] <= pos[ i ]) ) j++;
+				result[ i ] = (j < starts.length) && (starts[ j ] <= pos[ i ]);
+				if( result[ i ]) count++;
+			}
+		} else {
+			for( int i = 0; i < pos.length; i++ ) {
+				result[ i ] = indexOf( pos[ i ]) >= 0;
+				if( result[ i ]) count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 *  Returns the positions covered by this set or the other one
+	 */
+	public SpanSet union( SpanSet other ) {
+		if( other.isEmpty() ) return this;
+		if( this.isEmpty() ) return other;
+		return combine( other, OP_UNION );
+	}
+
+	/**
+	 *  Returns the positions covered by both this set and the other one
+	 */
+	public SpanSet intersection( SpanSet other ) {
+		if( this.isEmpty() || other.isEmpty() ) return EMPTY;
+		return combine( other, OP_INTERSECTION );
+	}
+
+	/**
+	 *  Returns the positions covered by this set but not by the other one
+	 */
+	public SpanSet difference( SpanSet other ) {
+		if( this.isEmpty() || other.isEmpty() ) return this;
+		return combine( other, OP_DIFFERENCE );
+	}
+
+	/**
+	 *  Returns the positions within <code>bounds</code> which are not covered
+	 *  by this set, e.g. the gaps between the regions of a file when
+	 *  <code>bounds</code> spans all of its frames.
+	 */
+	public SpanSet complement( Span bounds ) {
+		if( bounds.isEmpty() ) return EMPTY;
+		return new SpanSet( new long[] { bounds.start }, new long[] { bounds.stop }).difference( this );
+	}
+
+	/**
+	 *  Returns the number of positions covered by both this set and the
+	 *  other one, without creating the intersection.
+	 */
+	public long intersectionLength( SpanSet other ) {
+		long	len = 0L;
+		int		i	= 0;
+		int		j	= 0;
+
+		while( (i < starts.length) && (j < other.starts.length) ) {
+			len += Math.max( 0L, Math.min( stops[ i ], other.stops[ j ]) - Math.max( starts[ i ], other.starts[ j ]));
+			if( stops[ i ] < other.stops[ j ]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 *  Returns the set moved by <code>delta</code> positions
+	 */
+	public SpanSet shift( long delta ) {
+		final long[] s, e;
+
+		if( (delta == 0L) || isEmpty() ) return this;
+		s = new long[ starts.length ];
+		e = new long[ stops.length ];
+		for( int i = 0; i < s.length; i++ ) {
+			s[ i ] = starts[ i ] + delta;
+			e[ i ] = stops[ i ] + delta;
+		}
+		return new SpanSet( s, e );
+	}
+
+	/*
+	 *	Sweeps the boundaries of both sets in order. Each set alternates
+	 *	between start and stop boundaries, so a boundary index tells whether
+	 *	the position lies inside: even indices enter, odd ones leave. All
+	 *	boundaries at the same position are consumed before the result is
+	 *	evaluated, so the result has neither empty nor touching spans.
+	 */
+	private SpanSet combine( SpanSet other, int op ) {
+		final long[]	s	= new long[ starts.length + other.starts.length ];
+		final long[]	e	= new long[ s.length ];
+		final int		na	= starts.length << 1;
+		final int		nb	= other.starts.length << 1;
+		int				i	= 0;
+		int				j	= 0;
+		int				m	= 0;
+		boolean			inA	= false, inB = false, in = false, r;
+		long			a, b, x;
+
+		while( (i < na) || (j < nb) ) {
+			a = i < na ? ((i & 1) == 0 ? starts[ i >> 1 ] : stops[ i >> 1 ]) : Long.MAX_VALUE;
+			b = j < nb ? ((j & 1) == 0 ? other.starts[ j >> 1 ] : other.stops[ j >> 1 ]) : Long.MAX_VALUE;
+			x = Math.min( a, b );
+			if( (i < na) && (a == x) ) {
+				inA = (i & 1) == 0;
+				i++;
+			}
+			if( (j < nb) && (b == x) ) {
+				inB = (j & 1) == 0;
+				j++;
+			}
+			switch( op ) {
+			case OP_UNION:
+				r = inA || inB;
+				break;
+			case OP_INTERSECTION:
+				r = inA && inB;
+				break;
+			default:
+				r = inA && !inB;
+				break;
+			}
+			if( r != in ) {
+				if( r ) {
+					s[ m ] = x;
+				} else {
+					e[ m++ ] = x;
+				}
+				in = r;
+			}
+		}
+		return new SpanSet( Arrays.copyOf( s, m ), Arrays.copyOf( e, m ));
+	}
+
+	public boolean equals( Object o ) {
+		if( !(o instanceof SpanSet) ) return false;
+		return( Arrays.equals( starts, ((SpanSet) o).starts ) && Arrays.equals( stops, ((SpanSet) o).stops ));
+	}
+
+	public int hashCode() {
+		return( Arrays.hashCode( starts ) * 31 + Arrays.hashCode( stops ));
+	}
+
+	public String toString() {
+		final StringBuilder sb = new StringBuilder( "SpanSet[" );
+		for( int i = 0; i < Math.min( starts.length, 8 ); i++ ) {
+			if( i > 0 ) sb.append( ", " );
+			sb.append( starts[ i ]).append( " ... " ).append( stops[ i ]);
+		}
+		if( starts.length > 8 ) sb.append( ", ... (" ).append( starts.length ).append( " spans)" );
+		return sb.append( ']' ).toString();
+	}
+}
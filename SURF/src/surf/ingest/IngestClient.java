@@ -0,0 +1,108 @@
+/*
+ *  IngestClient.java
+ *
+ */
+
+package surf.ingest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ *  The meter side of the protocol of <code>IngestServer</code>, sending
+ *  frames over a blocking connection. This stands in for real meters in
+ *  tests, and can feed the frames of a <code>Replay</code> to a server.
+ *
+ *  @see	IngestServer
+ */
+public class IngestClient {
+
+	private final SocketChannel	ch;
+	private final int			channels;
+	private final ByteBuffer	buf;
+	private long				framePos	= 0L;
+
+	/**
+	 *  Connects to a server and describes the meter.
+	 *
+	 *  @param	address				the address of the server
+	 *  @param	meterId				identifies the meter, becomes part of the file name
+	 *  @param	channels			the number of channels
+	 *  @param	rate				the sample rate in hertz
+	 *  @param	initialTimeMillis	the time of the first frame
+	 *  @param	timezone			the id of the meter's time zone
+	 *  @param	calibration			the calibration constant of each channel
+	 *  @param	maxBatchBytes		the largest batch body the server accepts
+	 *
+	 *  @throws IOException if the connection fails
+	 */
+	public IngestClient( InetSocketAddress address, String meterId, int channels, float rate,
+						 long initialTimeMillis, String timezone, float[] calibration, int maxBatchBytes )
+	throws IOException {
+		final byte[]	id	= meterId.getBytes( IngestServer.UTF8 );
+		final byte[]	tz	= timezone.getBytes( IngestServer.UTF8 );
+		final ByteBuffer hello;
+
+		this.channels	= channels;
+		buf				= ByteBuffer.allocate( IngestServer.HEADER_SIZE + maxBatchBytes );
+		ch				= SocketChannel.open( address );
+		ch.socket().setTcpNoDelay( true );
+
+		hello = ByteBuffer.allocate( IngestServer.HEADER_SIZE + 20 + id.length + tz.length + channels * 4 );
+		hello.putInt( hello.capacity() - IngestServer.HEADER_SIZE ).putInt( IngestServer.MSG_HELLO );
+		hello.putShort( (short) id.length ).put( id );
+		hello.putInt( channels ).putFloat( rate ).putLong( initialTimeMillis );
+		hello.putShort( (short) tz.length ).put( tz );
+		for( int i = 0; i < channels; i++ ) hello.putFloat( calibration[ i ]);
+		hello.flip();
+		while( hello.hasRemaining() ) ch.write( hello );
+	}
+
+	/**
+	 *  Sends frames which follow the frames sent before
+	 */
+	public void send( float[][] data, int offset, int length ) throws IOException {
+		send( framePos, data, offset, length );
+	}
+
+	/**
+	 *  Sends frames starting at a given frame index, e.g. to
+	 *  resend frames or to skip frames which were lost.
+	 *
+	 *  @param	firstFrame	the index of the first frame since the initial time
+	 *  @param	data		the frames, one array per channel
+	 *  @param	offset		the index of the first frame in the arrays
+	 *  @param	length		the number of frames
+	 */
+	public void send( long firstFrame, float[][] data, int offset, int length ) throws IOException {
+		final int	maxFrames	= (buf.capacity() - IngestServer.HEADER_SIZE - 8) / (channels * 4);
+		int			chunkLength;
+
+		while( length > 0 ) {
+			chunkLength = Math.min( maxFrames, length );
+			buf.clear();
+			buf.order( ByteOrder.BIG_ENDIAN );
+			buf.putInt( 8 + chunkLength * channels * 4 ).putInt( IngestServer.MSG_BATCH ).putLong( firstFrame );
+			buf.order( ByteOrder.LITTLE_ENDIAN );		// the samples as stored in the file
+			for( int i = offset, stop = offset + chunkLength; i < stop; i++ ) {
+				for( int c = 0; c < channels; c++ ) buf.putFloat( data[ c ][ i ]);
+			}
+			buf.flip();
+			while( buf.hasRemaining() ) ch.write( buf );
+			firstFrame	+= chunkLength;
+			offset		+= chunkLength;
+			length		-= chunkLength;
+		}
+		framePos = firstFrame;
+	}
+
+	/**
+	 *  Closes the connection, which makes the server close the meter's file
+	 */
+	public void close() throws IOException {
+		ch.close();
+	}
+}
@@ -0,0 +1,469 @@
+/*
+ *  IngestServer.java
+ *
+ */
+
+package surf.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Receives the samples of many meters over TCP and writes the stream of
+ *  each meter to a SURF file of its own. A single thread serves all
+ *  connections with non-blocking I/O; the files are written by a small
+ *  pool of writer threads.
+ *  <p>
+ *  Each message consists of an eight byte header, holding the length of
+ *  the body in bytes and the message type as big-endian integers,
+ *  followed by the body. A connection starts with one <code>HELLO</code>
+ *  message describing the meter, followed by any number of
+ *  <code>BATCH</code> messages, and ends when the meter closes it:
+ *  <pre>
+ *	HELLO	short id length, UTF-8 meter id, int channels, float sample rate,
+ *			long time of the first frame in ms since the epoch, short timezone
+ *			length, timezone id, one float calibration constant per channel
+ *	BATCH	long index of the first frame, followed by the frames as
+ *			interleaved little-endian 32 bit floats
+ *  </pre>
+ *  All numbers are big-endian, except for the samples, which are sent as
+ *  they are stored in the file, so batches are written without decoding.
+ *  The file of a meter is named after its id and the time of its first
+ *  frame and is placed in the directory of the server. When the file
+ *  cannot be written, the server closes the connection of the meter.
+ *  <p>
+ *  <code>IngestClient</code> implements the meter side of the protocol.
+ *
+ *  @see	IngestClient
+ *  @see	IngestStream
+ */
+public class IngestServer {
+
+	static final int			MSG_HELLO		= 1;
+	static final int			MSG_BATCH		= 2;
+	static final int			HEADER_SIZE		= 8;
+	static final Charset		UTF8			= Charset.forName( "UTF-8" );
+
+	private static final int	MAX_HELLO_SIZE	= 4096;
+	private static final long	ACCEPT_RETRY	= 100;		// ms without accepting after a failed accept
+
+	private final File			dir;
+	private final int			maxBatchBytes;
+	private final int			numSlots;
+	private final ExecutorService	writers;
+	private final List<IngestStream>	streams		= new CopyOnWriteArrayList<IngestStream>();
+	private final Queue<SelectionKey>	resumed		= new ConcurrentLinkedQueue<SelectionKey>();
+	private final Queue<SelectionKey>	failed		= new ConcurrentLinkedQueue<SelectionKey>();
+	private final AtomicLong	totalFrames		= new AtomicLong();
+
+	private Selector			selector;
+	private ServerSocketChannel	server;
+	private SelectionKey		acceptKey;
+	private long				acceptResume	= 0L;	// time to accept again after a failure, or zero
+	private Thread				thread;
+	private volatile boolean	running			= false;
+	private volatile double		frameRate		= 0.0;
+	private volatile long		acceptFailures	= 0L;
+	private volatile IOException	error		= null;
+
+	/**
+	 *  @param	dir				the directory receiving the files
+	 *  @param	maxBatchBytes	the largest batch body accepted, in bytes;
+	 *							connections sending larger ones are closed
+	 *  @param	numSlots		the number of batches buffered per connection
+	 *  @param	numWriters		the number of threads writing files
+	 */
+	public IngestServer( File dir, int maxBatchBytes, int numSlots, int numWriters ) {
+		this.dir			= dir;
+		this.maxBatchBytes	= maxBatchBytes;
+		this.numSlots		= Math.max( 2, numSlots );
+		writers				= Executors.newFixedThreadPool( Math.max( 1, numWriters ), new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread( Runnable r ) {
+				final Thread t = new Thread( r, "SURF ingest writer " + (++count) );
+				t.setDaemon( true );
+				return t;
+			}
+		});
+	}
+
+	/**
+	 *  Creates a server accepting batches up to 64 kilobytes, buffering
+	 *  eight of them per connection, with one writer per processor
+	 */
+	public IngestServer( File dir ) {
+		this( dir, 1 << 16, 8, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 *  Starts listening.
+	 *
+	 *  @param	address	the address to listen on; port zero picks a free port
+	 *
+	 *  @return the address the server is listening on
+	 *
+	 *  @throws IOException if the address cannot be bound
+	 */
+	public InetSocketAddress start( InetSocketAddress address ) throws IOException {
+		selector	= Selector.open();
+		server		= ServerSocketChannel.open();
+		server.configureBlocking( false );
+		server.socket().bind( address, 1024 );
+		acceptKey	= server.register( selector, SelectionKey.OP_ACCEPT );
+		running		= true;
+		thread		= new Thread( new Runnable() {
+			public void run() {
+				serve();
+			}
+		}, "SURF ingest" );
+		thread.setDaemon( true );
+		thread.start();
+		return (InetSocketAddress) server.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 *  Stops accepting data, closes all connections and waits until the
+	 *  files of all streams are closed.
+	 *
+	 *  @throws InterruptedException if the calling thread is interrupted while waiting
+	 *  @throws IOException if the server had stopped before because of an error
+	 *
+	 *  @see	#getError()
+	 */
+	public void stop() throws InterruptedException, IOException {
+		running = false;
+		selector.wakeup();
+		thread.join();
+		writers.shutdown();
+		writers.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+		if( error != null ) throw error;
+	}
+
+	/**
+	 *  Returns whether the server is serving connections. It stops when
+	 *  <code>stop</code> is called or when the network fails.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 *  Returns the error which stopped the server and closed all of its
+	 *  connections, or <code>null</code>. Errors of single connections
+	 *  only close those connections and are reported by their streams.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 *  Returns the number of connections which could not be accepted,
+	 *  e.g. because the process ran out of file descriptors. The server
+	 *  pauses accepting briefly after each failure.
+	 */
+	public long getAcceptFailures() {
+		return acceptFailures;
+	}
+
+	/**
+	 *  Returns the streams of all meters which connected so far, including
+	 *  the closed ones
+	 */
+	public List<IngestStream> getStreams() {
+		return streams;
+	}
+
+	/**
+	 *  Returns the number of frames written by all streams
+	 */
+	public long getFramesWritten() {
+		return totalFrames.get();
+	}
+
+	/**
+	 *  Returns the number of frames written per second by all streams,
+	 *  measured over the last second
+	 */
+	public double getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 *  Returns the largest lag of all open streams in milliseconds
+	 *
+	 *  @see	IngestStream#getLagMillis()
+	 */
+	public long getMaxLagMillis() {
+		long lag = 0L;
+		for( IngestStream s : streams ) {
+			if( !s.isClosed() ) lag = Math.max( lag, s.getLagMillis() );
+		}
+		return lag;
+	}
+
+	// ---- called by the streams ----
+
+	void framesWritten( int frames ) {
+		totalFrames.addAndGet( frames );
+	}
+
+	// the stream has space again, continue reading its connection
+	void resume( Object key ) {
+		resumed.add( (SelectionKey) key );
+		selector.wakeup();
+	}
+
+	// the stream cannot write its file, close its connection so the meter stops sending
+	void abort( Object key ) {
+		failed.add( (SelectionKey) key );
+		selector.wakeup();
+	}
+
+	void drainLater( final IngestStream s ) {
+		writers.execute( new Runnable() {
+			public void run() {
+				s.drain();
+			}
+		});
+	}
+
+	// ---- network thread ----
+
+	private void serve() {
+		long		rateTime	= System.currentTimeMillis();
+		long		rateFrames	= 0L;
+		long		now;
+		SelectionKey key;
+
+		try {
+			while( running ) {
+				selector.select( acceptResume == 0L ? 1000 : ACCEPT_RETRY );
+				while( (key = failed.poll()) != null ) {
+					if( key.isValid() ) close( key );
+				}
+				while( (key = resumed.poll()) != null ) {
+					if( key.isValid() ) {
+						key.interestOps( SelectionKey.OP_READ );
+						process( key );
+					}
+				}
+				for( Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
+					key = iter.next();
+					iter.remove();
+					if( !key.isValid() ) continue;
+					if( key.isAcceptable() ) {
+						accept();
+					} else if( key.isReadable() ) {
+						read( key );
+					}
+				}
+				now = System.currentTimeMillis();
+				if( (acceptResume != 0L) && (now >= acceptResume) ) {
+					acceptResume = 0L;
+					acceptKey.interestOps( SelectionKey.OP_ACCEPT );
+				}
+				if( now - rateTime >= 1000 ) {
+					frameRate	= (totalFrames.get() - rateFrames) * 1000.0 / (now - rateTime);
+					rateFrames	= totalFrames.get();
+					rateTime	= now;
+				}
+			}
+		}
+		catch( IOException e1 ) {
+			error = e1;
+		}
+		finally {
+			running = false;
+			for( SelectionKey k : selector.keys() ) {
+				if( k.attachment() != null ) close( k );
+			}
+			try {
+				server.close();
+				selector.close();
+			}
+			catch( IOException e1 ) { /* ignored */ }
+		}
+	}
+
+	// a failure only loses the connection being accepted
+	private void accept() {
+		final SocketChannel ch;
+
+		try {
+			ch = server.accept();
+		}
+		catch( IOException e1 ) {
+			// the pending connection stays in the backlog, so retrying at once would spin
+			acceptFailures++;
+			acceptResume = System.currentTimeMillis() + ACCEPT_RETRY;
+			acceptKey.interestOps( 0 );
+			return;
+		}
+		if( ch == null ) return;
+		try {
+			ch.configureBlocking( false );
+			ch.socket().setTcpNoDelay( true );
+			ch.register( selector, SelectionKey.OP_READ, new Connection( maxBatchBytes + HEADER_SIZE ));
+		}
+		catch( IOException e1 ) {
+			acceptFailures++;
+			try {
+				ch.close();
+			}
+			catch( IOException e2 ) { /* ignored */ }
+		}
+	}
+
+	private void read( SelectionKey key ) {
+		final Connection	c	= (Connection) key.attachment();
+		int					n;
+
+		try {
+			n = ((SocketChannel) key.channel()).read( c.in );
+			if( n < 0 ) {
+				close( key );
+			} else {
+				process( key );
+			}
+		}
+		catch( IOException e1 ) {
+			close( key );
+		}
+	}
+
+	// handles the complete messages received so far
+	private void process( SelectionKey key ) {
+		final Connection	c		= (Connection) key.attachment();
+		final ByteBuffer	in		= c.in;
+		boolean				queued	= false;
+		boolean				full	= false;
+		ByteBuffer			body;
+		int					start, len, type;
+
+		in.flip();
+		try {
+			while( !full && (in.remaining() >= HEADER_SIZE) ) {
+				start	= in.position();
+				len		= in.getInt( start );
+				type	= in.getInt( start + 4 );
+				if( (len < 0) || (len > (type == MSG_HELLO ? Math.min( MAX_HELLO_SIZE, maxBatchBytes ) : maxBatchBytes)) ) {
+					throw new IOException( "message of " + len + " bytes" );
+				}
+				if( in.remaining() < HEADER_SIZE + len ) break;
+				body = in.duplicate();
+				body.limit( start + HEADER_SIZE + len ).position( start + HEADER_SIZE );
+
+				switch( type ) {
+				case MSG_HELLO:
+					if( c.stream != null ) throw new IOException( "duplicate hello" );
+					c.stream = hello( key, body );
+					streams.add( c.stream );
+					break;
+				case MSG_BATCH:
+					if( c.stream == null ) throw new IOException( "batch before hello" );
+					if( (len < 8) || ((len - 8) % (c.stream.getDescr().channels * 4) != 0) ) {
+						throw new IOException( "partial frame" );
+					}
+					if( c.stream.offer( body, body.getLong() )) {
+						queued = true;
+					} else {
+						full = true;		// keep the message until the writer frees a slot
+						key.interestOps( 0 );
+					}
+					break;
+				default:
+					throw new IOException( "unknown message " + type );
+				}
+				if( !full ) in.position( start + HEADER_SIZE + len );
+			}
+			in.compact();
+		}
+		catch( IOException e1 ) {
+			close( key );
+			return;
+		}
+		catch( BufferUnderflowException e1 ) {
+			close( key );
+			return;
+		}
+		if( queued && c.stream.requestDrain() ) drainLater( c.stream );
+	}
+
+	private IngestStream hello( SelectionKey key, ByteBuffer in ) throws IOException {
+		final String	id, tz;
+		final int		channels;
+		final float		rate;
+		final long		time;
+		final float[]	cal;
+
+		id			= readString( in );
+		channels	= in.getInt();
+		rate		= in.getFloat();
+		time		= in.getLong();
+		tz			= readString( in );
+		if( (channels <= 0) || (channels * 4 > maxBatchBytes) || !(rate > 0f) ) throw new IOException( "bad hello" );
+		cal			= new float[ channels ];
+		for( int ch = 0; ch < channels; ch++ ) cal[ ch ] = in.getFloat();
+
+		return new IngestStream( this, key, id, createFile( id, time ), channels, rate, time, tz, cal,
+								 numSlots, maxBatchBytes );
+	}
+
+	private static String readString( ByteBuffer in ) {
+		final byte[] b = new byte[ in.getShort() & 0xFFFF ];
+		in.get( b );
+		return new String( b, UTF8 );
+	}
+
+	// a new file per connection, never overwriting an older one
+	private File createFile( String id, long time ) {
+		final String	base	= id.replaceAll( "[^A-Za-z0-9._-]", "_" ) + "_" + time;
+		File			f		= new File( dir, base + "_surf.wav" );
+
+		for( int i = 1; f.exists(); i++ ) f = new File( dir, base + "-" + i + "_surf.wav" );
+		return f;
+	}
+
+	private void close( SelectionKey key ) {
+		final Connection c = (Connection) key.attachment();
+
+		key.cancel();
+		try {
+			key.channel().close();
+		}
+		catch( IOException e1 ) { /* ignored */ }
+		if( c.stream != null ) {
+			c.stream.end();
+			if( c.stream.requestDrain() ) drainLater( c.stream );
+		}
+	}
+
+	private static class Connection {
+		protected final ByteBuffer	in;
+		protected IngestStream		stream	= null;
+
+		protected Connection( int capacity ) {
+			in = ByteBuffer.allocateDirect( capacity ).order( ByteOrder.BIG_ENDIAN );
+		}
+	}
+}
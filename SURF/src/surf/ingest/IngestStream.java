@@ -0,0 +1,281 @@
+/*
+ *  IngestStream.java
+ *
+ */
+
+package surf.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import surf.file.SURFFile;
+import surf.file.SURFFileDescr;
+
+/**
+ *  The stream of one meter connected to an <code>IngestServer</code>,
+ *  written to a SURF file of its own. Batches received from the meter
+ *  are copied into a ring of fixed slots by the network thread and
+ *  written by a thread of the server's writer pool, so slow disks never
+ *  block the network thread. When the ring is full, the server stops
+ *  reading from the meter's connection until a slot is free, which makes
+ *  the meter's own send buffer fill up.
+ *  <p>
+ *  Frames are placed in the file by the frame index the meter sends with
+ *  each batch: a gap is filled with zeros, so the file keeps its time
+ *  base, and frames which were already written are skipped.
+ *
+ *  @see	IngestServer
+ */
+public class IngestStream {
+
+	private static final int		MAX_GAP_SECONDS	= 3600;		// larger gaps fail the stream
+
+	private final String			meterId;
+	private final SURFFileDescr		descr;
+	private final IngestServer		server;
+	private final Object			key;		// the connection, handed back to the server when space is freed
+
+	// ring of batches; head is only written by the network thread, tail by the writer
+	private final ByteBuffer[]		slots;
+	private final long[]			slotFrames;
+	private volatile int			head		= 0;
+	private volatile int			tail		= 0;
+	private final AtomicBoolean		draining	= new AtomicBoolean( false );
+	private volatile boolean		paused		= false;
+	private volatile boolean		ended		= false;
+	private volatile boolean		closed		= false;
+
+	private SURFFile				sf			= null;
+	private ByteBuffer				zeros		= null;
+	private volatile long			framesWritten	= 0L;
+	private volatile long			framesMissing	= 0L;
+	private volatile long			framesSkipped	= 0L;
+	private volatile IOException	error		= null;
+
+	// called by the network thread
+	IngestStream( IngestServer server, Object key, String meterId, File file, int channels, float rate,
+				  long initialTimeMillis, String timezone, float[] calibration, int numSlots, int slotBytes ) {
+		final SimpleDateFormat df = new SimpleDateFormat( SURFFileDescr.TIMESTAMP_PATTERN );
+
+		this.server		= server;
+		this.key		= key;
+		this.meterId	= meterId;
+		descr			= new SURFFileDescr();
+		descr.file		= file;
+		descr.type		= SURFFileDescr.TYPE_WAVE;
+		descr.channels	= channels;
+		descr.bitsPerSample	= 32;
+		descr.sampleFormat	= SURFFileDescr.FORMAT_FLOAT;
+		descr.SURF_sample_rate	= rate;
+		descr.SURF_timezone		= timezone;
+		df.setTimeZone( TimeZone.getTimeZone( timezone ));
+		descr.SURF_initial_timestamp	= df.format( new Date( initialTimeMillis ));
+		descr.SURF_channel_calibration	= calibration;
+
+		slots		= new ByteBuffer[ numSlots ];
+		slotFrames	= new long[ numSlots ];
+		for( int i = 0; i < numSlots; i++ ) slots[ i ] = ByteBuffer.allocateDirect( slotBytes );
+	}
+
+	public String getMeterId() {
+		return meterId;
+	}
+
+	/**
+	 *  Returns the description of the file written, which includes
+	 *  the current number of frames
+	 */
+	public SURFFileDescr getDescr() {
+		return descr;
+	}
+
+	public File getFile() {
+		return descr.file;
+	}
+
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	/**
+	 *  Returns the number of frames which were filled with zeros
+	 *  because the meter did not send them
+	 */
+	public long getFramesMissing() {
+		return framesMissing;
+	}
+
+	/**
+	 *  Returns the number of frames which were received more than once and skipped
+	 */
+	public long getFramesSkipped() {
+		return framesSkipped;
+	}
+
+	/**
+	 *  Returns the number of batches which are received but not yet written
+	 */
+	public int getQueuedBatches() {
+		final int n = head - tail;
+		return( n < 0 ? n + slots.length : n );
+	}
+
+	/**
+	 *  Returns how far the file lags behind the meter's clock, i.e. the
+	 *  time elapsed since the last frame written was measured. This
+	 *  includes the network and queueing delays as well as the meter's
+	 *  own buffering.
+	 */
+	public long getLagMillis() {
+		final double ms = descr.getSampleRate() > 0 ? framesWritten * 1000.0 / descr.getSampleRate() : 0.0;
+		try {
+			return System.currentTimeMillis() - descr.getInitialTimeMillis() - (long) ms;
+		}
+		catch( java.text.ParseException e1 ) {
+			return 0L;
+		}
+	}
+
+	/**
+	 *  Returns whether the connection has ended and the file is closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 *  Returns the error which ended the stream, or <code>null</code>
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	// ---- network thread ----
+
+	/*
+	 *	Copies a batch into the ring. Returns false if the ring is full,
+	 *	in which case the stream is paused until the writer frees a slot.
+	 */
+	boolean offer( ByteBuffer payload, long firstFrame ) {
+		final int h		= head;
+		final int next	= h + 1 == slots.length ? 0 : h + 1;
+
+		if( next == tail ) {
+			paused = true;
+			if( next != tail ) {		// the writer has freed a slot meanwhile
+				paused = false;
+			} else {
+				return false;
+			}
+		}
+		slots[ h ].clear();
+		slots[ h ].put( payload );
+		slots[ h ].flip();
+		slotFrames[ h ] = firstFrame;
+		head = next;
+		return true;
+	}
+
+	boolean isPaused() {
+		return paused;
+	}
+
+	int getSlotBytes() {
+		return slots[ 0 ].capacity();
+	}
+
+	// no more batches will arrive
+	void end() {
+		ended = true;
+	}
+
+	// ---- writer pool ----
+
+	// schedules the writer unless it is already running
+	boolean requestDrain() {
+		return draining.compareAndSet( false, true );
+	}
+
+	/*
+	 *	Writes all queued batches. Runs on the writer pool, one task per
+	 *	stream at a time.
+	 */
+	void drain() {
+		final int	bpf		= descr.channels * 4;
+		ByteBuffer	b;
+		long		first;
+		int			frames;
+
+		try {
+			if( (sf == null) && !closed && (error == null) ) sf = SURFFile.openAsWrite( descr );
+			while( tail != head ) {
+				b		= slots[ tail ];
+				first	= slotFrames[ tail ];
+				frames	= b.remaining() / bpf;
+				if( error == null ) {
+					try {
+						write( b, first, frames, bpf );
+					}
+					catch( IOException e1 ) {
+						error = e1;
+						server.abort( key );
+					}
+				}
+				tail = tail + 1 == slots.length ? 0 : tail + 1;
+				if( paused ) {
+					paused = false;
+					server.resume( key );
+				}
+			}
+			if( ended && !closed ) {
+				closed = true;
+				if( sf != null ) sf.close();
+			}
+		}
+		catch( IOException e1 ) {
+			if( error == null ) {
+				error = e1;
+				server.abort( key );
+			}
+		}
+		finally {
+			draining.set( false );
+		}
+		// batches or the end may have arrived after the last check
+		if( ((tail != head) || (ended && !closed)) && requestDrain() ) server.drainLater( this );
+	}
+
+	private void write( ByteBuffer b, long first, int frames, int bpf ) throws IOException {
+		final long	gap		= first - framesWritten;
+		int			n;
+
+		if( gap < 0 ) {		// already written
+			n = (int) Math.min( frames, -gap );
+			framesSkipped	+= n;
+			frames			-= n;
+			b.position( b.position() + n * bpf );
+		} else if( gap > 0 ) {
+			if( gap > (long) (MAX_GAP_SECONDS * Math.max( 1.0, descr.getSampleRate() ))) {
+				throw new IOException( meterId + ": gap of " + gap + " frames" );
+			}
+			if( zeros == null ) zeros = ByteBuffer.allocateDirect( slots[ 0 ].capacity() - slots[ 0 ].capacity() % bpf );
+			for( long left = gap; left > 0; left -= n ) {
+				n = (int) Math.min( left, zeros.capacity() / bpf );
+				zeros.clear().limit( n * bpf );
+				sf.writeFramesRaw( zeros );
+			}
+			framesMissing	+= gap;
+			framesWritten	+= gap;
+		}
+		if( frames > 0 ) {
+			sf.writeFramesRaw( b );
+			framesWritten += frames;
+			server.framesWritten( frames );
+		}
+	}
+}
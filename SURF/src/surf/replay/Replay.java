@@ -0,0 +1,375 @@
+/*
+ *  Replay.java
+ *
+ */
+
+package surf.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import surf.file.Marker;
+import surf.file.SURFFile;
+import surf.file.SURFFileDescr;
+import surf.file.Span;
+
+/**
+ *  Plays a SURF file as if it was a live meter: the frames are emitted
+ *  block by block at the pace given by the file's sample rate, possibly
+ *  sped up, and the labels of the file are emitted as separate events
+ *  when the replay reaches their positions.
+ *  <p>
+ *  The emission time of every block is computed from the start of the
+ *  replay and the number of frames emitted before it, not from the time
+ *  the previous block was emitted, so the replay does not drift when
+ *  blocks are late. A block which is late is emitted immediately and
+ *  the following blocks catch up.
+ *  <p>
+ *  To test how consumers deal with imperfect connections, random delays
+ *  (jitter) can be added to each block, and blocks can be dropped with a
+ *  given probability. Dropped blocks are read but not emitted; the replay
+ *  continues with the following block. Labels are emitted regardless.
+ *  <p>
+ *  Replays do not have a thread of their own. They are started by a
+ *  <code>ReplayEngine</code>, which schedules all of its replays on
+ *  a small thread pool.
+ *
+ *  @see	ReplayEngine
+ */
+public class Replay {
+
+	/**
+	 *  Speed at which the file is replayed as fast as the listener consumes it
+	 */
+	public static final double	MAX_SPEED	= Double.POSITIVE_INFINITY;
+
+	// states of the task: not started, waiting to be run, emitting a block, finished
+	private static final int	STATE_NEW		= 0;
+	private static final int	STATE_IDLE		= 1;
+	private static final int	STATE_RUNNING	= 2;
+	private static final int	STATE_DONE		= 3;
+
+	/**
+	 *  Receives the blocks and labels of a replay. The methods of one
+	 *  replay are called one at a time, though not always by the same thread.
+	 */
+	public interface Listener {
+		/**
+		 *  @param	replay	the replay emitting the frames
+		 *  @param	frame	the index of the first frame in the file
+		 *  @param	data	the frames, one array per channel; the arrays
+		 *					are reused for the next block
+		 *  @param	len		the number of frames
+		 */
+		public void frames( Replay replay, long frame, float[][] data, int len ) throws IOException;
+
+		/**
+		 *  @param	replay	the replay emitting the label
+		 *  @param	label	a label of the file, emitted after the block containing its position
+		 */
+		public void label( Replay replay, Marker label ) throws IOException;
+
+		/**
+		 *  Called once when the replay has ended, because all frames were
+		 *  emitted, it was stopped or an error occurred.
+		 *
+		 *  @param	replay	the replay which ended
+		 *  @param	error	the error which ended the replay, or <code>null</code>
+		 */
+		public void finished( Replay replay, Exception error );
+	}
+
+	private final File				file;
+	private final int				blockFrames;
+	private final Listener			listener;
+
+	private double					speed		= 1.0;
+	private Span					span		= null;
+	private long					jitterNanos	= 0L;
+	private double					lossRate	= 0.0;
+	private Random					random		= new Random();
+	private boolean					calibrated	= true;
+
+	// replay state, only accessed by the task of the replay
+	private ScheduledExecutorService	pool;
+	private SURFFile				sf;
+	private float[][]				buf;
+	private List<Marker>			labels;
+	private int						nextLabel;
+	private long					start, stop, pos;
+	private long					startNanos;
+	private double					nanosPerFrame;
+	private long					due;		// scheduled emission time of the next block, without jitter
+
+	private volatile ScheduledFuture<?>	next	= null;
+	private volatile boolean		started		= false;
+	private volatile boolean		stopped		= false;
+	private final AtomicInteger		state		= new AtomicInteger( STATE_NEW );
+	private final AtomicBoolean		finished	= new AtomicBoolean( false );
+	private final CountDownLatch	notified	= new CountDownLatch( 1 );	// released after the listener was told
+	private volatile long			framesSent	= 0L;
+	private volatile long			blocksSent	= 0L;
+	private volatile long			blocksDropped	= 0L;
+	private volatile long			maxLateNanos	= 0L;
+
+	/**
+	 *  @param	file		the file to replay
+	 *  @param	blockFrames	the number of frames emitted at a time, e.g. the rate of
+	 *						the file for one block per second
+	 *  @param	listener	receives the blocks and labels
+	 */
+	public Replay( File file, int blockFrames, Listener listener ) {
+		if( blockFrames <= 0 ) throw new IllegalArgumentException( "blockFrames " + blockFrames );
+		this.file			= file;
+		this.blockFrames	= blockFrames;
+		this.listener		= listener;
+	}
+
+	/**
+	 *  Sets the speed relative to the sample rate of the file, e.g. 10 to
+	 *  replay ten seconds of data per second, or <code>MAX_SPEED</code>.
+	 *  Defaults to 1, i.e. real time.
+	 */
+	public void setSpeed( double speed ) {
+		if( !(speed > 0.0) ) throw new IllegalArgumentException( "speed " + speed );
+		checkNotStarted();
+		this.speed = speed;
+	}
+
+	/**
+	 *  Restricts the replay to a range of frames. Defaults to the whole file.
+	 */
+	public void setSpan( Span span ) {
+		checkNotStarted();
+		this.span = span;
+	}
+
+	/**
+	 *  Delays each block by a random time between zero and the given
+	 *  maximum. The delays do not accumulate. Defaults to zero.
+	 */
+	public void setJitter( long maxMillis ) {
+		checkNotStarted();
+		jitterNanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 0L, maxMillis ));
+	}
+
+	/**
+	 *  Sets the probability with which a block is dropped instead
+	 *  of being emitted. Defaults to zero.
+	 */
+	public void setLossRate( double lossRate ) {
+		if( (lossRate < 0.0) || (lossRate > 1.0) ) throw new IllegalArgumentException( "lossRate " + lossRate );
+		checkNotStarted();
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 *  Seeds the random numbers of jitter and loss, so a test can be repeated
+	 */
+	public void setSeed( long seed ) {
+		checkNotStarted();
+		random = new Random( seed );
+	}
+
+	/**
+	 *  Sets whether the frames are emitted in physical units, i.e. multiplied
+	 *  by the channel calibration, like a meter would report them. Defaults
+	 *  to <code>true</code>. Otherwise the frames are emitted as stored.
+	 *
+	 *  @see	SURFFile#readFramesCalibrated( float[][], int, int )
+	 */
+	public void setCalibrated( boolean calibrated ) {
+		checkNotStarted();
+		this.calibrated = calibrated;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 *  Returns the description of the file,
+	 *  or <code>null</code> if the replay has not been started
+	 */
+	public SURFFileDescr getDescr() {
+		final SURFFile f = sf;
+		return( f == null ? null : f.getDescr() );
+	}
+
+	/**
+	 *  Stops the replay. If a block is being emitted, it is completed
+	 *  first and the task emitting it notifies the listener that the
+	 *  replay has finished. Otherwise the listener is notified by the
+	 *  calling thread.
+	 */
+	public void stop() {
+		final ScheduledFuture<?> f;
+
+		stopped = true;
+		if( !state.compareAndSet( STATE_IDLE, STATE_DONE )) return;	// tasks check stopped before they reschedule
+		f = next;
+		if( f != null ) f.cancel( false );
+		finish( null );
+	}
+
+	public boolean isFinished() {
+		return finished.get();
+	}
+
+	/**
+	 *  Returns the number of frames emitted so far, not counting dropped blocks
+	 */
+	public long getFramesSent() {
+		return framesSent;
+	}
+
+	public long getBlocksSent() {
+		return blocksSent;
+	}
+
+	public long getBlocksDropped() {
+		return blocksDropped;
+	}
+
+	/**
+	 *  Returns the largest delay in milliseconds by which a block was emitted
+	 *  later than scheduled, apart from the jitter added on purpose. A replay which cannot keep
+	 *  up with its speed shows a growing lateness.
+	 */
+	public double getMaxLateness() {
+		return maxLateNanos / 1.0e6;
+	}
+
+	// called by the engine
+	@SuppressWarnings("unchecked")
+	void start( ScheduledExecutorService pool ) throws IOException {
+		final List<Marker>	l;
+		final double		rate;
+
+		synchronized( this ) {
+			if( started ) throw new IllegalStateException( "already started" );
+			started = true;
+		}
+		sf = SURFFile.openAsRead( file );
+		try {
+			sf.readMarkers();
+			start	= span == null ? 0L : Math.max( 0L, span.start );
+			stop	= span == null ? sf.getFrameNum() : Math.min( sf.getFrameNum(), span.stop );
+			pos		= start;
+			buf		= new float[ sf.getChannelNum() ][ blockFrames ];
+			l		= (List<Marker>) sf.getDescr().getProperty( SURFFileDescr.KEY_LABELS );
+			labels	= new ArrayList<Marker>();
+			if( l != null ) {
+				for( Marker m : l ) {
+					if( (m.pos >= start) && (m.pos < stop) ) labels.add( m );
+				}
+				Collections.sort( labels );
+			}
+			rate			= sf.getDescr().getSampleRate();
+			nanosPerFrame	= Double.isInfinite( speed ) ? 0.0 : 1.0e9 / (rate * speed);
+			sf.seekFrame( start );
+		}
+		catch( IOException e1 ) {
+			sf.cleanUp();
+			throw e1;
+		}
+		this.pool	= pool;
+		startNanos	= System.nanoTime();
+		due			= startNanos;
+		state.set( STATE_IDLE );
+		pool.execute( task );		// a stop before this runs finishes the replay, the task then returns
+	}
+
+	// only one task runs at a time, and finish() is only called by whoever moves the state to done
+	private final Runnable task = new Runnable() {
+		public void run() {
+			final long delay;
+
+			if( !state.compareAndSet( STATE_IDLE, STATE_RUNNING )) return;	// stopped while it was waiting
+			try {
+				delay = step();
+			}
+			catch( Exception e1 ) {
+				state.set( STATE_DONE );
+				finish( e1 );
+				return;
+			}
+			if( (delay < 0L) || stopped ) {
+				state.set( STATE_DONE );
+				finish( null );
+				return;
+			}
+			state.set( STATE_IDLE );
+			try {
+				next = pool.schedule( task, delay, TimeUnit.NANOSECONDS );
+			}
+			catch( RejectedExecutionException e1 ) {
+				if( state.compareAndSet( STATE_IDLE, STATE_DONE )) finish( e1 );		// otherwise stop() has finished
+			}
+		}
+	};
+
+	// emits one block, returns the delay until the next one in nanoseconds or -1 when done
+	private long step() throws IOException {
+		final long	now	= System.nanoTime();
+		final int	len	= (int) Math.min( blockFrames, stop - pos );
+		final long	jitter;
+
+		if( stopped || (len <= 0) ) return -1L;
+		if( (nanosPerFrame > 0.0) && (now - due > maxLateNanos) ) maxLateNanos = now - due;
+
+		if( calibrated ) {
+			sf.readFramesCalibrated( buf, 0, len );
+		} else {
+			sf.readFrames( buf, 0, len );
+		}
+		if( (lossRate > 0.0) && (random.nextDouble() < lossRate) ) {
+			blocksDropped++;
+		} else {
+			listener.frames( this, pos, buf, len );
+			framesSent += len;
+			blocksSent++;
+		}
+		pos += len;
+		while( (nextLabel < labels.size()) && (labels.get( nextLabel ).pos < pos) ) {
+			listener.label( this, labels.get( nextLabel++ ));
+		}
+		if( pos >= stop ) return -1L;
+
+		// the schedule only depends on the frames emitted, so lateness and jitter do not accumulate
+		due		= startNanos + (long) ((pos - start) * nanosPerFrame);
+		jitter	= jitterNanos > 0L ? (long) (random.nextDouble() * jitterNanos) : 0L;
+		return Math.max( 0L, due + jitter - System.nanoTime() );
+	}
+
+	// waits until the listener was notified that the replay has finished
+	boolean awaitFinished( long timeoutNanos ) throws InterruptedException {
+		return notified.await( timeoutNanos, TimeUnit.NANOSECONDS );
+	}
+
+	private void finish( Exception error ) {
+		if( !finished.compareAndSet( false, true )) return;
+		try {
+			sf.cleanUp();
+			listener.finished( this, error );
+		}
+		finally {
+			notified.countDown();
+		}
+	}
+
+	private void checkNotStarted() {
+		if( started ) throw new IllegalStateException( "already started" );
+	}
+}
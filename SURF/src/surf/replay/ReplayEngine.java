@@ -0,0 +1,103 @@
+/*
+ *  ReplayEngine.java
+ *
+ */
+
+package surf.replay;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Runs any number of replays concurrently, e.g. to simulate hundreds
+ *  of meters feeding a service under test. A replay only occupies a
+ *  thread while it reads and emits a block, and is otherwise waiting in
+ *  the schedule of the engine, so a few threads serve many replays. The
+ *  number of threads should cover the replays whose listeners block at
+ *  the same time, e.g. while sending over the network.
+ *  <pre>
+ *	final ReplayEngine engine = new ReplayEngine( 8 );
+ *	for( File f : files ) engine.start( new Replay( f, 60, listener ));
+ *	engine.awaitFinished( 1, TimeUnit.HOURS );
+ *	engine.shutdown();
+ *  </pre>
+ *
+ *  @see	Replay
+ */
+public class ReplayEngine {
+
+	private final ScheduledExecutorService	pool;
+	private final List<Replay>				replays	= new CopyOnWriteArrayList<Replay>();
+
+	/**
+	 *  Creates an engine with one thread per available processor
+	 */
+	public ReplayEngine() {
+		this( Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 *  @param	numThreads	the number of threads which read and emit blocks
+	 */
+	public ReplayEngine( int numThreads ) {
+		pool = Executors.newScheduledThreadPool( Math.max( 1, numThreads ), new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread( Runnable r ) {
+				final Thread t = new Thread( r, "SURF replay " + (++count) );
+				t.setDaemon( true );
+				return t;
+			}
+		});
+	}
+
+	/**
+	 *  Opens the file of a replay and starts emitting it. Each replay
+	 *  can only be started once.
+	 *
+	 *  @throws IOException if the file cannot be read
+	 */
+	public void start( Replay replay ) throws IOException {
+		replay.start( pool );
+		replays.add( replay );
+	}
+
+	/**
+	 *  Returns the replays started so far, including finished ones
+	 */
+	public List<Replay> getReplays() {
+		return replays;
+	}
+
+	/**
+	 *  Waits until all replays started so far have finished
+	 *  and their listeners have been notified.
+	 *
+	 *  @return <code>false</code> if the time ran out before
+	 *
+	 *  @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public boolean awaitFinished( long timeout, TimeUnit unit ) throws InterruptedException {
+		final long end = System.nanoTime() + unit.toNanos( timeout );
+
+		for( Replay r : replays ) {
+			if( !r.awaitFinished( end - System.nanoTime() )) return false;
+		}
+		return true;
+	}
+
+	/**
+	 *  Stops all replays and the threads of the engine. Replays which are
+	 *  emitting a block complete it. The listeners of all replays which
+	 *  have not finished before are notified.
+	 */
+	public void shutdown() {
+		for( Replay r : replays ) r.stop();
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *  ApplianceModel.java
+ *
+ */
+
+package surf.synth;
+
+import java.util.Map;
+
+import surf.metadata.nilmmetadata.ApplianceMetadata;
+
+/**
+ *  The on/off behaviour of one simulated appliance. While it is on, the
+ *  appliance draws its nominal real and reactive power, while it is off,
+ *  its standby power. The durations of the on and off periods are random,
+ *  exponentially distributed above their minimum, so an appliance
+ *  switches on about every <code>meanOnSeconds + meanOffSeconds</code>.
+ *  <p>
+ *  Appliances with motors or heating elements draw more power at the
+ *  moment they are switched on. This inrush is modelled as an extra
+ *  <code>inrush</code> times the nominal power, decaying exponentially
+ *  with the time constant <code>inrushSeconds</code>.
+ *
+ *  @see	SURFGenerator
+ */
+public class ApplianceModel {
+
+	/**
+	 *  power factor assumed for appliances whose metadata has no reactive power
+	 */
+	public static final double	DEFAULT_POWER_FACTOR	= 0.95;
+
+	public final int		id;
+	public final String		name;
+	/**
+	 *  the phase the appliance is connected to, starting at zero
+	 */
+	public final int		phase;
+	/**
+	 *  real power in watts while on
+	 */
+	public final float		onPower;
+	/**
+	 *  reactive power in var while on
+	 */
+	public final float		reactivePower;
+	/**
+	 *  real power in watts while off
+	 */
+	public final float		standbyPower;
+	public final double		meanOnSeconds, meanOffSeconds;
+	public final double		minOnSeconds, minOffSeconds;
+	public final float		inrush;
+	public final double		inrushSeconds;
+
+	/**
+	 *  Creates an appliance without standby power, minimum durations or inrush
+	 */
+	public ApplianceModel( int id, String name, int phase, float onPower, float reactivePower,
+						   double meanOnSeconds, double meanOffSeconds ) {
+		this( id, name, phase, onPower, reactivePower, 0f, meanOnSeconds, meanOffSeconds, 0.0, 0.0, 0f, 0.0 );
+	}
+
+	/**
+	 *  @param	id				the appliance identifier written to the labels
+	 *  @param	name			the appliance name written to the labels
+	 *  @param	phase			the phase the appliance is connected to, starting at zero
+	 *  @param	onPower			real power in watts while on
+	 *  @param	reactivePower	reactive power in var while on
+	 *  @param	standbyPower	real power in watts while off
+	 *  @param	meanOnSeconds	mean duration of the on periods
+	 *  @param	meanOffSeconds	mean duration of the off periods
+	 *  @param	minOnSeconds	minimum duration of the on periods
+	 *  @param	minOffSeconds	minimum duration of the off periods
+	 *  @param	inrush			peak of the extra power at switch on, relative to <code>onPower</code>
+	 *  @param	inrushSeconds	time constant of the decay of the inrush
+	 */
+	public ApplianceModel( int id, String name, int phase, float onPower, float reactivePower, float standbyPower,
+						   double meanOnSeconds, double meanOffSeconds, double minOnSeconds, double minOffSeconds,
+						   float inrush, double inrushSeconds ) {
+		if( phase < 0 ) throw new IllegalArgumentException( "phase " + phase );
+		if( !(meanOnSeconds > 0.0) || !(meanOffSeconds > 0.0) ) {
+			throw new IllegalArgumentException( "durations " + meanOnSeconds + ", " + meanOffSeconds );
+		}
+		this.id				= id;
+		this.name			= name;
+		this.phase			= phase;
+		this.onPower		= onPower;
+		this.reactivePower	= reactivePower;
+		this.standbyPower	= standbyPower;
+		this.meanOnSeconds	= Math.max( meanOnSeconds, minOnSeconds );
+		this.meanOffSeconds	= Math.max( meanOffSeconds, minOffSeconds );
+		this.minOnSeconds	= Math.max( 0.0, minOnSeconds );
+		this.minOffSeconds	= Math.max( 0.0, minOffSeconds );
+		this.inrush			= Math.max( 0f, inrush );
+		this.inrushSeconds	= inrushSeconds;
+	}
+
+	/**
+	 *  Creates an appliance from its NILM metadata. The power is taken from
+	 *  <code>on_power</code> and <code>standby_power</code> of the nominal
+	 *  consumption, or else from the average power consumption or the on
+	 *  power threshold, the minimum durations from the minimum on and off
+	 *  durations. As the metadata has neither the reactive power nor how
+	 *  often the appliance is used, the reactive power follows from
+	 *  <code>DEFAULT_POWER_FACTOR</code>, and the mean durations are four
+	 *  times the minimum ones, but at least five minutes on and half an hour off.
+	 *
+	 *  @param	md		the metadata
+	 *  @param	phase	the phase the appliance is connected to
+	 *
+	 *  @throws IllegalArgumentException if the metadata has no power consumption
+	 */
+	public static ApplianceModel fromMetadata( ApplianceMetadata md, int phase ) {
+		final Object	nominal	= md.getProperty( ApplianceMetadata.NOMINAL_CONSUMPTION );
+		final Number	instance, minOn, minOff;
+		final Object	name;
+		Number			on		= null;
+		Number			standby	= null;
+
+		if( nominal instanceof Map ) {
+			on		= getNumber( ((Map<?, ?>) nominal).get( "on_power" ));
+			standby	= getNumber( ((Map<?, ?>) nominal).get( "standby_power" ));
+		}
+		if( on == null ) on = getNumber( md.getProperty( ApplianceMetadata.AVERAGE_POWER_CONSUMPTION ));
+		if( on == null ) on = getNumber( md.getProperty( ApplianceMetadata.ON_POWER_THRESHOLD ));
+		if( on == null ) throw new IllegalArgumentException( "no power consumption in appliance metadata" );
+
+		instance	= getNumber( md.getProperty( ApplianceMetadata.INSTANCE ));
+		minOn		= getNumber( md.getProperty( ApplianceMetadata.MINIMUM_ON_DURATION ));
+		minOff		= getNumber( md.getProperty( ApplianceMetadata.MINIMUM_OFF_DURATION ));
+		name		= md.getProperty( ApplianceMetadata.ORIGINAL_NAME ) != null ?
+					  md.getProperty( ApplianceMetadata.ORIGINAL_NAME ) : md.getProperty( ApplianceMetadata.TYPE );
+
+		return new ApplianceModel( instance == null ? 0 : instance.intValue(),
+								   name == null ? "appliance" : name.toString(), phase,
+								   on.floatValue(),
+								   (float) (on.doubleValue() * Math.tan( Math.acos( DEFAULT_POWER_FACTOR ))),
+								   standby == null ? 0f : standby.floatValue(),
+								   Math.max( 300.0, minOn == null ? 0.0 : 4 * minOn.doubleValue() ),
+								   Math.max( 1800.0, minOff == null ? 0.0 : 4 * minOff.doubleValue() ),
+								   minOn == null ? 0.0 : minOn.doubleValue(),
+								   minOff == null ? 0.0 : minOff.doubleValue(), 0f, 0.0 );
+	}
+
+	private static Number getNumber( Object o ) {
+		return( o instanceof Number ? (Number) o : null );
+	}
+
+	public String toString() {
+		return( name + " (" + id + ", " + onPower + " W)" );
+	}
+}
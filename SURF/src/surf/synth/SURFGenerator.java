@@ -0,0 +1,448 @@
+/*
+ *  SURFGenerator.java
+ *
+ */
+
+package surf.synth;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONValue;
+
+import surf.file.Annotation;
+import surf.file.IOUtil;
+import surf.file.Marker;
+import surf.file.SURFFile;
+import surf.file.SURFFileDescr;
+
+/**
+ *  Writes SURF files of synthetic power data, e.g. to test or benchmark
+ *  code on corpora of any size without shipping recorded datasets. Each
+ *  phase is recorded as two channels, real power (P) and reactive power
+ *  (Q), which sum a base load and the appliances connected to the phase,
+ *  switching on and off as described by their <code>ApplianceModel</code>.
+ *  Gaussian noise with an absolute and a relative part is added on top.
+ *  <p>
+ *  Every switch of an appliance is written as a label, in the JSON format
+ *  of the SURF version of BLUED, so the files carry their ground truth:
+ *  <code>App_ID</code>, <code>App_Label</code>, <code>Phase</code>,
+ *  <code>Position</code>, <code>Timestamp</code>, <code>Delta_P</code>,
+ *  <code>Delta_Q</code> and <code>Type</code> (1 for on, -1 for off).
+ *  <p>
+ *  The output only depends on the settings and the seed, so a corpus can
+ *  be regenerated instead of archived. The files of a corpus are written
+ *  in parallel, each with its own seed, and follow each other in time
+ *  like consecutive days of a recording, though the appliance states do
+ *  not carry over from one file to the next.
+ *  <pre>
+ *	final SURFGenerator gen = new SURFGenerator( appliances );
+ *	gen.setSampleRate( 60 );
+ *	gen.generate( dir, "synth", 100, 60 * 86400L );		// 100 days
+ *  </pre>
+ *
+ *  @see	ApplianceModel
+ */
+public class SURFGenerator {
+
+	private static final int		BLOCK_FRAMES	= 65536;
+	private static final int		NOISE_SIZE		= 65536;	// precomputed gaussian values, a power of two
+
+	private final List<ApplianceModel>	appliances;
+
+	private double					rate			= 60.0;
+	private int						phases			= 1;
+	private float[]					calibration		= null;
+	private double					resolution		= 0.0;
+	private float					baseP			= 50f;
+	private float					baseQ			= 10f;
+	private float					noiseAbs		= 0.5f;
+	private float					noiseRel		= 0.002f;
+	private long					seed			= 0L;
+	private long					initialMillis	= 1577836800000L;	// 2020-01-01 00:00:00 UTC
+	private String					timezone		= "UTC";
+	private int						numThreads		= Runtime.getRuntime().availableProcessors();
+
+	/**
+	 *  @param	appliances	the appliances of all phases; the number of phases
+	 *						is at least one more than the highest phase of an appliance
+	 */
+	public SURFGenerator( List<ApplianceModel> appliances ) {
+		this.appliances = new ArrayList<ApplianceModel>( appliances );
+		for( ApplianceModel app : appliances ) phases = Math.max( phases, app.phase + 1 );
+	}
+
+	/**
+	 *  Sets the sample rate in hertz, which may be below one. Defaults to 60.
+	 */
+	public void setSampleRate( double rate ) {
+		if( !(rate > 0.0) ) throw new IllegalArgumentException( "rate " + rate );
+		this.rate = rate;
+	}
+
+	/**
+	 *  Sets the number of phases, two channels each.
+	 *  Defaults to the phases used by the appliances.
+	 */
+	public void setPhases( int phases ) {
+		if( phases < 1 ) throw new IllegalArgumentException( "phases " + phases );
+		this.phases = phases;
+	}
+
+	/**
+	 *  Sets the calibration constants of the channels. The samples are stored
+	 *  divided by them, so that multiplying them by the calibration gives the
+	 *  power in watts and var again. Defaults to 1 for all channels.
+	 *
+	 *  @param	calibration	one constant per channel: P and Q of phase 0,
+	 *						P and Q of phase 1, ...
+	 */
+	public void setCalibration( float[] calibration ) {
+		this.calibration = calibration == null ? null : calibration.clone();
+	}
+
+	/**
+	 *  Stores the samples as 16 bit integers with the given resolution in
+	 *  watts and var, instead of as 32 bit floats, which halves the size of
+	 *  the files. Values beyond about 32767 times the resolution are clipped.
+	 *
+	 *  @param	resolution	the quantization step, or zero for 32 bit floats
+	 *
+	 *  @see	SURFFileDescr#setCalibratedQuantization( int, double )
+	 */
+	public void setQuantization( double resolution ) {
+		if( resolution < 0.0 ) throw new IllegalArgumentException( "resolution " + resolution );
+		this.resolution = resolution;
+	}
+
+	/**
+	 *  Sets the power drawn by each phase regardless of the appliances.
+	 *  Defaults to 50 W and 10 var.
+	 */
+	public void setBaseLoad( float realPower, float reactivePower ) {
+		baseP = realPower;
+		baseQ = reactivePower;
+	}
+
+	/**
+	 *  Sets the standard deviation of the noise, as the sum of an absolute
+	 *  part and a part relative to the power. Defaults to 0.5 and 0.002.
+	 */
+	public void setNoise( float absolute, float relative ) {
+		noiseAbs = Math.max( 0f, absolute );
+		noiseRel = Math.max( 0f, relative );
+	}
+
+	/**
+	 *  Sets the seed of the random numbers. File <code>i</code> of a
+	 *  corpus uses <code>seed + i</code>. Defaults to zero.
+	 */
+	public void setSeed( long seed ) {
+		this.seed = seed;
+	}
+
+	/**
+	 *  Sets the time of the first frame. Defaults to 2020-01-01 00:00:00 UTC.
+	 *
+	 *  @param	millis		milliseconds since 1970
+	 *  @param	timezone	the time zone written to the files
+	 */
+	public void setInitialTime( long millis, String timezone ) {
+		initialMillis	= millis;
+		this.timezone	= timezone;
+	}
+
+	/**
+	 *  Sets the number of files written in parallel.
+	 *  Defaults to the number of available processors.
+	 */
+	public void setNumThreads( int numThreads ) {
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	public int getChannelNum() {
+		return( phases << 1 );
+	}
+
+	/**
+	 *  Writes one file.
+	 *
+	 *  @param	file	the file to create; an existing file is overwritten
+	 *  @param	frames	the number of frames
+	 *
+	 *  @return	the description of the written file, including its labels
+	 *
+	 *  @throws IOException if the file cannot be written
+	 */
+	public SURFFileDescr generate( File file, long frames ) throws IOException {
+		return generate( file, frames, seed, initialMillis );
+	}
+
+	/**
+	 *  Writes a corpus of files named <code>&lt;prefix&gt;_0000_surf.wav</code>,
+	 *  <code>&lt;prefix&gt;_0001_surf.wav</code>, ..., several at a time.
+	 *
+	 *  @param	dir			the directory of the files, which is created if needed
+	 *  @param	prefix		the start of the file names
+	 *  @param	numFiles	the number of files
+	 *  @param	frames		the number of frames per file
+	 *
+	 *  @return	the files, in order
+	 *
+	 *  @throws IOException if a file cannot be written
+	 */
+	public List<File> generate( File dir, String prefix, int numFiles, final long frames ) throws IOException {
+		final List<File>			files	= new ArrayList<File>( numFiles );
+		final List<Future<?>>		tasks	= new ArrayList<Future<?>>( numFiles );
+		final ExecutorService		pool;
+
+		if( !dir.isDirectory() && !dir.mkdirs() ) throw new IOException( "Cannot create " + dir.getAbsolutePath() );
+		for( int i = 0; i < numFiles; i++ ) {
+			files.add( new File( dir, String.format( "%s_%04d_surf.wav", prefix, i )));
+		}
+		pool = Executors.newFixedThreadPool( Math.min( numThreads, Math.max( 1, numFiles )));
+		try {
+			for( int i = 0; i < numFiles; i++ ) {
+				final int idx = i;
+				tasks.add( pool.submit( new Callable<SURFFileDescr>() {
+					public SURFFileDescr call() throws IOException {
+						return generate( files.get( idx ), frames, seed + idx,
+										 initialMillis + (long) (idx * frames * 1000.0 / rate) );
+					}
+				}));
+			}
+			for( int i = 0; i < tasks.size(); i++ ) tasks.get( i ).get();
+		}
+		catch( InterruptedException e1 ) {
+			Thread.currentThread().interrupt();
+			throw IOUtil.map( e1 );
+		}
+		catch( ExecutionException e1 ) {
+			if( e1.getCause() instanceof IOException ) throw (IOException) e1.getCause();
+			throw IOUtil.map( e1 );
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return files;
+	}
+
+	private SURFFileDescr generate( File file, long frames, long fileSeed, long startMillis ) throws IOException {
+		final Random				rnd		= new Random( fileSeed );
+		final SURFFileDescr			descr	= new SURFFileDescr();
+		final int					chans	= getChannelNum();
+		final List<Event>			events	= schedule( rnd, frames );
+		final float[][]				buf;
+		final float[]				noise	= new float[ NOISE_SIZE ];
+		final float[]				scale	= new float[ chans ];
+		final float[]				p		= new float[ phases ];	// current power without inrush
+		final float[]				q		= new float[ phases ];
+		final float[]				surge	= new float[ appliances.size() ];	// current inrush power
+		final float[]				decay	= new float[ appliances.size() ];
+		final List<Annotation>		comments	= new ArrayList<Annotation>();
+		ApplianceModel				app;
+		SURFFile					sf		= null;
+		Event						ev;
+		int							len, next = 0, numSurges = 0;
+		long						x		= fileSeed * 0x9E3779B97F4A7C15L | 1L;	// xorshift state, never zero
+		float						pp, qq, f;
+
+		descr.type						= SURFFileDescr.TYPE_WAVE;
+		descr.channels					= chans;
+		descr.rate						= Math.max( 1.0, Math.rint( rate ));
+		descr.file						= file;
+		descr.SURF_initial_timestamp	= formatTime( startMillis );
+		descr.SURF_timezone				= timezone;
+		descr.SURF_sample_rate			= (float) rate;
+		descr.SURF_channel_calibration	= new float[ chans ];
+		for( int ch = 0; ch < chans; ch++ ) {
+			descr.SURF_channel_calibration[ ch ] = (calibration != null) && (ch < calibration.length) ? calibration[ ch ] : 1f;
+			scale[ ch ] = 1f / descr.getChannelCalibration( ch );
+		}
+		if( resolution > 0.0 ) {
+			descr.sampleFormat	= SURFFileDescr.FORMAT_INT;
+			descr.bitsPerSample	= 16;
+			for( int ch = 0; ch < chans; ch++ ) descr.setCalibratedQuantization( ch, resolution );
+		} else {
+			descr.sampleFormat	= SURFFileDescr.FORMAT_FLOAT;
+			descr.bitsPerSample	= 32;
+		}
+		descr.setProperty( SURFFileDescr.KEY_LABELS, createLabels( events, startMillis ));
+		comments.add( new Annotation( "Synthetic power data of " + appliances.size() + " appliances on " + phases +
+									  " phase(s), seed " + fileSeed + "." ));
+		descr.setProperty( SURFFileDescr.KEY_COMMENTS, comments );
+
+		for( int i = 0; i < NOISE_SIZE; i++ ) noise[ i ] = (float) rnd.nextGaussian();
+		for( int i = 0; i < phases; i++ ) {
+			p[ i ] = baseP;
+			q[ i ] = baseQ;
+		}
+		for( int i = 0; i < appliances.size(); i++ ) {
+			app			= appliances.get( i );
+			p[ app.phase ] += app.standbyPower;
+			decay[ i ]	= app.inrushSeconds > 0.0 ? (float) Math.exp( -1.0 / (app.inrushSeconds * rate) ) : 0f;
+		}
+
+		buf = new float[ chans ][ (int) Math.min( BLOCK_FRAMES, Math.max( 1L, frames )) ];
+		try {
+			sf = SURFFile.openAsWrite( descr );
+			sf.setAsyncWrite( 3, buf[ 0 ].length );
+			for( long pos = 0L; pos < frames; pos += len ) {
+				len = (int) Math.min( buf[ 0 ].length, frames - pos );
+				for( int i = 0; i < len; i++ ) {
+					while( (next < events.size()) && (events.get( next ).pos == pos + i) ) {
+						ev	= events.get( next++ );
+						app	= appliances.get( ev.app );
+						if( ev.on ) {
+							p[ app.phase ] += app.onPower - app.standbyPower;
+							q[ app.phase ] += app.reactivePower;
+							if( (app.inrush > 0f) && (decay[ ev.app ] > 0f) ) {
+								if( surge[ ev.app ] == 0f ) numSurges++;
+								surge[ ev.app ] = app.inrush;
+							}
+						} else {
+							p[ app.phase ] -= app.onPower - app.standbyPower;
+							q[ app.phase ] -= app.reactivePower;
+							if( surge[ ev.app ] != 0f ) numSurges--;
+							surge[ ev.app ] = 0f;
+						}
+					}
+					for( int ph = 0; ph < phases; ph++ ) {
+						pp = p[ ph ];
+						qq = q[ ph ];
+						if( numSurges > 0 ) {
+							for( int k = 0; k < surge.length; k++ ) {
+								if( (surge[ k ] == 0f) || (appliances.get( k ).phase != ph) ) continue;
+								app	= appliances.get( k );
+								pp += app.onPower * surge[ k ];
+								qq += app.reactivePower * surge[ k ];
+							}
+						}
+						x ^= x << 13; x ^= x >>> 7; x ^= x << 17;
+						f = noise[ (int) x & (NOISE_SIZE - 1) ];
+						buf[ ph << 1 ][ i ] = (pp + f * (noiseAbs + noiseRel * Math.abs( pp ))) * scale[ ph << 1 ];
+						f = noise[ (int) (x >>> 32) & (NOISE_SIZE - 1) ];
+						buf[ (ph << 1) + 1 ][ i ] = (qq + f * (noiseAbs + noiseRel * Math.abs( qq ))) * scale[ (ph << 1) + 1 ];
+					}
+					if( numSurges > 0 ) {		// the inrush decays from one frame to the next
+						for( int k = 0; k < surge.length; k++ ) {
+							if( surge[ k ] == 0f ) continue;
+							surge[ k ] *= decay[ k ];
+							if( surge[ k ] < 1.0e-4f ) {
+								surge[ k ] = 0f;
+								numSurges--;
+							}
+						}
+					}
+				}
+				sf.writeFrames( buf, 0, len );
+			}
+			sf.close();
+			sf = null;
+		}
+		finally {
+			if( sf != null ) sf.cleanUp();
+		}
+		return descr;
+	}
+
+	/*
+	 *	Draws the on and off periods of each appliance over the whole file.
+	 *	Each appliance starts off, at a random point of its off period.
+	 */
+	private List<Event> schedule( Random rnd, long frames ) {
+		final List<Event>	events	= new ArrayList<Event>();
+		ApplianceModel		app;
+		double				t;
+		boolean				on;
+
+		for( int i = 0; i < appliances.size(); i++ ) {
+			app	= appliances.get( i );
+			on	= false;
+			t	= rnd.nextDouble() * duration( rnd, app.minOffSeconds, app.meanOffSeconds ) * rate;
+			while( (long) t < frames ) {
+				on = !on;
+				events.add( new Event( (long) t, i, on ));
+				t += Math.max( 1.0, rate * (on ? duration( rnd, app.minOnSeconds, app.meanOnSeconds ) :
+													duration( rnd, app.minOffSeconds, app.meanOffSeconds )));
+			}
+		}
+		Collections.sort( events, new Comparator<Event>() {
+			public int compare( Event e1, Event e2 ) {
+				return( e1.pos < e2.pos ? -1 : (e1.pos > e2.pos ? 1 : e1.app - e2.app) );
+			}
+		});
+		return events;
+	}
+
+	// minimum plus an exponentially distributed part, so the mean is met
+	private static double duration( Random rnd, double min, double mean ) {
+		return( min - (mean - min) * Math.log( 1.0 - rnd.nextDouble() ));
+	}
+
+	private List<Marker> createLabels( List<Event> events, long startMillis ) {
+		final List<Marker>			labels	= new ArrayList<Marker>( events.size() );
+		final DecimalFormat			df		= new DecimalFormat( "#.###", DecimalFormatSymbols.getInstance( Locale.US ));
+		final SimpleDateFormat		tf		= createTimeFormat();
+		final Map<String, Object>	obj		= new LinkedHashMap<String, Object>();
+		ApplianceModel				app;
+		Event						ev;
+
+		for( int i = 0; i < events.size(); i++ ) {
+			ev	= events.get( i );
+			app	= appliances.get( ev.app );
+			obj.clear();
+			obj.put( "SURF_ID", new Integer( i ));
+			obj.put( "App_ID", new Integer( app.id ));
+			obj.put( "App_Label", app.name );
+			obj.put( "Phase", new Integer( app.phase ));
+			obj.put( "Position", new Long( ev.pos ));
+			obj.put( "Timestamp", tf.format( new Date( startMillis + (long) (ev.pos * 1000.0 / rate) )));
+			obj.put( "Delta_P", df.format( ev.on ? app.onPower - app.standbyPower : app.standbyPower - app.onPower ));
+			obj.put( "Delta_Q", df.format( ev.on ? app.reactivePower : -app.reactivePower ));
+			obj.put( "Type", new Integer( ev.on ? 1 : -1 ));
+			labels.add( new Marker( ev.pos, JSONValue.toJSONString( obj )));
+		}
+		return labels;
+	}
+
+	private String formatTime( long millis ) {
+		return createTimeFormat().format( new Date( millis ));
+	}
+
+	private SimpleDateFormat createTimeFormat() {
+		final SimpleDateFormat tf = new SimpleDateFormat( SURFFileDescr.TIMESTAMP_PATTERN );
+		tf.setTimeZone( TimeZone.getTimeZone( timezone ));
+		return tf;
+	}
+
+	private static class Event {
+		final long		pos;
+		final int		app;
+		final boolean	on;
+
+		Event( long pos, int app, boolean on ) {
+			this.pos	= pos;
+			this.app	= app;
+			this.on		= on;
+		}
+	}
+}